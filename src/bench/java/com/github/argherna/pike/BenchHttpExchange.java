@@ -0,0 +1,139 @@
+package com.github.argherna.pike;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * HttpExchange that isn't connected to anything. The response body is
+ * discarded.
+ */
+final class BenchHttpExchange extends HttpExchange {
+
+  private final String method;
+
+  private final URI uri;
+
+  private final Headers requestHeaders = new Headers();
+
+  private final Headers responseHeaders = new Headers();
+
+  private InputStream requestBody = new ByteArrayInputStream(new byte[0]);
+
+  private OutputStream body = new OutputStream() {
+
+    @Override
+    public void write(int b) {
+      // Discarded.
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      // Discarded.
+    }
+  };
+
+  private int responseCode = -1;
+
+  BenchHttpExchange(String method, String uri) {
+    this.method = method;
+    this.uri = URI.create(uri);
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close.
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return null;
+  }
+
+  @Override
+  public HttpContext getHttpContext() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return null;
+  }
+
+  @Override
+  public HttpPrincipal getPrincipal() {
+    return null;
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/1.1";
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return null;
+  }
+
+  @Override
+  public InputStream getRequestBody() {
+    return requestBody;
+  }
+
+  @Override
+  public Headers getRequestHeaders() {
+    return requestHeaders;
+  }
+
+  @Override
+  public Headers getResponseHeaders() {
+    return responseHeaders;
+  }
+
+  @Override
+  public URI getRequestURI() {
+    return uri;
+  }
+
+  @Override
+  public String getRequestMethod() {
+    return method;
+  }
+
+  @Override
+  public OutputStream getResponseBody() {
+    return body;
+  }
+
+  @Override
+  public int getResponseCode() {
+    return responseCode;
+  }
+
+  @Override
+  public void sendResponseHeaders(int rCode, long responseLength) {
+    responseCode = rCode;
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    // Attributes aren't kept.
+  }
+
+  @Override
+  public void setStreams(InputStream i, OutputStream o) {
+    if (i != null) {
+      requestBody = i;
+    }
+    if (o != null) {
+      body = o;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with JMH's usual command line options, writing the
+ * results as JSON to {@code jmh-result.json} unless told otherwise so runs can
+ * be compared.
+ */
+public final class Benchmarks {
+
+  private Benchmarks() {
+    // Empty constructor prevents instantiation.
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    CommandLineOptions cmdOptions;
+    try {
+      cmdOptions = new CommandLineOptions(args);
+    } catch (CommandLineOptionException e) {
+      System.err.printf("Error parsing command line:%n %s%n", e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (cmdOptions.shouldHelp()) {
+      cmdOptions.showHelp();
+      return;
+    }
+    var options = new OptionsBuilder().parent(cmdOptions);
+    if (!cmdOptions.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+    if (!cmdOptions.getResult().hasValue()) {
+      options.result("jmh-result.json");
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,47 @@
+package com.github.argherna.pike;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing search query strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpBenchmark {
+
+  private static final String SIMPLE = "filter=%28uid%3Duser000042%29";
+
+  private static final String SEARCH = "rdn=ou%3Dpeople&filter=%28%26%28objectClass%3Dperson%29%28%7C%28cn%3DGiven4"
+      + "*%29%28mail%3D*%40example.com%29%29%29&scope=sub&attr=cn+mail+memberOf+telephoneNumber+title"
+      + "&sort=sn&page=50&stream=true";
+
+  private static final Map<String, Function<String, List<String>>> PARAM_PROCS = Map.of("attr",
+      s -> List.of(s.split("\\+")));
+
+  @Benchmark
+  public Map<String, List<String>> simpleQuery() {
+    return Http.queryToMap(SIMPLE);
+  }
+
+  @Benchmark
+  public Map<String, List<String>> searchQuery() {
+    return Http.queryToMap(SEARCH, PARAM_PROCS);
+  }
+}
@@ -0,0 +1,62 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering search results to JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+  @Param({ "1", "100", "1000" })
+  int entries;
+
+  @Param({ "0", "20" })
+  int groups;
+
+  private Map<String, Object> document;
+
+  private List<Map<String, Object>> records;
+
+  @Setup
+  public void setUp() {
+    records = LdapEntries.maps(entries, groups);
+    document = Map.of("connection", Map.of("name", "bench", "ldapUrl", "ldap://localhost:10389"), "params",
+        Map.of("filter", "(objectClass=person)", "scope", "subtree"), "records", records);
+  }
+
+  @Benchmark
+  public String renderObject() throws IOException {
+    return Json.renderObject(document);
+  }
+
+  @Benchmark
+  public String renderList() throws IOException {
+    return Json.renderList(records);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    return Json.encode(document);
+  }
+}
@@ -0,0 +1,94 @@
+package com.github.argherna.pike;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * Synthetic directory entries shaped like the people in a typical corporate
+ * directory, for benchmarks and load tests.
+ */
+final class LdapEntries {
+
+  static final String BASE_DN = "ou=people,dc=example,dc=com";
+
+  private static final String[] TITLES = new String[] { "Engineer", "Senior Engineer", "Manager", "Director",
+      "Analyst", "Administrator" };
+
+  private static final String[] DEPARTMENTS = new String[] { "Engineering", "Finance", "Marketing", "Operations",
+      "Sales", "Support" };
+
+  private LdapEntries() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * @param i the entry's number
+   * @return the distinguished name of the i-th person
+   */
+  static String dn(int i) {
+    return String.format("uid=user%06d,%s", i, BASE_DN);
+  }
+
+  /**
+   * Makes the attributes of the i-th person. The same number always makes the
+   * same attributes.
+   *
+   * @param i      the entry's number
+   * @param groups how many groups the person is a member of
+   * @return the attributes
+   */
+  static Attributes person(int i, int groups) {
+    var attributes = new BasicAttributes(true);
+    var objectClass = new BasicAttribute("objectClass");
+    for (var oc : List.of("top", "person", "organizationalPerson", "inetOrgPerson")) {
+      objectClass.add(oc);
+    }
+    attributes.put(objectClass);
+    var givenName = "Given" + i;
+    var sn = "Surname" + (i % 997);
+    attributes.put("uid", String.format("user%06d", i));
+    attributes.put("cn", givenName + " " + sn);
+    attributes.put("givenName", givenName);
+    attributes.put("sn", sn);
+    attributes.put("mail", String.format("user%06d@example.com", i));
+    attributes.put("telephoneNumber", String.format("+1 555 %03d %04d", i % 1000, i % 10000));
+    attributes.put("title", TITLES[i % TITLES.length]);
+    attributes.put("ou", DEPARTMENTS[i % DEPARTMENTS.length]);
+    attributes.put("description", "Works in " + DEPARTMENTS[i % DEPARTMENTS.length]
+        + " on \"special\" projects\tand writes the occasional note with non-ASCII text: café, über.");
+    attributes.put("modifyTimestamp", String.format("2024%02d%02d120000Z", 1 + i % 12, 1 + i % 28));
+    if (groups > 0) {
+      var memberOf = new BasicAttribute("memberOf");
+      for (int g = 0; g < groups; g++) {
+        memberOf.add(String.format("cn=group%03d,ou=groups,dc=example,dc=com", (i + g) % 500));
+      }
+      attributes.put(memberOf);
+    }
+    return attributes;
+  }
+
+  /**
+   * Renders people to the maps Pike turns into JSON.
+   *
+   * @param count  how many people
+   * @param groups how many groups each is a member of
+   * @return the people as maps
+   */
+  static List<Map<String, Object>> maps(int count, int groups) {
+    var maps = new ArrayList<Map<String, Object>>(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        maps.add(Maps.toMap(dn(i), person(i, groups)));
+      }
+    } catch (NamingException e) {
+      throw new RuntimeException(e);
+    }
+    return maps;
+  }
+}
@@ -0,0 +1,457 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Runs Pike against a {@link LoopbackDirectory} and drives concurrent requests
+ * at {@code /search} and {@code /record}, then reports throughput, latency
+ * percentiles and how much was allocated.
+ *
+ * <p>
+ * By default each client sends its next request as soon as the last one is
+ * answered, so when Pike slows down the clients slow down with it and the
+ * latencies understate what a steady stream of users would see. With
+ * {@code --rate} the requests are due at a fixed rate instead, and each one's
+ * latency counts from when it was due.
+ *
+ * <p>
+ * Allocation is measured from the heap: what the collector freed plus how much
+ * more of the heap is in use, less what the load clients allocated. It
+ * includes the loopback directory's allocation, which a thread-by-thread count
+ * would miss for Pike's virtual threads, JNDI's reader threads and pool
+ * threads that exit during the run.
+ *
+ * <p>
+ * Run it from the benchmarks jar:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.argherna.pike.LoadTest --entries 100000 --latency 2
+ * </pre>
+ */
+public final class LoadTest {
+
+  private static final String CONNECTION_NAME = "loopback";
+
+  private static final String[] REQUEST_TYPES = new String[] { "lookup", "unit", "record" };
+
+  private LoadTest() {
+    // Empty constructor prevents instantiation.
+  }
+
+  public static void main(String[] args) throws Exception {
+    var options = new LinkedHashMap<String, String>();
+    options.put("entries", "10000");
+    options.put("units", "10");
+    options.put("groups", "10");
+    options.put("latency", "0");
+    options.put("jitter", "0");
+    options.put("clients", "16");
+    options.put("rate", "0");
+    options.put("warmup", "10");
+    options.put("duration", "30");
+    options.put("executor", "pool");
+    options.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors() * 2));
+    options.put("cacheTtl", "0");
+    options.put("mix", "60,10,30");
+    options.put("out", "");
+    for (int argIdx = 0; argIdx < args.length; argIdx++) {
+      var name = args[argIdx].startsWith("--") ? args[argIdx].substring(2) : null;
+      if (name == null || !options.containsKey(name) || argIdx + 1 >= args.length) {
+        showUsageAndExit(options);
+      }
+      options.put(name, args[++argIdx]);
+    }
+    var mix = Arrays.stream(options.get("mix").split(",")).mapToInt(Integer::parseInt).toArray();
+    if (mix.length != REQUEST_TYPES.length || Arrays.stream(mix).sum() <= 0) {
+      showUsageAndExit(options);
+    }
+
+    if (System.getProperty("java.util.prefs.userRoot") == null) {
+      // Keep the test connection out of the user's own settings. Only the
+      // file system preferences honor this; on macOS and Windows the user's
+      // own settings are used, so they're left as they were found.
+      System.setProperty("java.util.prefs.userRoot", Files.createTempDirectory("pike-load").toString());
+    }
+    if (Arrays.asList(Settings.getAllConnectionNames()).contains(CONNECTION_NAME)) {
+      System.err.printf("There's already a connection named %s, which the load test would replace.%n",
+          CONNECTION_NAME);
+      System.exit(1);
+    }
+    var activeConnectionName = Settings.getActiveConnectionName();
+    var heap = new HeapAllocation();
+
+    System.out.printf("Loading %s entries into the loopback directory...%n", options.get("entries"));
+    try (var directory = new LoopbackDirectory(Integer.parseInt(options.get("entries")),
+        Integer.parseInt(options.get("units")), Integer.parseInt(options.get("groups")),
+        Long.parseLong(options.get("latency")), Long.parseLong(options.get("jitter")))) {
+      Settings.saveConnectionSettings(new Settings.ConnectionSettings.Builder(CONNECTION_NAME)
+          .ldapUrl(directory.getLdapUrl()).baseDn(LoopbackDirectory.SUFFIX).authType("simple")
+          .bindDn(LoopbackDirectory.BIND_DN).password(LoopbackDirectory.BIND_PASSWORD.getBytes(UTF_8))
+          .referralPolicy("ignore").searchCacheTtl(Long.parseLong(options.get("cacheTtl"))).build());
+      Settings.setActiveConnectionName(CONNECTION_NAME);
+
+      int port;
+      try (var socket = new ServerSocket(0)) {
+        port = socket.getLocalPort();
+      }
+      var threads = Integer.parseInt(options.get("threads"));
+      var pike = new Pike(port, 0, Pike.newExecutor(options.get("executor"), threads, threads * 4));
+      pike.addDefaultHandlers();
+      pike.serveHttp();
+      try {
+        var clients = Integer.parseInt(options.get("clients"));
+        var rate = Double.parseDouble(options.get("rate"));
+        var base = String.format("http://127.0.0.1:%d", port);
+        System.out.printf("Warming up for %s seconds...%n", options.get("warmup"));
+        drive(base, directory, mix, clients, rate, TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup"))));
+        System.out.printf(rate > 0 ? "Sending %2$.1f requests/s from %1$d clients for %3$s seconds...%n"
+            : "Running %d clients for %3$s seconds...%n", clients, rate, options.get("duration"));
+        var allocatedBefore = heap.allocated();
+        var gcBefore = gcMillis();
+        var durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+        var began = System.nanoTime();
+        var recorders = drive(base, directory, mix, clients, rate, durationNanos);
+        // Clients that fell behind the rate finish late, so rates are over
+        // the time it actually took.
+        var elapsedNanos = System.nanoTime() - began;
+        var allocated = heap.allocated() - allocatedBefore;
+        for (var recorder : recorders) {
+          allocated -= recorder.allocated;
+        }
+        var gc = gcMillis() - gcBefore;
+        var report = report(options, recorders, elapsedNanos, allocated, gc);
+        if (!options.get("out").isEmpty()) {
+          Files.write(Paths.get(options.get("out")), Json.encode(report));
+        }
+      } finally {
+        pike.shutdown();
+        Settings.deleteSingleConnection(CONNECTION_NAME);
+        if (Strings.isNullOrEmpty(activeConnectionName)) {
+          Settings.unsetActiveConnectionName();
+        } else {
+          Settings.setActiveConnectionName(activeConnectionName);
+        }
+      }
+    }
+  }
+
+  private static Recorder[] drive(String base, LoopbackDirectory directory, int[] mix, int clients, double rate,
+      long durationNanos) throws InterruptedException {
+    var recorders = new Recorder[clients];
+    var done = new CountDownLatch(clients);
+    var begin = System.nanoTime();
+    var deadline = begin + durationNanos;
+    // Each client sends its share of the rate, offset from the others so the
+    // requests are spread out evenly.
+    var intervalNanos = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    for (int c = 0; c < clients; c++) {
+      var recorder = new Recorder();
+      recorders[c] = recorder;
+      var offset = intervalNanos * c / clients;
+      var client = new Thread(() -> {
+        var id = Thread.currentThread().getId();
+        var allocatedBefore = threads.getThreadAllocatedBytes(id);
+        try {
+          var due = begin + offset;
+          while (true) {
+            long start;
+            if (intervalNanos > 0) {
+              // Latency counts from when the request was due, however late
+              // it's sent.
+              start = due;
+              due += intervalNanos;
+              long wait;
+              while ((wait = start - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+              }
+            } else {
+              start = System.nanoTime();
+            }
+            if (start >= deadline) {
+              break;
+            }
+            var type = pick(mix);
+            var ok = request(base + path(type, directory), recorder);
+            recorder.record(type, System.nanoTime() - start, ok);
+          }
+        } finally {
+          recorder.allocated = threads.getThreadAllocatedBytes(id) - allocatedBefore;
+          done.countDown();
+        }
+      }, "load-client-" + c);
+      client.setDaemon(true);
+      client.start();
+    }
+    done.await();
+    return recorders;
+  }
+
+  private static int pick(int[] mix) {
+    var total = Arrays.stream(mix).sum();
+    var n = ThreadLocalRandom.current().nextInt(total);
+    for (int i = 0; i < mix.length; i++) {
+      n -= mix[i];
+      if (n < 0) {
+        return i;
+      }
+    }
+    return mix.length - 1;
+  }
+
+  private static String path(int type, LoopbackDirectory directory) {
+    var random = ThreadLocalRandom.current();
+    var i = random.nextInt(directory.getEntries());
+    switch (REQUEST_TYPES[type]) {
+    case "lookup":
+      return "/search?filter=" + encode(String.format("(uid=user%06d)", i)) + "&attr=cn+mail+title";
+    case "unit":
+      // About a sixth of one unit.
+      return String.format("/search?rdn=%s&scope=onelevel&filter=%s",
+          encode(String.format("ou=unit%d,ou=people", random.nextInt(directory.getUnits()))),
+          encode("(&(objectClass=person)(title=Manager))"));
+    default:
+      return "/record/" + directory.dn(i).replace(',', ';');
+    }
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static boolean request(String url, Recorder recorder) {
+    try {
+      var connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setRequestProperty("Accept", ContentTypes.TYPES.get("json"));
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      var status = connection.getResponseCode();
+      // Read it all so the connection can be kept alive.
+      try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+        if (in != null) {
+          var buffer = new byte[8192];
+          int n;
+          while ((n = in.read(buffer)) != -1) {
+            recorder.bytes += n;
+          }
+        }
+      }
+      return status == HttpStatus.OK.getStatusCode();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static long gcMillis() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(gc -> Math.max(0, gc.getCollectionTime()))
+        .sum();
+  }
+
+  private static Map<String, Object> report(Map<String, String> options, Recorder[] recorders, long elapsedNanos,
+      long allocated, long gcMillis) {
+    var seconds = elapsedNanos / 1e9;
+    var report = new LinkedHashMap<String, Object>();
+    report.put("options", options);
+    var all = new ArrayList<long[]>();
+    var requests = 0L;
+    var errors = 0L;
+    var bytes = 0L;
+    for (var recorder : recorders) {
+      bytes += recorder.bytes;
+    }
+    System.out.println();
+    System.out.printf("%-8s %10s %8s %10s %9s %9s %9s %9s %9s%n", "request", "count", "errors", "req/s", "p50 ms",
+        "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    var types = new LinkedHashMap<String, Object>();
+    for (int t = 0; t < REQUEST_TYPES.length; t++) {
+      var latencies = new long[0];
+      var typeErrors = 0L;
+      for (var recorder : recorders) {
+        latencies = concat(latencies, recorder.latencies(t));
+        typeErrors += recorder.errors[t];
+      }
+      all.add(latencies);
+      requests += latencies.length;
+      errors += typeErrors;
+      if (latencies.length > 0) {
+        types.put(REQUEST_TYPES[t], summarize(REQUEST_TYPES[t], latencies, typeErrors, seconds));
+      }
+    }
+    var latencies = new long[0];
+    for (var l : all) {
+      latencies = concat(latencies, l);
+    }
+    report.put("requests", types);
+    report.put("total", summarize("total", latencies, errors, seconds));
+    System.out.println();
+    System.out.printf("Throughput: %.1f requests/s, %.2f MB/s received%n", requests / seconds, bytes / seconds / 1e6);
+    System.out.printf("Allocated by Pike and the directory: %.1f MB/s, %.1f KB/request%n", allocated / seconds / 1e6,
+        requests == 0 ? 0.0 : allocated / 1024.0 / requests);
+    System.out.printf("GC time: %d ms (%.2f%%)%n", gcMillis, gcMillis / 10.0 / seconds);
+    report.put("throughput", requests / seconds);
+    report.put("bytesPerSecond", bytes / seconds);
+    report.put("allocatedBytesPerSecond", allocated / seconds);
+    report.put("allocatedBytesPerRequest", requests == 0 ? 0 : allocated / requests);
+    report.put("gcMillis", gcMillis);
+    return report;
+  }
+
+  private static Map<String, Object> summarize(String name, long[] latencies, long errors, double seconds) {
+    Arrays.sort(latencies);
+    var summary = new LinkedHashMap<String, Object>();
+    summary.put("count", latencies.length);
+    summary.put("errors", errors);
+    summary.put("throughput", latencies.length / seconds);
+    var percentiles = new double[] { 50, 90, 99, 99.9, 100 };
+    var keys = new String[] { "p50", "p90", "p99", "p999", "max" };
+    var millis = new double[percentiles.length];
+    for (int i = 0; i < percentiles.length; i++) {
+      millis[i] = percentile(latencies, percentiles[i]) / 1e6;
+      summary.put(keys[i] + "Millis", millis[i]);
+    }
+    System.out.printf("%-8s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, latencies.length, errors,
+        latencies.length / seconds, millis[0], millis[1], millis[2], millis[3], millis[4]);
+    return summary;
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    var rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+  }
+
+  private static long[] concat(long[] a, long[] b) {
+    var c = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+
+  private static void showUsageAndExit(Map<String, String> defaults) {
+    System.err.printf("Usage: %s [--option value]...%n", LoadTest.class.getName());
+    System.err.println();
+    System.err.println("Options (with their defaults):");
+    System.err.println();
+    var descriptions = List.of("people in the directory", "organizational units they're spread over",
+        "groups each person is a member of", "milliseconds added to every bind and search",
+        "most extra random milliseconds added on top", "concurrent HTTP clients",
+        "requests per second due from all clients together, 0 to send each when the last is answered",
+        "seconds to warm up",
+        "seconds to measure", "Pike's executor: dispatcher, pool or virtual", "Pike's pool threads",
+        "search cache seconds for the connection (-1 for Pike's default)",
+        "weights of uid lookups, unit searches and record reads", "file to write the report to as JSON");
+    var i = 0;
+    for (var option : defaults.entrySet()) {
+      System.err.printf("  --%-10s %s (%s)%n", option.getKey(), descriptions.get(i++), option.getValue());
+    }
+    System.exit(1);
+  }
+
+  /**
+   * Latencies and errors seen by one client.
+   */
+  private static final class Recorder {
+
+    private final long[][] latencies = new long[REQUEST_TYPES.length][1024];
+
+    private final int[] counts = new int[REQUEST_TYPES.length];
+
+    private final long[] errors = new long[REQUEST_TYPES.length];
+
+    private long bytes = 0;
+
+    private long allocated = 0;
+
+    private void record(int type, long nanos, boolean ok) {
+      if (!ok) {
+        errors[type]++;
+      }
+      if (counts[type] == latencies[type].length) {
+        latencies[type] = Arrays.copyOf(latencies[type], counts[type] * 2);
+      }
+      latencies[type][counts[type]++] = nanos;
+    }
+
+    private long[] latencies(int type) {
+      return Arrays.copyOf(latencies[type], counts[type]);
+    }
+  }
+
+  /**
+   * Adds up what the garbage collector frees. What was allocated between two
+   * points is what was freed in between plus how much more of the heap is in
+   * use.
+   */
+  private static final class HeapAllocation {
+
+    private final AtomicLong freed = new AtomicLong();
+
+    private final Set<String> heapPools = new HashSet<>();
+
+    private HeapAllocation() {
+      for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          heapPools.add(pool.getName());
+        }
+      }
+      for (var gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        if (gc instanceof NotificationEmitter) {
+          ((NotificationEmitter) gc).addNotificationListener(this::collected, null, null);
+        }
+      }
+    }
+
+    private void collected(Notification notification, Object handback) {
+      if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      var gcInfo = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+      var before = 0L;
+      var after = 0L;
+      for (var pool : heapPools) {
+        var usage = gcInfo.getMemoryUsageBeforeGc().get(pool);
+        before += usage == null ? 0 : usage.getUsed();
+        usage = gcInfo.getMemoryUsageAfterGc().get(pool);
+        after += usage == null ? 0 : usage.getUsed();
+      }
+      freed.addAndGet(Math.max(0, before - after));
+    }
+
+    private long allocated() {
+      return freed.get() + ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+  }
+}
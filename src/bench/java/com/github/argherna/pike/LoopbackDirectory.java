@@ -0,0 +1,178 @@
+package com.github.argherna.pike;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.schema.Schema;
+
+/**
+ * An LDAP server on the loopback interface holding a generated tree of people,
+ * with a delay added to every bind and search to stand in for a remote
+ * directory.
+ *
+ * <p>
+ * People are spread evenly over organizational units under
+ * {@code ou=people,dc=example,dc=com}, named {@code ou=unit0},
+ * {@code ou=unit1} and so on.
+ */
+final class LoopbackDirectory implements AutoCloseable {
+
+  static final String SUFFIX = "dc=example,dc=com";
+
+  static final String BIND_DN = "cn=Directory Manager";
+
+  static final String BIND_PASSWORD = "password";
+
+  // memberOf isn't in the standard schema.
+  private static final String MEMBER_OF_ATTRIBUTE_TYPE = "( 1.2.840.113556.1.2.102 NAME 'memberOf' "
+      + "EQUALITY distinguishedNameMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.12 )";
+
+  private final InMemoryDirectoryServer server;
+
+  private final int entries;
+
+  private final int units;
+
+  /**
+   * Starts a directory.
+   *
+   * @param entries      number of people
+   * @param units        number of organizational units to spread them over
+   * @param groups       number of groups each person is a member of
+   * @param latencyMillis delay added to each bind and search
+   * @param jitterMillis  most extra random delay added on top of it
+   * @throws LDAPException if the directory couldn't be started or filled
+   */
+  LoopbackDirectory(int entries, int units, int groups, long latencyMillis, long jitterMillis)
+      throws LDAPException {
+    this.entries = entries;
+    this.units = Math.max(1, units);
+    var config = new InMemoryDirectoryServerConfig(SUFFIX);
+    config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+    config.setListenerConfigs(
+        InMemoryListenerConfig.createLDAPConfig("loopback", InetAddress.getLoopbackAddress(), 0, null));
+    config.setSchema(Schema.mergeSchemas(Schema.getDefaultStandardSchema(), new Schema(new Entry("cn=schema",
+        new Attribute("attributeTypes", MEMBER_OF_ATTRIBUTE_TYPE)))));
+    config.setMaxChangeLogEntries(0);
+    // Index what the load test looks up, as a real directory would.
+    config.setEqualityIndexAttributes("objectClass", "uid", "cn", "mail", "title", "memberOf");
+    if (latencyMillis > 0 || jitterMillis > 0) {
+      config.addInMemoryOperationInterceptor(new LatencyInterceptor(latencyMillis, jitterMillis));
+    }
+    server = new InMemoryDirectoryServer(config);
+    populate(groups);
+    server.startListening();
+  }
+
+  private void populate(int groups) throws LDAPException {
+    server.add(new Entry(SUFFIX, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+    server.add(new Entry(LdapEntries.BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"),
+        new Attribute("ou", "people")));
+    for (int u = 0; u < units; u++) {
+      server.add(new Entry(unitDn(u), new Attribute("objectClass", "top", "organizationalUnit"),
+          new Attribute("ou", "unit" + u)));
+    }
+    try {
+      for (int i = 0; i < entries; i++) {
+        var entry = new Entry(dn(i));
+        var attributes = LdapEntries.person(i, groups).getAll();
+        while (attributes.hasMore()) {
+          var attribute = attributes.next();
+          if (attribute.getID().equals("modifyTimestamp")) {
+            // The directory keeps its own.
+            continue;
+          }
+          var values = new String[attribute.size()];
+          for (int v = 0; v < values.length; v++) {
+            values[v] = attribute.get(v).toString();
+          }
+          entry.addAttribute(attribute.getID(), values);
+        }
+        // Allows memberOf.
+        entry.addAttribute("objectClass", "extensibleObject");
+        server.add(entry);
+      }
+    } catch (NamingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return the URL to connect to the directory with
+   */
+  String getLdapUrl() {
+    return String.format("ldap://127.0.0.1:%d", server.getListenPort());
+  }
+
+  /**
+   * @param unit the organizational unit's number
+   * @return its distinguished name
+   */
+  String unitDn(int unit) {
+    return String.format("ou=unit%d,%s", unit, LdapEntries.BASE_DN);
+  }
+
+  /**
+   * @param i the person's number
+   * @return the distinguished name of the i-th person
+   */
+  String dn(int i) {
+    return String.format("uid=user%06d,%s", i, unitDn(i % units));
+  }
+
+  int getEntries() {
+    return entries;
+  }
+
+  int getUnits() {
+    return units;
+  }
+
+  @Override
+  public void close() {
+    server.shutDown(true);
+  }
+
+  private static final class LatencyInterceptor extends InMemoryOperationInterceptor {
+
+    private final long latencyMillis;
+
+    private final long jitterMillis;
+
+    private LatencyInterceptor(long latencyMillis, long jitterMillis) {
+      this.latencyMillis = latencyMillis;
+      this.jitterMillis = jitterMillis;
+    }
+
+    @Override
+    public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+      pause();
+    }
+
+    @Override
+    public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+      pause();
+    }
+
+    private void pause() {
+      var millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+      try {
+        TimeUnit.MILLISECONDS.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
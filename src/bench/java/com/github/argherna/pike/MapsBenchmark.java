@@ -0,0 +1,49 @@
+package com.github.argherna.pike;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning directory entries into maps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapsBenchmark {
+
+  @Param({ "0", "20", "200" })
+  int groups;
+
+  private String dn;
+
+  private Attributes attributes;
+
+  @Setup
+  public void setUp() {
+    dn = LdapEntries.dn(42);
+    attributes = LdapEntries.person(42, groups);
+  }
+
+  @Benchmark
+  public Map<String, Object> toMap() throws NamingException {
+    return Maps.toMap(dn, attributes);
+  }
+}
@@ -0,0 +1,78 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tagging responses with an ETag, both for handlers that write the body
+ * themselves (captured and checksummed) and for those that hand it to
+ * {@link Http#sendResponse(com.sun.net.httpserver.HttpExchange, HttpStatus, byte[], String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotModifiedFilterBenchmark {
+
+  @Param({ "1024", "65536", "1048576" })
+  int size;
+
+  private final NotModifiedFilter filter = new NotModifiedFilter();
+
+  private Filter.Chain capturing;
+
+  private Filter.Chain inline;
+
+  @Setup
+  public void setUp() {
+    var content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) ('a' + i % 26);
+    }
+    HttpHandler writer = exchange -> {
+      exchange.sendResponseHeaders(HttpStatus.OK.getStatusCode(), content.length);
+      try (var out = exchange.getResponseBody()) {
+        // Written in pieces the way a handler streaming a template would.
+        for (int off = 0; off < content.length; off += 8192) {
+          out.write(content, off, Math.min(8192, content.length - off));
+        }
+      }
+      exchange.close();
+    };
+    capturing = new Filter.Chain(List.of(), writer);
+    inline = new Filter.Chain(List.of(),
+        exchange -> Http.sendResponse(exchange, HttpStatus.OK, content, ContentTypes.TYPES.get("json")));
+  }
+
+  @Benchmark
+  public int capture() throws IOException {
+    var exchange = new BenchHttpExchange("GET", "/connections");
+    filter.doFilter(exchange, capturing);
+    return exchange.getResponseCode();
+  }
+
+  @Benchmark
+  public int sendResponse() throws IOException {
+    var exchange = new BenchHttpExchange("GET", "/connections");
+    filter.doFilter(exchange, inline);
+    return exchange.getResponseCode();
+  }
+}
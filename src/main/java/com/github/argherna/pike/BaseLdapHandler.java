@@ -1,38 +1,60 @@
 package com.github.argherna.pike;
 
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
-import java.util.logging.Logger;
+import java.util.Map;
 
-import javax.naming.Context;
-import javax.naming.directory.DirContext;
-import javax.naming.ldap.InitialLdapContext;
-import javax.naming.ldap.StartTlsRequest;
-import javax.naming.ldap.StartTlsResponse;
+import javax.naming.NamingException;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 abstract class BaseLdapHandler implements HttpHandler {
 
-  private static final Logger LOGGER = Logger.getLogger(BaseLdapHandler.class.getName());
-
   @Override
   public void handle(HttpExchange exchange) throws IOException {
-    var headers = exchange.getRequestHeaders();
-    if (headers.containsKey("Accept")) {
-      List<String> accept = headers.get("Accept");
-      if (accept.contains(ContentTypes.TYPES.get("json"))) {
-        doJson(exchange);
-      } else {
-        doHtml(exchange);
+    var timing = ServerTiming.begin();
+    try {
+      dispatch(exchange);
+    } finally {
+      timing.end(exchange);
+    }
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException {
+    if (isDataRequested(exchange)) {
+      try {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+          doHead(exchange);
+        } else {
+          doJson(exchange);
+        }
+      } catch (ConcurrencyLimiter.LimitExceededException e) {
+        var responseHeaders = new HashMap<String, List<String>>();
+        responseHeaders.put("Retry-After", List.of(String.valueOf(e.getRetryAfterSeconds())));
+        Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+        Http.sendResponse(exchange, HttpStatus.SERVICE_UNAVAILABLE, Json.encode(Map.of("error", e.getMessage())),
+            responseHeaders);
       }
     } else {
       doHtml(exchange);
     }
   }
 
+  /**
+   * Decides between the page and the data behind it. Override to serve data
+   * in other formats too.
+   *
+   * @param exchange the exchange
+   * @return {@code true} if the request is for data, {@code false} if it's for
+   *         the page
+   */
+  boolean isDataRequested(HttpExchange exchange) {
+    List<String> accept = exchange.getRequestHeaders().get("Accept");
+    return accept != null && accept.contains(ContentTypes.TYPES.get("json"));
+  }
+
   void doHtml(HttpExchange exchange) throws IOException {
     internalDoHtml(exchange);
   }
@@ -47,41 +69,48 @@ abstract class BaseLdapHandler implements HttpHandler {
       return;
     }
 
-    Http.sendResponse(exchange, status, IO.loadResourceFromClasspath(getHtmlTemplateName()), contentType);
+    Http.sendResource(exchange, status, IO.getResource(getHtmlTemplateName()), contentType);
   }
 
   abstract String getHtmlTemplateName();
 
   abstract void doJson(HttpExchange exchange) throws IOException;
 
-  DirContext getLdapContext() throws IOException {
+  /**
+   * Handles a HEAD request for JSON. Override to avoid doing the work of
+   * {@link #doJson(HttpExchange)} for a body that won't be sent.
+   *
+   * @param exchange the exchange
+   * @throws IOException if the response couldn't be sent
+   */
+  void doHead(HttpExchange exchange) throws IOException {
+    doJson(exchange);
+  }
+
+  /**
+   * Borrows a bound context for the active connection from its pool once the
+   * connection's concurrency limiter allows it. Close the returned lease to
+   * give the context and the limiter's permit back.
+   *
+   * @return a lease on a pooled LDAP context
+   * @throws IOException if the context couldn't be created
+   * @throws ConcurrencyLimiter.LimitExceededException if the directory is busy
+   */
+  LdapContextPool.PooledContext getLdapContext() throws IOException {
+    var connectionName = Settings.getActiveConnectionName();
+    var start = System.nanoTime();
+    var permit = ConcurrencyLimiter.forConnection(connectionName).acquire();
+    ServerTiming.record("queue", System.nanoTime() - start);
     try {
-      var connection = Settings.getConnectionSettings(Settings.getActiveConnectionName());
-      var env = new Hashtable<String, Object>();
-      env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-      env.put(Context.PROVIDER_URL, connection.getLdapUrl());
-      var ldapContext = new InitialLdapContext(env, null);
-      if (connection.getUseStartTls()) {
-        LOGGER.fine("Starting TLS session...");
-        var tls = (StartTlsResponse) ldapContext.extendedOperation(new StartTlsRequest());
-        tls.negotiate();
-      }
-      ldapContext.addToEnvironment(Context.SECURITY_AUTHENTICATION, connection.getAuthType().toLowerCase());
-      if (!connection.getAuthType().toLowerCase().equals("none")) {
-        LOGGER.fine("Authenticating...");
-        ldapContext.addToEnvironment(Context.SECURITY_PRINCIPAL, connection.getBindDn());
-        ldapContext.addToEnvironment(Context.SECURITY_CREDENTIALS,
-            new String(Settings.byteArrayToSecretText(connection.getBindDn(), connection.getPassword())));
-      }
-      ldapContext.addToEnvironment(Context.REFERRAL, connection.getReferralPolicy().toLowerCase());
-      LOGGER.fine("Ldap context successfully created!");
+      var ldapContext = LdapContextPool.borrow(Settings.getConnectionSettings(connectionName));
+      ldapContext.attach(permit);
       return ldapContext;
-    } catch (Exception e) {
-      if (e instanceof IOException) {
-        throw (IOException) e;
-      } else {
-        throw new RuntimeException(e);
-      }
+    } catch (NamingException e) {
+      permit.close();
+      throw new RuntimeException(e);
+    } catch (RuntimeException e) {
+      permit.close();
+      throw e;
     }
   }
 }
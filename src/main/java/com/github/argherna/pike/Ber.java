@@ -0,0 +1,212 @@
+package com.github.argherna.pike;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+
+/**
+ * Just enough BER to read and write the values of the LDAP controls Pike
+ * sends and the LDIF directories answer.
+ */
+final class Ber {
+
+  static final int INTEGER = 0x02;
+
+  static final int OCTET_STRING = 0x04;
+
+  static final int ENUMERATED = 0x0a;
+
+  static final int SEQUENCE = 0x30;
+
+  private final byte[] bytes;
+
+  private int pos;
+
+  private final int end;
+
+  /**
+   * @param bytes an encoded value to read, {@code null} for none
+   */
+  Ber(byte[] bytes) {
+    this(bytes == null ? new byte[0] : bytes, 0, bytes == null ? 0 : bytes.length);
+  }
+
+  private Ber(byte[] bytes, int pos, int end) {
+    this.bytes = bytes;
+    this.pos = pos;
+    this.end = end;
+  }
+
+  /**
+   * @return {@code true} if there's more to read
+   */
+  boolean hasMore() {
+    return pos < end;
+  }
+
+  /**
+   * @return the tag of the next element
+   * @throws NamingException if there's nothing left
+   */
+  int peek() throws NamingException {
+    if (pos >= end) {
+      throw malformed();
+    }
+    return bytes[pos] & 0xff;
+  }
+
+  /**
+   * Reads a constructed element.
+   *
+   * @param tag its expected tag
+   * @return a reader of its contents
+   * @throws NamingException if the element is malformed or has another tag
+   */
+  Ber readSequence(int tag) throws NamingException {
+    var length = readHeader(tag);
+    var contents = new Ber(bytes, pos, pos + length);
+    pos += length;
+    return contents;
+  }
+
+  /**
+   * @param tag the expected tag
+   * @return the integer read
+   * @throws NamingException if the element is malformed or has another tag
+   */
+  int readInteger(int tag) throws NamingException {
+    return readRawInteger(readHeader(tag));
+  }
+
+  private int readRawInteger(int length) throws NamingException {
+    if (length > 4 || pos + length > end) {
+      throw malformed();
+    }
+    if (length == 0) {
+      return 0;
+    }
+    // Sign-extend from the first byte.
+    var value = (int) bytes[pos++];
+    for (int i = 1; i < length; i++) {
+      value = (value << 8) | (bytes[pos++] & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * @param tag the expected tag
+   * @return the contents of the element read
+   * @throws NamingException if the element is malformed or has another tag
+   */
+  byte[] readOctets(int tag) throws NamingException {
+    var length = readHeader(tag);
+    var octets = Arrays.copyOfRange(bytes, pos, pos + length);
+    pos += length;
+    return octets;
+  }
+
+  /**
+   * @param tag the expected tag
+   * @return the boolean read
+   * @throws NamingException if the element is malformed or has another tag
+   */
+  boolean readBoolean(int tag) throws NamingException {
+    var octets = readOctets(tag);
+    return octets.length > 0 && octets[0] != 0;
+  }
+
+  private int readHeader(int tag) throws NamingException {
+    if (peek() != tag) {
+      throw malformed();
+    }
+    pos++;
+    var first = peek();
+    pos++;
+    var length = first;
+    if (first >= 0x80) {
+      length = 0;
+      for (int i = 0; i < (first & 0x7f); i++) {
+        length = (length << 8) | peek();
+        pos++;
+      }
+    }
+    if (length < 0 || pos + length > end) {
+      throw malformed();
+    }
+    return length;
+  }
+
+  /**
+   * @param tag   the tag
+   * @param value a value that isn't negative
+   * @return the encoded integer
+   */
+  static byte[] integer(int tag, int value) {
+    // Values here are never negative, so the minimal encoding is the
+    // big-endian bytes with a leading zero byte when the high bit is set.
+    var length = 1;
+    while (length < 4 && (value >> (length * 8 - 1)) != 0) {
+      length++;
+    }
+    var contents = new byte[length];
+    for (int i = 0; i < length; i++) {
+      contents[i] = (byte) (value >> ((length - 1 - i) * 8));
+    }
+    return element(tag, contents);
+  }
+
+  /**
+   * @param elements encoded elements
+   * @return a sequence of them
+   */
+  static byte[] sequence(byte[]... elements) {
+    return constructed(SEQUENCE, elements);
+  }
+
+  /**
+   * @param tag      the tag
+   * @param elements encoded elements
+   * @return a constructed element of them
+   */
+  static byte[] constructed(int tag, byte[]... elements) {
+    var contents = new ByteArrayOutputStream();
+    for (var element : elements) {
+      contents.write(element, 0, element.length);
+    }
+    return element(tag, contents.toByteArray());
+  }
+
+  /**
+   * @param tag      the tag
+   * @param contents the contents
+   * @return the encoded element
+   */
+  static byte[] element(int tag, byte[] contents) {
+    var out = new ByteArrayOutputStream(contents.length + 6);
+    out.write(tag);
+    var length = contents.length;
+    if (length < 0x80) {
+      out.write(length);
+    } else if (length < 0x100) {
+      out.write(0x81);
+      out.write(length);
+    } else if (length < 0x10000) {
+      out.write(0x82);
+      out.write(length >> 8);
+      out.write(length);
+    } else {
+      out.write(0x84);
+      out.write(length >> 24);
+      out.write(length >> 16);
+      out.write(length >> 8);
+      out.write(length);
+    }
+    out.write(contents, 0, length);
+    return out.toByteArray();
+  }
+
+  private static NamingException malformed() {
+    return new NamingException("Malformed control value");
+  }
+}
@@ -0,0 +1,234 @@
+package com.github.argherna.pike;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Compresses text and JSON responses with gzip or deflate for clients that
+ * accept it.
+ *
+ * <p>
+ * A response is compressed as it is written and sent chunked, so the body is
+ * never held in memory here. Responses shorter than the minimum size,
+ * responses without a body, partial content and responses that already have a
+ * Content-Encoding are sent as they are.
+ * The ETag of a compressed response gets the encoding appended so it differs
+ * from the ETag of the uncompressed response. The suffix is removed again from
+ * If-None-Match headers before they reach later filters and handlers.
+ *
+ * <p>
+ * Set the {@code pike.compression.minSize} system property to change the
+ * minimum size in bytes (default 1024).
+ */
+class CompressionFilter extends Filter {
+
+  private static final int MIN_SIZE = Integer.getInteger("pike.compression.minSize", 1024);
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final LongAdder COMPRESSED = new LongAdder();
+
+  private static final LongAdder UNCOMPRESSED = new LongAdder();
+
+  private static final LongAdder BYTES_IN = new LongAdder();
+
+  private static final LongAdder BYTES_OUT = new LongAdder();
+
+  @Override
+  public String description() {
+    return "Compresses response bodies with gzip or deflate when the client accepts it.";
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Filter.Chain chain) throws IOException {
+    var encoding = Http.acceptsEncoding(exchange, "gzip") ? "gzip"
+        : Http.acceptsEncoding(exchange, "deflate") ? "deflate" : null;
+    chain.doFilter(encoding == null ? exchange : new CompressingHttpExchange(exchange, encoding));
+  }
+
+  /**
+   * @return number of responses sent compressed and uncompressed, and the
+   *         bytes in and out of compression
+   */
+  static Map<String, Object> getStats() {
+    var bytesIn = BYTES_IN.sum();
+    var bytesOut = BYTES_OUT.sum();
+    return Map.of("compressed", COMPRESSED.sum(), "uncompressed", UNCOMPRESSED.sum(), "bytesIn", bytesIn,
+        "bytesOut", bytesOut, "ratio", bytesIn == 0 ? 1.0 : (double) bytesOut / bytesIn);
+  }
+
+  private static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    var mediaType = contentType.split(";")[0].trim().toLowerCase();
+    return mediaType.startsWith("text/") || mediaType.equals("application/json")
+        || mediaType.equals("application/javascript") || mediaType.equals("application/xml")
+        || mediaType.equals("application/x-ndjson") || mediaType.endsWith("+json") || mediaType.endsWith("+xml");
+  }
+
+  private static String tag(String eTag, String encoding) {
+    // Goes inside the quotes of a quoted (strong or weak) tag.
+    return eTag.endsWith("\"") ? String.format("%s-%s\"", eTag.substring(0, eTag.length() - 1), encoding)
+        : String.format("%s-%s", eTag, encoding);
+  }
+
+  private static String untag(String eTag, String encoding) {
+    var suffix = "-" + encoding;
+    if (eTag.endsWith(suffix + "\"")) {
+      return eTag.substring(0, eTag.length() - suffix.length() - 1) + "\"";
+    } else if (eTag.endsWith(suffix)) {
+      return eTag.substring(0, eTag.length() - suffix.length());
+    }
+    return eTag;
+  }
+
+  private static final class CompressingHttpExchange extends DelegatingHttpExchange {
+
+    private final String encoding;
+
+    private final Headers requestHeaders;
+
+    private final String ifNoneMatch;
+
+    private OutputStream compressed;
+
+    private boolean closed = false;
+
+    private CompressingHttpExchange(HttpExchange exchange, String encoding) {
+      super(exchange);
+      this.encoding = encoding;
+      this.ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+      if (ifNoneMatch == null) {
+        this.requestHeaders = exchange.getRequestHeaders();
+      } else {
+        // Keep the tags as sent for handlers that tag their own compressed
+        // content, and add them without the suffix for everything else.
+        var tags = new StringBuilder(ifNoneMatch);
+        for (var tag : ifNoneMatch.split(",")) {
+          var untagged = untag(tag.trim(), encoding);
+          if (!untagged.equals(tag.trim())) {
+            tags.append(", ").append(untagged);
+          }
+        }
+        this.requestHeaders = new Headers();
+        this.requestHeaders.putAll(exchange.getRequestHeaders());
+        this.requestHeaders.set("If-None-Match", tags.toString());
+      }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+      return requestHeaders;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+      var headers = getResponseHeaders();
+      var compressible = isCompressible(headers.getFirst("Content-Type"));
+      if (compressible && !headers.containsKey("Vary")) {
+        headers.set("Vary", "Accept-Encoding");
+      }
+      if (rCode == HttpStatus.NOT_MODIFIED.getStatusCode()) {
+        retagNotModified(headers);
+      }
+      if (!compressible || responseLength == -1 || (responseLength > 0 && responseLength < MIN_SIZE)
+          || headers.containsKey("Content-Encoding") || rCode == HttpStatus.NO_CONTENT.getStatusCode()
+          || rCode == HttpStatus.NOT_MODIFIED.getStatusCode()
+          || rCode == HttpStatus.PARTIAL_CONTENT.getStatusCode()) {
+        if (responseLength != -1) {
+          UNCOMPRESSED.increment();
+        }
+        super.sendResponseHeaders(rCode, responseLength);
+      } else {
+        // The compressed length isn't known until the body has been written,
+        // so a body of known length is sent chunked too.
+        setEncodingHeaders(headers);
+        COMPRESSED.increment();
+        super.sendResponseHeaders(rCode, 0);
+        // Sync flush so flushing the stream gets what has been written so far
+        // to the client.
+        var out = new CountingOutputStream(exchange.getResponseBody(), BYTES_OUT);
+        compressed = new CountingOutputStream(
+            encoding.equals("gzip") ? new GZIPOutputStream(out, BUFFER_SIZE, true)
+                : new DeflaterOutputStream(out, new Deflater(), BUFFER_SIZE, true),
+            BYTES_IN);
+      }
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      if (compressed != null) {
+        return compressed;
+      }
+      return super.getResponseBody();
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (compressed != null) {
+          compressed.close();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        super.close();
+      }
+    }
+
+    private void setEncodingHeaders(Headers headers) {
+      headers.set("Content-Encoding", encoding);
+      var eTag = headers.getFirst("ETag");
+      if (eTag != null) {
+        headers.set("ETag", tag(eTag, encoding));
+      }
+    }
+
+    private void retagNotModified(Headers headers) {
+      // The client validated its compressed copy, so answer with the tag it
+      // knows that copy by.
+      var eTag = headers.getFirst("ETag");
+      if (eTag != null && !headers.containsKey("Content-Encoding")
+          && Http.eTagMatches(ifNoneMatch, tag(eTag, encoding))) {
+        headers.set("ETag", tag(eTag, encoding));
+      }
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    private final LongAdder count;
+
+    private CountingOutputStream(OutputStream out, LongAdder count) {
+      super(out);
+      this.count = count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count.increment();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count.add(len);
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package com.github.argherna.pike;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many LDAP operations run at once against each connection, and
+ * adjusts the limit to how quickly the directory answers.
+ *
+ * <p>
+ * The limit grows by about one for every limit's worth of operations that
+ * answer in good time while the limit is in use, and is cut by a quarter when
+ * an operation takes more than a few times the lowest latency seen lately for
+ * that kind of operation, so quick record reads don't make every search look
+ * slow. Only one cut is made for operations that were started under the same
+ * limit, so a burst of slow answers doesn't collapse it. The limit never lets
+ * more operations run than the connection's pool has contexts for once those
+ * held by open paging cursors are set aside. Operations over the limit
+ * wait their turn for a short while, and are turned away with a
+ * {@link LimitExceededException} if the wait is too long or too many are
+ * already waiting.
+ *
+ * <p>
+ * The limiter is tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.limiter.initialLimit}</dt>
+ * <dd>operations allowed at once to begin with (default 4)</dd>
+ * <dt>{@code pike.limiter.maxLimit}</dt>
+ * <dd>most operations ever allowed at once (default
+ * {@code pike.pool.maxSize}, less the open paging cursors and jobs between
+ * pages)</dd>
+ * <dt>{@code pike.limiter.tolerance}</dt>
+ * <dd>how many times the lowest latency an operation can take before the
+ * limit is cut (default 2.0)</dd>
+ * <dt>{@code pike.limiter.queueTimeout}</dt>
+ * <dd>milliseconds an operation waits for its turn (default 500)</dd>
+ * <dt>{@code pike.limiter.maxQueue}</dt>
+ * <dd>operations allowed to wait at once (default 32)</dd>
+ * </dl>
+ */
+final class ConcurrencyLimiter {
+
+  private static final Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class.getName());
+
+  private static final int MAX_LIMIT = Math.max(1,
+      Integer.getInteger("pike.limiter.maxLimit", LdapContextPool.MAX_SIZE));
+
+  private static final int INITIAL_LIMIT = Math.min(MAX_LIMIT,
+      Math.max(1, Integer.getInteger("pike.limiter.initialLimit", 4)));
+
+  private static final double TOLERANCE = Double.parseDouble(System.getProperty("pike.limiter.tolerance", "2.0"));
+
+  private static final long QUEUE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+      .toNanos(Long.getLong("pike.limiter.queueTimeout", 500));
+
+  private static final int MAX_QUEUE = Integer.getInteger("pike.limiter.maxQueue", 32);
+
+  private static final double BACKOFF = 0.75;
+
+  // Answers quicker than this are never slow, however quick the directory
+  // usually is.
+  private static final long MIN_SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  // How far the baseline moves towards a slower answer, so it forgets a
+  // quick answer from long ago.
+  private static final double BASELINE_DRIFT = 0.01;
+
+  private static final Map<String, ConcurrencyLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+  private final String connectionName;
+
+  private final LongAdder accepted = new LongAdder();
+
+  private final LongAdder queued = new LongAdder();
+
+  private final LongAdder rejected = new LongAdder();
+
+  private double limit = INITIAL_LIMIT;
+
+  private int inFlight = 0;
+
+  private int waiting = 0;
+
+  // Lowest latency seen lately for each kind of operation.
+  private final Map<String, Double> baselineNanos = new HashMap<>();
+
+  private long epoch = 0;
+
+  // Permits from before the last reset timed the old directory.
+  private long resetEpoch = 0;
+
+  private ConcurrencyLimiter(String connectionName) {
+    this.connectionName = connectionName;
+  }
+
+  /**
+   * Returns the limiter for a connection.
+   *
+   * @param connectionName the connection name
+   * @return the limiter
+   */
+  static ConcurrencyLimiter forConnection(String connectionName) {
+    return LIMITERS.computeIfAbsent(connectionName, ConcurrencyLimiter::new);
+  }
+
+  /**
+   * Forgets what was learned about a connection, for when it now points
+   * somewhere else or is gone. The limiter itself is kept, so operations
+   * still running keep counting against the connection's limit.
+   *
+   * @param connectionName the connection name
+   */
+  static void evict(String connectionName) {
+    var limiter = LIMITERS.get(connectionName);
+    if (limiter != null) {
+      limiter.reset();
+    }
+  }
+
+  /**
+   * @return the current limit, operations running and waiting, and counts for
+   *         each connection
+   */
+  static Map<String, Object> getStats() {
+    var stats = new HashMap<String, Object>();
+    LIMITERS.forEach((name, limiter) -> stats.put(name, limiter.stats()));
+    return stats;
+  }
+
+  /**
+   * Waits for a turn to run an operation.
+   *
+   * @return a permit to close when the operation is done
+   * @throws LimitExceededException if there wasn't a turn in time
+   */
+  Permit acquire() {
+    synchronized (this) {
+      if (inFlight < allowed()) {
+        return admit();
+      }
+      if (waiting >= MAX_QUEUE) {
+        throw reject();
+      }
+      queued.increment();
+      waiting++;
+      try {
+        var deadline = System.nanoTime() + QUEUE_TIMEOUT_NANOS;
+        while (inFlight >= allowed()) {
+          var remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw reject();
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return admit();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } finally {
+        waiting--;
+      }
+    }
+  }
+
+  // The limit, held to the contexts the pool has left once the open cursors
+  // and the jobs between pages have theirs.
+  private int allowed() {
+    return Math.max(1, Math.min((int) limit,
+        LdapContextPool.MAX_SIZE - SearchCursors.countOpen(connectionName) - Jobs.countHolding(connectionName)));
+  }
+
+  private Permit admit() {
+    inFlight++;
+    accepted.increment();
+    return new Permit(this, epoch);
+  }
+
+  private LimitExceededException reject() {
+    rejected.increment();
+    // Long enough for the operations ahead to have finished at the usual
+    // pace of the slowest kind.
+    var slowest = baselineNanos.isEmpty() ? 0 : Collections.max(baselineNanos.values());
+    var allowed = allowed();
+    var retryAfter = Math.max(1, (long) Math.ceil((waiting + 1) * slowest / allowed / 1e9));
+    LOGGER.fine(() -> String.format("Turning away an operation on %s, limit is %d", connectionName, allowed));
+    return new LimitExceededException(
+        String.format("Too many requests for the %s connection, try again later", connectionName), retryAfter);
+  }
+
+  private synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  private synchronized void reset() {
+    limit = INITIAL_LIMIT;
+    baselineNanos.clear();
+    resetEpoch = ++epoch;
+    notifyAll();
+  }
+
+  private synchronized void sample(String operation, long nanos, long permitEpoch) {
+    if (permitEpoch < resetEpoch) {
+      return;
+    }
+    var baseline = baselineNanos.merge(operation, (double) nanos,
+        (last, next) -> next < last ? next : last + (next - last) * BASELINE_DRIFT);
+    if (nanos > MIN_SLOW_NANOS && nanos > baseline * TOLERANCE) {
+      if (permitEpoch == epoch) {
+        epoch++;
+        limit = Math.max(1, limit * BACKOFF);
+        LOGGER.fine(() -> String.format("%s is slowing down, limit cut to %d", connectionName, (int) limit));
+      }
+    } else if (inFlight >= allowed()) {
+      // Only grow a limit that is actually being used.
+      limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+      notifyAll();
+    }
+  }
+
+  private synchronized Map<String, Object> stats() {
+    var stats = new HashMap<String, Object>(Map.of("limit", allowed(), "inFlight", inFlight, "waiting", waiting,
+        "accepted", accepted.sum(), "queued", queued.sum(), "rejected", rejected.sum()));
+    baselineNanos.forEach((operation, nanos) -> stats.put(operation + "BaselineMillis", nanos / 1e6));
+    return stats;
+  }
+
+  /**
+   * A turn to run operations. Closing it gives the turn up.
+   */
+  static final class Permit implements AutoCloseable {
+
+    private final ConcurrencyLimiter limiter;
+
+    private final long epoch;
+
+    private boolean released = false;
+
+    private Permit(ConcurrencyLimiter limiter, long epoch) {
+      this.limiter = limiter;
+      this.epoch = epoch;
+    }
+
+    /**
+     * Reports how long an operation took.
+     *
+     * @param operation the operation's name, which sets the latency it's
+     *                  compared with
+     * @param nanos     the operation's latency in nanoseconds
+     */
+    void sample(String operation, long nanos) {
+      limiter.sample(operation, nanos, epoch);
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        limiter.release();
+      }
+    }
+  }
+
+  /**
+   * Thrown when there are too many operations running and waiting.
+   */
+  static final class LimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    LimitExceededException(String message, long retryAfterSeconds) {
+      super(message);
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return seconds the client should wait before trying again
+     */
+    long getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+}
@@ -52,7 +52,7 @@ class ConnectionHandler implements HttpHandler {
   }
 
   private void doGetHtml(HttpExchange exchange) throws IOException {
-    Http.sendResponse(exchange, HttpStatus.OK, IO.loadResourceFromClasspath("/templates/connection.html"),
+    Http.sendResource(exchange, HttpStatus.OK, IO.getResource("/templates/connection.html"),
         ContentTypes.TYPES.get("html"));
   }
 
@@ -63,7 +63,7 @@ class ConnectionHandler implements HttpHandler {
     var status = HttpStatus.OK;
     if (!name.isEmpty()) {
       try {
-        content = Json.renderObject(Maps.toMap(Settings.getConnectionSettings(name))).getBytes();
+        content = Settings.getConnectionJson(name).toString().getBytes();
       } catch (Exception e) {
         if (e instanceof IOException) {
           throw (IOException) e;
@@ -101,11 +101,26 @@ class ConnectionHandler implements HttpHandler {
     var useStartTls = connectionSettings.get("usestarttls") != null
         ? Boolean.valueOf(connectionSettings.get("usestarttls").get(0))
         : false;
+    long searchCacheTtl;
+    long searchTimeLimit;
+    try {
+      searchCacheTtl = getSeconds(connectionSettings, "searchcachettl");
+      searchTimeLimit = getSeconds(connectionSettings, "searchtimelimit");
+    } catch (IllegalArgumentException e) {
+      var status = HttpStatus.BAD_REQUEST;
+      Http.sendResponse(exchange, status, Html.renderError(status, e.getMessage()).getBytes(),
+          ContentTypes.TYPES.get("html"));
+      return;
+    }
 
     try {
       Settings.saveConnectionSettings(new Settings.ConnectionSettings.Builder(name).ldapUrl(ldapUrl).baseDn(baseDn)
           .authType(authType).bindDn(bindDn).password(Settings.secretToByteArray(bindDn, password.getBytes()))
-          .referralPolicy(referralPolicy).useStartTls(useStartTls).build());
+          .referralPolicy(referralPolicy).useStartTls(useStartTls).searchCacheTtl(searchCacheTtl)
+          .searchTimeLimit(searchTimeLimit).build());
+      SearchCache.invalidate(name);
+      RecordCache.invalidate(name);
+      ConcurrencyLimiter.evict(name);
     } catch (Exception e) {
       if (e instanceof IOException) {
         throw (IOException) e;
@@ -120,6 +135,31 @@ class ConnectionHandler implements HttpHandler {
         "/connection/" + name);
   }
 
+  /**
+   * Reads a number of seconds from the posted settings.
+   *
+   * @param connectionSettings the posted settings
+   * @param name               the setting's name
+   * @return the seconds, or -1 if the setting is missing or empty
+   * @throws IllegalArgumentException if the setting isn't a whole number of
+   *                                  seconds that is 0 or more
+   */
+  private static long getSeconds(Map<String, List<String>> connectionSettings, String name) {
+    var values = connectionSettings.get(name);
+    if (values == null || values.get(0).trim().isEmpty()) {
+      return -1L;
+    }
+    try {
+      var seconds = Long.parseLong(values.get(0).trim());
+      if (seconds >= 0) {
+        return seconds;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error.
+    }
+    throw new IllegalArgumentException(String.format("%s must be a whole number of seconds, 0 or more!", name));
+  }
+
   private void doPatch(HttpExchange exchange) throws IOException {
     var path = Http.getLastPathComponent(exchange.getRequestURI().getPath());
     if (path.isEmpty()) {
@@ -148,6 +188,10 @@ class ConnectionHandler implements HttpHandler {
       var connectionName = Http.getLastPathComponent(exchange.getRequestURI().getPath());
       try {
         Settings.deleteSingleConnection(connectionName);
+        LdapContextPool.evict(connectionName);
+        ConcurrencyLimiter.evict(connectionName);
+        SearchCache.invalidate(connectionName);
+        RecordCache.invalidate(connectionName);
         var activeConnectionName = Settings.getActiveConnectionName();
         if (activeConnectionName.equals(connectionName)) {
           Settings.unsetActiveConnectionName();
@@ -25,11 +25,12 @@ class ConnectionsHandler implements HttpHandler {
     String path = exchange.getRequestURI().getRawPath();
     String handlerPath = exchange.getHttpContext().getPath();
     if (path.endsWith(handlerPath)) {
-      content = IO.loadResourceFromClasspath("/templates/connections.html");
+      Http.sendResource(exchange, status, IO.getResource("/templates/connections.html"), contentType);
+      return;
     } else if (path.endsWith("settings")) {
       contentType = ContentTypes.TYPES.get("json");
-      content = Json.renderList(Arrays.stream(connectionNames).map(n -> Maps.toMap(Settings.getConnectionSettings(n)))
-          .collect(Collectors.toList())).getBytes();
+      content = Json.encode(Arrays.stream(connectionNames).map(Settings::getConnectionJson)
+          .collect(Collectors.toList()));
     }
     Http.sendResponse(exchange, status, content, contentType);
   }
@@ -1,9 +1,13 @@
 package com.github.argherna.pike;
 
+import static java.util.Map.entry;
+
 import java.util.Map;
 
 class ContentTypes {
-  static final Map<String, String> TYPES = Map.of("css", "text/css", "form", "application/x-www-form-urlencoded",
-      "html", "text/html", "js", "application/javascript", "json", "application/json", "map", "application/javascript",
-      "upload", "multipart/form-data", "xml", "text/xml");
+  static final Map<String, String> TYPES = Map.ofEntries(entry("css", "text/css"), entry("csv", "text/csv"),
+      entry("form", "application/x-www-form-urlencoded"), entry("html", "text/html"),
+      entry("js", "application/javascript"), entry("json", "application/json"), entry("ldif", "text/x-ldif"),
+      entry("map", "application/javascript"), entry("ndjson", "application/x-ndjson"),
+      entry("upload", "multipart/form-data"), entry("xml", "text/xml"));
 }
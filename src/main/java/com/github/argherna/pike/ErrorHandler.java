@@ -9,7 +9,7 @@ class ErrorHandler implements HttpHandler {
 
   @Override
   public void handle(HttpExchange exchange) throws IOException {
-    Http.sendResponse(exchange, HttpStatus.OK, IO.loadResourceFromClasspath("/templates/error.html"),
+    Http.sendResource(exchange, HttpStatus.OK, IO.getResource("/templates/error.html"),
         ContentTypes.TYPES.get("html"));
   }
 }
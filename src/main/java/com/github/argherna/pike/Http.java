@@ -3,6 +3,10 @@ package com.github.argherna.pike;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -46,23 +50,279 @@ final class Http {
       }
     }
 
+    // Work out the entity tag here when NotModifiedFilter asks for one so it
+    // doesn't have to hold on to a copy of the content.
+    if (status == HttpStatus.OK && content.length > 0 && !h.containsKey("ETag")
+        && Boolean.TRUE.equals(exchange.getAttribute(NotModifiedFilter.ETAG_WANTED))) {
+      var eTag = NotModifiedFilter.eTag(content);
+      h.set("ETag", eTag);
+      if (eTagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), eTag)) {
+        h.remove("Content-Type");
+        status = HttpStatus.NOT_MODIFIED;
+        content = new byte[0];
+      }
+    }
+
     // Avoid NPE when writing response by setting content length to -1 when
     // request method is HEAD or byte array is 0-length.
     var length = 
       exchange.getRequestMethod().equals("HEAD") || content.length == 0 ||
         status == HttpStatus.NO_CONTENT ? -1 : content.length;
+    ServerTiming.addHeader(exchange);
     exchange.sendResponseHeaders(status.getStatusCode(), length);
 
-    if (content.length > 0) {
+    // A HEAD response has no body to write the content to.
+    if (length > 0) {
+      var start = System.nanoTime();
       try (var out = exchange.getResponseBody()) {
         out.write(content);
         out.flush();
       } 
+      ServerTiming.record("write", System.nanoTime() - start);
     }
 
     exchange.close();    
   }
 
+  /**
+   * Sends the response headers for a body of unknown length. The caller writes
+   * the body to {@link HttpExchange#getResponseBody()} with chunked transfer
+   * encoding and closes it when done.
+   * 
+   * @param exchange    the exchange
+   * @param status      the response status
+   * @param contentType the response content type
+   * @throws IOException if the headers couldn't be sent
+   */
+  static void sendChunkedResponseHeaders(HttpExchange exchange, HttpStatus status, String contentType)
+      throws IOException {
+    var responseHeaders = new HashMap<String, List<String>>();
+    addContentTypeResponseHeaders(responseHeaders, contentType);
+    var h = exchange.getResponseHeaders();
+    for (String headerName : responseHeaders.keySet()) {
+      for (String value : responseHeaders.get(headerName)) {
+        h.add(headerName, value);
+      }
+    }
+    ServerTiming.addHeader(exchange);
+    exchange.sendResponseHeaders(status.getStatusCode(), 0);
+  }
+
+  /**
+   * Sends a cached resource in the best encoding the client accepts along with
+   * its ETag. A request whose If-None-Match matches the ETag gets a 304.
+   * 
+   * @param exchange    the exchange
+   * @param status      the response status
+   * @param resource    the resource to send
+   * @param contentType the response content type
+   * @throws IOException if the response couldn't be sent
+   */
+  static void sendResource(HttpExchange exchange, HttpStatus status, IO.Resource resource, String contentType)
+      throws IOException {
+    var encoding = "identity";
+    for (var candidate : List.of("gzip", "deflate")) {
+      if (resource.getContent(candidate) != null && acceptsEncoding(exchange, candidate)) {
+        encoding = candidate;
+        break;
+      }
+    }
+    var eTag = resource.getETag(encoding);
+    var responseHeaders = new HashMap<String, List<String>>();
+    responseHeaders.put("ETag", List.of(eTag));
+    responseHeaders.put("Vary", List.of("Accept-Encoding"));
+    if (status == HttpStatus.OK && eTagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), eTag)) {
+      sendResponse(exchange, HttpStatus.NOT_MODIFIED, new byte[0], responseHeaders);
+      return;
+    }
+    addContentTypeResponseHeaders(responseHeaders, contentType);
+    if (!encoding.equals("identity")) {
+      responseHeaders.put("Content-Encoding", List.of(encoding));
+    }
+    sendResponse(exchange, status, resource.getContent(encoding), responseHeaders);
+  }
+
+  /**
+   * Sends a file, or the one range of bytes of it asked for with a Range
+   * header. The file is copied to the response as it's read, so it doesn't
+   * have to fit in memory. A Range header with more than one range, or one
+   * that can't be read, is ignored and the whole file is sent; an If-Range
+   * header that doesn't match the entity tag does the same. A range that
+   * starts past the end of the file gets a 416.
+   *
+   * @param exchange        the exchange
+   * @param file            the file to send
+   * @param eTag            the file's strong entity tag
+   * @param responseHeaders other headers to send, like Content-Type
+   * @throws IOException if the file couldn't be read or the response couldn't
+   *                     be sent
+   */
+  static void sendFile(HttpExchange exchange, Path file, String eTag, Map<String, List<String>> responseHeaders)
+      throws IOException {
+    var h = exchange.getResponseHeaders();
+    for (String headerName : responseHeaders.keySet()) {
+      for (String value : responseHeaders.get(headerName)) {
+        h.add(headerName, value);
+      }
+    }
+    h.set("Accept-Ranges", "bytes");
+    h.set("ETag", eTag);
+
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var size = channel.size();
+      var status = HttpStatus.OK;
+      var first = 0L;
+      var last = size - 1;
+      var requestHeaders = exchange.getRequestHeaders();
+      var range = requestHeaders.getFirst("Range");
+      var ifRange = requestHeaders.getFirst("If-Range");
+      if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+        var bounds = parseByteRange(range, size);
+        if (bounds != null && bounds.length == 0) {
+          h.set("Content-Range", String.format("bytes */%d", size));
+          ServerTiming.addHeader(exchange);
+          exchange.sendResponseHeaders(HttpStatus.RANGE_NOT_SATISFIABLE.getStatusCode(), -1);
+          exchange.close();
+          return;
+        } else if (bounds != null) {
+          status = HttpStatus.PARTIAL_CONTENT;
+          first = bounds[0];
+          last = bounds[1];
+          h.set("Content-Range", String.format("bytes %d-%d/%d", first, last, size));
+        }
+      }
+
+      var length = last - first + 1;
+      ServerTiming.addHeader(exchange);
+      if (exchange.getRequestMethod().equals("HEAD") || length == 0) {
+        if (length > 0) {
+          h.set("Content-Length", String.valueOf(length));
+        }
+        exchange.sendResponseHeaders(status.getStatusCode(), -1);
+        exchange.close();
+        return;
+      }
+      exchange.sendResponseHeaders(status.getStatusCode(), length);
+      var start = System.nanoTime();
+      channel.position(first);
+      try (var in = Channels.newInputStream(channel); var out = exchange.getResponseBody()) {
+        var buffer = new byte[65536];
+        var remaining = length;
+        while (remaining > 0) {
+          var read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (read == -1) {
+            throw new IOException(String.format("%s is shorter than expected", file));
+          }
+          out.write(buffer, 0, read);
+          remaining -= read;
+        }
+      }
+      ServerTiming.record("write", System.nanoTime() - start);
+    }
+    exchange.close();
+  }
+
+  /**
+   * Reads a Range header asking for a single range of bytes.
+   *
+   * @param range the header's value
+   * @param size  size of the content in bytes
+   * @return the first and last byte asked for, an empty array if the range
+   *         can't be satisfied, or {@code null} to ignore the header
+   */
+  static long[] parseByteRange(String range, long size) {
+    var value = range.trim();
+    if (!value.startsWith("bytes=") || value.indexOf(',') != -1) {
+      return null;
+    }
+    var spec = value.substring(6).trim();
+    var dash = spec.indexOf('-');
+    if (dash == -1) {
+      return null;
+    }
+    try {
+      var firstText = spec.substring(0, dash).trim();
+      var lastText = spec.substring(dash + 1).trim();
+      if (firstText.isEmpty()) {
+        // The last n bytes.
+        var suffix = Long.parseLong(lastText);
+        if (suffix < 0) {
+          return null;
+        }
+        return suffix == 0 || size == 0 ? new long[0] : new long[] { Math.max(0, size - suffix), size - 1 };
+      }
+      var first = Long.parseLong(firstText);
+      var last = lastText.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastText);
+      if (first < 0 || last < first) {
+        return null;
+      }
+      return first >= size ? new long[0] : new long[] { first, Math.min(last, size - 1) };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks the request's Accept-Encoding header for a content coding.
+   * 
+   * @param exchange the exchange
+   * @param encoding the content coding
+   * @return {@code true} if the coding is acceptable to the client
+   */
+  static boolean acceptsEncoding(HttpExchange exchange, String encoding) {
+    var values = exchange.getRequestHeaders().get("Accept-Encoding");
+    if (values == null) {
+      return false;
+    }
+    var quality = -1.0;
+    var wildcardQuality = -1.0;
+    for (var value : values) {
+      for (var element : value.split(",")) {
+        var params = element.split(";");
+        var coding = params[0].trim().toLowerCase();
+        var q = 1.0;
+        for (int i = 1; i < params.length; i++) {
+          var param = params[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              q = Double.parseDouble(param.substring(2));
+            } catch (NumberFormatException e) {
+              q = 0;
+            }
+          }
+        }
+        if (coding.equals(encoding)) {
+          quality = q;
+        } else if (coding.equals("*")) {
+          wildcardQuality = q;
+        }
+      }
+    }
+    return (quality >= 0 ? quality : wildcardQuality) > 0;
+  }
+
+  /**
+   * @param ifNoneMatch value of an If-None-Match header, may be {@code null}
+   * @param eTag        the current entity tag
+   * @return {@code true} if the header lists the entity tag or is {@code *}
+   */
+  static boolean eTagMatches(String ifNoneMatch, String eTag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (var candidate : ifNoneMatch.split(",")) {
+      var tag = candidate.trim();
+      // If-None-Match uses weak comparison.
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(eTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   static void addContentTypeResponseHeaders(
     Map<String, List<String>> responseHeaders, String contentType) {
     responseHeaders.put("Content-Type", List.of(contentType));
@@ -107,6 +367,34 @@ final class Http {
     return decodedParameters;
   }
 
+  /**
+   * Looks for a parameter in a query string without decoding it. A parameter
+   * counts only if it has a value, as in {@link #queryToMap(String)}.
+   *
+   * @param rawQuery the raw query string, which may be {@code null}
+   * @param name     the parameter's name
+   * @return {@code true} if the query has a value for the parameter
+   */
+  static boolean hasParameter(String rawQuery, String name) {
+    if (Strings.isNullOrEmpty(rawQuery)) {
+      return false;
+    }
+    var start = 0;
+    while (start < rawQuery.length()) {
+      var end = rawQuery.indexOf('&', start);
+      if (end < 0) {
+        end = rawQuery.length();
+      }
+      var valueAt = start + name.length() + 1;
+      if (valueAt < end && rawQuery.startsWith(name, start) && rawQuery.charAt(valueAt - 1) == '='
+          && rawQuery.charAt(valueAt) != '=') {
+        return true;
+      }
+      start = end + 1;
+    }
+    return false;
+  }
+
   static String getLastPathComponent(String uriPath) {
     var pathComponents = uriPath.split("/");
     return pathComponents[pathComponents.length - 1];
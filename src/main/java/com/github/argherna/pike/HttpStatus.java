@@ -5,8 +5,12 @@ enum HttpStatus {
   OK(200, "OK"),
 
   CREATED(201, "Created"),
+
+  ACCEPTED(202, "Accepted"),
   
   NO_CONTENT(204, "No Content"),
+
+  PARTIAL_CONTENT(206, "Partial Content"),
   
   FOUND (302, "Found"),
 
@@ -20,7 +24,17 @@ enum HttpStatus {
 
   METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
 
-  INTERNAL_SERVER_ERROR(500, "Internal Server Error");
+  CONFLICT(409, "Conflict"),
+
+  GONE(410, "Gone"),
+
+  PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+
+  RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
+
+  INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
+
+  SERVICE_UNAVAILABLE(503, "Service Unavailable");
   
   private final int statusCode;
 
@@ -6,7 +6,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipFile;
 
 final class IO {
@@ -14,14 +20,42 @@ final class IO {
   private static int BUF_SZ = 0x1000;
 
   private static final Logger LOGGER = Logger.getLogger(IO.class.getName());
+
+  private static final Map<String, Resource> RESOURCES = new ConcurrentHashMap<>();
   
   private IO() {
     // Empty constructor prevents instantiation.
   }
 
   static String loadUtf8ResourceFromClasspath(String path) throws IOException {
-    var resourceBytes = loadResourceFromClasspath(path);
-    return new String(resourceBytes, Charset.forName("UTF-8"));
+    var resource = getResource(path);
+    return resource == null ? "" : resource.getText();
+  }
+
+  /**
+   * Returns a classpath resource from the resource cache, loading it the first
+   * time it's asked for. Resources are packaged with the application and don't
+   * change while it runs, so they're never reloaded.
+   * 
+   * @param path the resource path
+   * @return the resource, or {@code null} if it isn't on the classpath
+   * @throws IOException if the resource couldn't be read
+   */
+  static Resource getResource(String path) throws IOException {
+    var resource = RESOURCES.get(path);
+    if (resource == null) {
+      var content = loadResourceFromClasspath(path);
+      // Don't cache misses, anyone can ask for any path.
+      if (content.length == 0 && IO.class.getResource(path) == null) {
+        return null;
+      }
+      resource = new Resource(content, lastMTime(path));
+      var previous = RESOURCES.putIfAbsent(path, resource);
+      if (previous != null) {
+        resource = previous;
+      }
+    }
+    return resource;
   }
 
   static byte[] loadResourceFromClasspath(String path) throws IOException {
@@ -87,4 +121,88 @@ final class IO {
     LOGGER.finer("Last Modified Time = " + lastModifiedTime);
     return lastModifiedTime;
   }
+
+  private static byte[] compress(byte[] content, boolean gzip) throws IOException {
+    var bos = new ByteArrayOutputStream();
+    try (var out = gzip ? new GZIPOutputStream(bos) : new DeflaterOutputStream(bos)) {
+      out.write(content);
+    }
+    return bos.toByteArray();
+  }
+
+  /**
+   * A classpath resource with everything needed to serve it: its bytes, gzip
+   * and deflate compressed copies, a strong ETag and its modification time.
+   * The arrays are shared, don't modify them.
+   */
+  static final class Resource {
+
+    private final byte[] content;
+
+    private final byte[] gzipped;
+
+    private final byte[] deflated;
+
+    private final String eTag;
+
+    private final long lastModified;
+
+    private Resource(byte[] content, long lastModified) throws IOException {
+      this.content = content;
+      // Only keep compressed copies that are actually smaller.
+      var gzipped = compress(content, true);
+      this.gzipped = gzipped.length < content.length ? gzipped : null;
+      var deflated = compress(content, false);
+      this.deflated = deflated.length < content.length ? deflated : null;
+      var checksum = new CRC32C();
+      checksum.update(content);
+      this.eTag = Long.toHexString(checksum.getValue());
+      // HTTP dates have a resolution of seconds.
+      this.lastModified = lastModified < 0 ? lastModified
+          : TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(lastModified));
+    }
+
+    byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @param encoding {@code gzip}, {@code deflate} or {@code identity}
+     * @return the content in that encoding, or {@code null} if there's no
+     *         smaller copy in that encoding
+     */
+    byte[] getContent(String encoding) {
+      switch (encoding) {
+      case "gzip":
+        return gzipped;
+      case "deflate":
+        return deflated;
+      case "identity":
+        return content;
+      default:
+        return null;
+      }
+    }
+
+    String getText() {
+      return new String(content, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @param encoding the content encoding the resource is sent with
+     * @return a strong entity tag for the resource in that encoding, quoted
+     */
+    String getETag(String encoding) {
+      return encoding.equals("identity") ? String.format("\"%s\"", eTag)
+          : String.format("\"%s-%s\"", eTag, encoding);
+    }
+
+    /**
+     * @return modification time of the resource truncated to seconds, -1 if
+     *         unknown
+     */
+    long getLastModified() {
+      return lastModified;
+    }
+  }
 }
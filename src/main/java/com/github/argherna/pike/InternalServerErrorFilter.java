@@ -32,6 +32,12 @@ class InternalServerErrorFilter extends Filter {
           }
         }
       }
+      if (exchange.getResponseCode() != -1) {
+        // Too late for an error status. Failing the exchange makes the server
+        // drop the connection, so the client sees the response was cut off.
+        LOGGER.log(Level.SEVERE, "Unhandled exception after the response started! Dropping the connection", cause);
+        throw new IOException("Response failed after it was started", e);
+      }
       LOGGER.log(Level.SEVERE, "Unhandled exception! Returning Internal Server Error", cause);
       var status = HttpStatus.INTERNAL_SERVER_ERROR;
       var content = Html.renderError(status, "An internal error occurred! Check the server logs!").getBytes();
@@ -0,0 +1,589 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Searches run in the background, for results too big or too slow to wait for
+ * in one request.
+ *
+ * <p>
+ * Jobs run on a few worker threads of their own, so they don't hold up
+ * interactive requests, although each still takes a turn from its
+ * connection's {@link ConcurrencyLimiter} for every page it searches. A job
+ * writes its results to a file in any of the {@link ResultWriter.Format
+ * formats} a search request can return, and pages through them with the paged
+ * results control so directories with a size limit return all of them; it
+ * searches without the control if the directory doesn't support it and the
+ * request didn't ask for pages. A job can be cancelled while it waits or runs.
+ * Finished jobs and their files are kept for a while to be downloaded.
+ *
+ * <p>
+ * Jobs are tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.jobs.threads}</dt>
+ * <dd>jobs run at once (default 2)</dd>
+ * <dt>{@code pike.jobs.queueSize}</dt>
+ * <dd>jobs allowed to wait for a thread (default 16)</dd>
+ * <dt>{@code pike.jobs.pageSize}</dt>
+ * <dd>entries in each page for searches that don't give a page size; 0 to
+ * not page (default 1000)</dd>
+ * <dt>{@code pike.jobs.timeLimit}</dt>
+ * <dd>seconds a job may search for; 0 for no limit (default 3600)</dd>
+ * <dt>{@code pike.jobs.retention}</dt>
+ * <dd>seconds a finished job and its results are kept (default 3600)</dd>
+ * <dt>{@code pike.jobs.dir}</dt>
+ * <dd>directory the results are written to (default a new directory under
+ * {@code java.io.tmpdir})</dd>
+ * </dl>
+ */
+final class Jobs {
+
+  private static final Logger LOGGER = Logger.getLogger(Jobs.class.getName());
+
+  private static final int THREADS = Math.max(1, Integer.getInteger("pike.jobs.threads", 2));
+
+  private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger("pike.jobs.queueSize", 16));
+
+  private static final int PAGE_SIZE = Integer.getInteger("pike.jobs.pageSize", 1000);
+
+  private static final long TIME_LIMIT_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.jobs.timeLimit", 3600));
+
+  private static final long RETENTION_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("pike.jobs.retention", 3600));
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final Map<String, Job> JOBS = new ConcurrentHashMap<>();
+
+  // Jobs holding a context between pages for each connection.
+  private static final Map<String, AtomicInteger> HOLDING = new ConcurrentHashMap<>();
+
+  private static final LongAdder SUBMITTED = new LongAdder();
+
+  private static final LongAdder REJECTED = new LongAdder();
+
+  private static final LongAdder COMPLETED = new LongAdder();
+
+  private static final LongAdder FAILED = new LongAdder();
+
+  private static final LongAdder CANCELLED = new LongAdder();
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+  private static final ThreadPoolExecutor WORKERS = new ThreadPoolExecutor(THREADS, THREADS, 0,
+      TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+        var t = new Thread(r, String.format("pike-job-%d", THREAD_COUNT.incrementAndGet()));
+        t.setDaemon(true);
+        return t;
+      });
+
+  private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+    var t = new Thread(r, "pike-job-reaper");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static Path directory;
+
+  static {
+    REAPER.scheduleWithFixedDelay(Jobs::removeExpired, 60, 60, TimeUnit.SECONDS);
+  }
+
+  private Jobs() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * Queues a search to run in the background.
+   *
+   * @param connectionName name of the connection to search
+   * @param request        the search request
+   * @param format         the format to write the results in
+   * @return the job
+   * @throws IllegalArgumentException   if the search can't run as a job
+   * @throws RejectedExecutionException if too many jobs are already waiting
+   */
+  static Job submit(String connectionName, SearchRequest request, ResultWriter.Format format) {
+    if (request.isVirtualListView()) {
+      throw new IllegalArgumentException("A job can't run a virtual list view search");
+    }
+    removeExpired();
+    var idBytes = new byte[16];
+    RANDOM.nextBytes(idBytes);
+    var job = new Job(Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes), connectionName, request,
+        format);
+    JOBS.put(job.id, job);
+    try {
+      job.future = WORKERS.submit(job::run);
+    } catch (RejectedExecutionException e) {
+      JOBS.remove(job.id);
+      REJECTED.increment();
+      throw e;
+    }
+    SUBMITTED.increment();
+    LOGGER.fine(() -> String.format("Queued job %s", job.id));
+    return job;
+  }
+
+  /**
+   * @param id the job id
+   * @return the job, or {@code null} if it doesn't exist or has expired
+   */
+  static Job get(String id) {
+    var job = JOBS.get(id);
+    return job == null || job.isExpired(System.currentTimeMillis()) ? null : job;
+  }
+
+  /**
+   * @return all jobs, oldest first
+   */
+  static List<Job> list() {
+    var now = System.currentTimeMillis();
+    var jobs = new ArrayList<Job>();
+    for (var job : JOBS.values()) {
+      if (!job.isExpired(now)) {
+        jobs.add(job);
+      }
+    }
+    jobs.sort(Comparator.comparingLong(job -> job.submitted));
+    return jobs;
+  }
+
+  /**
+   * Forgets a finished job and deletes its results.
+   *
+   * @param job the job
+   */
+  static void remove(Job job) {
+    if (JOBS.remove(job.id, job)) {
+      job.deleteFile();
+    }
+  }
+
+  /**
+   * @param connectionName the connection name
+   * @return the number of jobs holding one of the connection's contexts
+   *         between pages, without a turn from its limiter
+   */
+  static int countHolding(String connectionName) {
+    var count = HOLDING.get(connectionName);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * @return jobs waiting and running, and counts of jobs by how they ended
+   */
+  static Map<String, Object> getStats() {
+    var stats = new HashMap<String, Object>();
+    stats.put("queued", WORKERS.getQueue().size());
+    stats.put("running", WORKERS.getActiveCount());
+    stats.put("kept", JOBS.size());
+    stats.put("submitted", SUBMITTED.sum());
+    stats.put("rejected", REJECTED.sum());
+    stats.put("completed", COMPLETED.sum());
+    stats.put("failed", FAILED.sum());
+    stats.put("cancelled", CANCELLED.sum());
+    return stats;
+  }
+
+  /**
+   * Cancels every job and deletes the results.
+   */
+  static void shutdown() {
+    JOBS.values().forEach(Job::cancel);
+    WORKERS.shutdownNow();
+    try {
+      WORKERS.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    JOBS.values().forEach(Job::deleteFile);
+    JOBS.clear();
+  }
+
+  private static void removeExpired() {
+    var now = System.currentTimeMillis();
+    JOBS.entrySet().removeIf(e -> {
+      if (e.getValue().isExpired(now)) {
+        LOGGER.fine(() -> String.format("Removing expired job %s", e.getKey()));
+        e.getValue().deleteFile();
+        return true;
+      }
+      return false;
+    });
+  }
+
+  private static synchronized Path getDirectory() throws IOException {
+    if (directory == null) {
+      var configured = System.getProperty("pike.jobs.dir");
+      if (configured == null) {
+        directory = Files.createTempDirectory("pike-jobs");
+        directory.toFile().deleteOnExit();
+      } else {
+        directory = Files.createDirectories(Paths.get(configured));
+      }
+    }
+    return directory;
+  }
+
+  enum State {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+    boolean isFinished() {
+      return this == DONE || this == FAILED || this == CANCELLED;
+    }
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * A search running in the background.
+   */
+  static final class Job {
+
+    private final String id;
+
+    private final String connectionName;
+
+    private final SearchRequest request;
+
+    private final ResultWriter.Format format;
+
+    private final long submitted = System.currentTimeMillis();
+
+    private volatile State state = State.QUEUED;
+
+    private volatile boolean cancelled = false;
+
+    private volatile long started = 0;
+
+    private volatile long finished = 0;
+
+    private volatile long entries = 0;
+
+    private volatile boolean partial = false;
+
+    private volatile String error;
+
+    private volatile Path file;
+
+    private volatile Future<?> future;
+
+    // Only used by the thread running the job.
+    private boolean holding = false;
+
+    private Job(String id, String connectionName, SearchRequest request, ResultWriter.Format format) {
+      this.id = id;
+      this.connectionName = connectionName;
+      this.request = request;
+      this.format = format;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    ResultWriter.Format getFormat() {
+      return format;
+    }
+
+    State getState() {
+      return state;
+    }
+
+    /**
+     * @return the file with the results of a job that's done
+     */
+    Path getFile() {
+      return file;
+    }
+
+    /**
+     * Stops the job. A job waiting for a thread never runs, and a running job
+     * stops before its next entry.
+     */
+    synchronized void cancel() {
+      if (state.isFinished()) {
+        return;
+      }
+      cancelled = true;
+      if (state == State.QUEUED) {
+        var f = future;
+        if (f != null) {
+          f.cancel(false);
+        }
+        finish(State.CANCELLED);
+      }
+    }
+
+    /**
+     * @return the job's state and progress
+     */
+    Map<String, Object> toMap() {
+      var map = new HashMap<String, Object>();
+      map.put("id", id);
+      map.put("state", state.toString());
+      map.put("connection", connectionName);
+      map.put("parameters", request.toMap());
+      map.put("format", format.getName());
+      map.put("submitted", Instant.ofEpochMilli(submitted).toString());
+      map.put("entries", entries);
+      var end = finished > 0 ? finished : System.currentTimeMillis();
+      map.put("elapsedMillis", started > 0 ? end - started : 0);
+      if (partial) {
+        map.put("partial", true);
+      }
+      map.put("error", error);
+      if (state == State.DONE) {
+        map.put("result", String.format("/jobs/%s/result", id));
+        try {
+          map.put("size", Files.size(file));
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Couldn't read the size of " + file, e);
+        }
+      }
+      return map;
+    }
+
+    private boolean isExpired(long now) {
+      return state.isFinished() && now - finished > RETENTION_MILLIS;
+    }
+
+    private void run() {
+      synchronized (this) {
+        if (state != State.QUEUED) {
+          // Cancelled before it got a thread.
+          return;
+        }
+        started = System.currentTimeMillis();
+        state = State.RUNNING;
+      }
+      try {
+        file = getDirectory().resolve(id + "." + format.getName());
+        boolean complete;
+        try (var out = Files.newOutputStream(file)) {
+          complete = search(out);
+        }
+        finish(complete ? State.DONE : State.CANCELLED);
+      } catch (IOException | NamingException | RuntimeException e) {
+        LOGGER.log(Level.WARNING, String.format("Job %s failed", id), e);
+        error = e.getMessage() == null ? e.toString() : e.getMessage();
+        finish(State.FAILED);
+      } catch (InterruptedException e) {
+        finish(State.CANCELLED);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private synchronized void finish(State state) {
+      finished = System.currentTimeMillis();
+      this.state = state;
+      if (state == State.DONE) {
+        COMPLETED.increment();
+      } else {
+        deleteFile();
+        (state == State.FAILED ? FAILED : CANCELLED).increment();
+      }
+      LOGGER.fine(() -> String.format("Job %s is %s after %d entries", id, state, entries));
+    }
+
+    /**
+     * Writes the results to the stream.
+     *
+     * @return {@code false} if the job was cancelled before it was done
+     */
+    private boolean search(OutputStream stream) throws IOException, NamingException, InterruptedException {
+      // Page searches that don't ask to be paged, unless the directory can't.
+      var pagedByJob = !this.request.isPaged() && PAGE_SIZE > 0;
+      var request = pagedByJob ? this.request.withPageSize(PAGE_SIZE) : this.request;
+      var connection = Settings.getConnectionSettings(connectionName);
+      var searchBase = request.getSearchBase(connection.getBaseDn());
+      var ldapContext = borrow(connection);
+      if (ldapContext == null) {
+        return false;
+      }
+      try {
+        var ctx = ldapContext.get();
+        var out = ResultWriter.create(format, stream, request.getAttrs());
+        out.begin(Settings.getConnectionJson(connectionName), request.toMap());
+
+        var searchControls = request.getSearchControls();
+        var deadline = TIME_LIMIT_MILLIS > 0 ? started + TIME_LIMIT_MILLIS : 0;
+        var sorted = request.isSorted();
+        byte[] cookie = null;
+        do {
+          if (cookie != null) {
+            // Each page waits its turn, so a long job doesn't keep one from
+            // interactive requests between pages.
+            var permit = acquire();
+            if (permit == null) {
+              // The directory may still be holding the paged search.
+              ldapContext.invalidate();
+              return false;
+            }
+            ldapContext.attach(permit);
+            hold(false);
+          }
+          ctx.setRequestControls(request.getRequestControls(cookie));
+          if (deadline > 0) {
+            var remaining = deadline - System.currentTimeMillis();
+            searchControls.setTimeLimit((int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining)));
+          }
+          var start = System.nanoTime();
+          NamingEnumeration<SearchResult> results;
+          try {
+            results = ctx.search(searchBase, request.getFilter(), searchControls);
+          } catch (OperationNotSupportedException e) {
+            if (!pagedByJob || cookie != null) {
+              throw e;
+            }
+            // The directory doesn't support the (critical) paged results
+            // control, so search without it as the request didn't ask for it.
+            LOGGER.fine(() -> String.format("Job %s can't page, searching without it", id));
+            request = this.request;
+            ctx.setRequestControls(request.getRequestControls(null));
+            results = ctx.search(searchBase, request.getFilter(), searchControls);
+          }
+          ldapContext.recordLatency("search", System.nanoTime() - start);
+          try {
+            while (results.hasMore()) {
+              var result = results.next();
+              if (cancelled) {
+                results.close();
+                // The directory may still be holding the paged search.
+                ldapContext.invalidate();
+                return false;
+              }
+              out.write(result);
+              entries++;
+            }
+          } catch (TimeLimitExceededException e) {
+            partial = true;
+            ldapContext.invalidate();
+            break;
+          }
+          var responseControls = ctx.getResponseControls();
+          sorted = sorted && SearchHandler.isSorted(responseControls);
+          cookie = request.isPaged() ? SearchHandler.getPagedResultsCookie(responseControls) : null;
+          ldapContext.releasePermit();
+          // The context stays with the job for the next page, so the limiter
+          // has one fewer to give out meanwhile.
+          hold(cookie != null && cookie.length > 0);
+        } while (cookie != null && cookie.length > 0);
+
+        var trailer = new HashMap<String, Object>();
+        if (partial) {
+          trailer.put("partial", true);
+        }
+        if (request.isSorted()) {
+          trailer.put("sorted", sorted);
+        }
+        out.end(trailer);
+        out.flush();
+        return true;
+      } finally {
+        hold(false);
+        ldapContext.close();
+        SearchHandler.SEARCH_ENTRIES.labels(connectionName).observe(entries);
+      }
+    }
+
+    private void hold(boolean hold) {
+      if (hold != holding) {
+        holding = hold;
+        HOLDING.computeIfAbsent(connectionName, k -> new AtomicInteger()).addAndGet(hold ? 1 : -1);
+      }
+    }
+
+    /**
+     * Borrows a context once the connection's limiter gives the job a turn,
+     * trying again for as long as it's busy.
+     *
+     * @return the context, or {@code null} if the job was cancelled while it
+     *         waited
+     */
+    private LdapContextPool.PooledContext borrow(Settings.ConnectionSettings connection)
+        throws NamingException, InterruptedException {
+      while (true) {
+        var permit = acquire();
+        if (permit == null) {
+          return null;
+        }
+        try {
+          var ldapContext = LdapContextPool.borrow(connection);
+          ldapContext.attach(permit);
+          return ldapContext;
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+          // The pool had no context free in time; give the turn up and wait.
+          permit.close();
+          TimeUnit.SECONDS.sleep(Math.max(1, e.getRetryAfterSeconds()));
+        } catch (NamingException | RuntimeException e) {
+          permit.close();
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * Waits for a turn from the connection's limiter, trying again for as long
+     * as it's busy.
+     *
+     * @return the permit, or {@code null} if the job was cancelled while it
+     *         waited
+     */
+    private ConcurrencyLimiter.Permit acquire() throws InterruptedException {
+      while (!cancelled) {
+        try {
+          return ConcurrencyLimiter.forConnection(connectionName).acquire();
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+          TimeUnit.SECONDS.sleep(Math.max(1, e.getRetryAfterSeconds()));
+        }
+      }
+      return null;
+    }
+
+    private void deleteFile() {
+      var f = file;
+      if (f != null) {
+        try {
+          Files.deleteIfExists(f);
+        } catch (IOException e) {
+          LOGGER.log(Level.WARNING, "Couldn't delete " + f, e);
+        }
+      }
+    }
+  }
+}
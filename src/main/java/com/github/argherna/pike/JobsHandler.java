@@ -0,0 +1,183 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Submits, reports on, cancels and downloads the results of background
+ * {@link Jobs}.
+ *
+ * <ul>
+ * <li>{@code GET /jobs} lists the jobs.</li>
+ * <li>{@code POST /jobs} queues a search given the same parameters as
+ * {@code /search}, including the {@code format}, in the query string or a form
+ * body.</li>
+ * <li>{@code GET /jobs/<id>} reports a job's state and progress.</li>
+ * <li>{@code DELETE /jobs/<id>} cancels a job, or removes a finished one and
+ * its results.</li>
+ * <li>{@code GET /jobs/<id>/result} downloads a finished job's results, or a
+ * range of them.</li>
+ * </ul>
+ */
+class JobsHandler implements HttpHandler {
+
+  // Far more than any search's parameters need.
+  private static final int MAX_FORM_SIZE = 64 * 1024;
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    var method = exchange.getRequestMethod();
+    var path = exchange.getRequestURI().getRawPath().substring(exchange.getHttpContext().getPath().length());
+    var components = new ArrayList<String>();
+    for (var component : path.split("/")) {
+      if (!component.isEmpty()) {
+        components.add(component);
+      }
+    }
+
+    if (components.isEmpty()) {
+      switch (method) {
+      case "GET":
+      case "HEAD":
+        doList(exchange);
+        break;
+      case "POST":
+        doPost(exchange);
+        break;
+      default:
+        sendMethodNotAllowed(exchange, method, "GET", "HEAD", "POST");
+      }
+      return;
+    }
+
+    var job = components.size() > 2 ? null : Jobs.get(components.get(0));
+    if (job == null || (components.size() == 2 && !components.get(1).equals("result"))) {
+      sendError(exchange, HttpStatus.NOT_FOUND, "Job is unknown or has expired!");
+    } else if (components.size() == 2) {
+      if (method.equals("GET") || method.equals("HEAD")) {
+        doGetResult(exchange, job);
+      } else {
+        sendMethodNotAllowed(exchange, method, "GET", "HEAD");
+      }
+    } else {
+      switch (method) {
+      case "GET":
+      case "HEAD":
+        Http.sendResponse(exchange, HttpStatus.OK, Json.encode(job.toMap()), ContentTypes.TYPES.get("json"));
+        break;
+      case "DELETE":
+        doDelete(exchange, job);
+        break;
+      default:
+        sendMethodNotAllowed(exchange, method, "DELETE", "GET", "HEAD");
+      }
+    }
+  }
+
+  private void doList(HttpExchange exchange) throws IOException {
+    var jobs = new ArrayList<Map<String, Object>>();
+    for (var job : Jobs.list()) {
+      jobs.add(job.toMap());
+    }
+    Http.sendResponse(exchange, HttpStatus.OK, Json.encode(Map.of("jobs", jobs)), ContentTypes.TYPES.get("json"));
+  }
+
+  private void doPost(HttpExchange exchange) throws IOException {
+    var connectionName = Settings.getActiveConnectionName();
+    if (Strings.isNullOrEmpty(connectionName)) {
+      sendError(exchange, HttpStatus.BAD_REQUEST, "No connection is active!");
+      return;
+    }
+    var rawQuery = exchange.getRequestURI().getRawQuery();
+    var contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    if (contentType != null && contentType.startsWith(ContentTypes.TYPES.get("form"))) {
+      var body = new byte[MAX_FORM_SIZE + 1];
+      var length = exchange.getRequestBody().readNBytes(body, 0, body.length);
+      if (length > MAX_FORM_SIZE) {
+        sendError(exchange, HttpStatus.PAYLOAD_TOO_LARGE,
+            String.format("Form is larger than %d bytes!", MAX_FORM_SIZE));
+        return;
+      }
+      rawQuery = new String(body, 0, length, UTF_8).trim();
+    }
+
+    Jobs.Job job;
+    try {
+      var parameters = Http.queryToMap(rawQuery, SearchHandler.PARAM_PROCS);
+      var format = parameters.containsKey("format") ? ResultWriter.Format.forName(parameters.get("format").get(0))
+          : ResultWriter.Format.JSON;
+      job = Jobs.submit(connectionName, SearchRequest.fromParameters(parameters), format);
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, HttpStatus.BAD_REQUEST, e.getMessage());
+      return;
+    } catch (RejectedExecutionException e) {
+      var responseHeaders = new HashMap<String, List<String>>();
+      responseHeaders.put("Retry-After", List.of("60"));
+      Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+      Http.sendResponse(exchange, HttpStatus.SERVICE_UNAVAILABLE,
+          Json.encode(Map.of("error", "Too many jobs are waiting to run!")), responseHeaders);
+      return;
+    }
+
+    var responseHeaders = new HashMap<String, List<String>>();
+    Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+    responseHeaders.put("Location", List.of(String.format("%s/%s", exchange.getHttpContext().getPath(),
+        job.getId())));
+    Http.sendResponse(exchange, HttpStatus.ACCEPTED, Json.encode(job.toMap()), responseHeaders);
+  }
+
+  private void doDelete(HttpExchange exchange, Jobs.Job job) throws IOException {
+    if (job.getState().isFinished()) {
+      Jobs.remove(job);
+      Http.sendResponse(exchange, HttpStatus.NO_CONTENT, new byte[0], ContentTypes.TYPES.get("json"));
+    } else {
+      job.cancel();
+      Http.sendResponse(exchange, HttpStatus.ACCEPTED, Json.encode(job.toMap()), ContentTypes.TYPES.get("json"));
+    }
+  }
+
+  private void doGetResult(HttpExchange exchange, Jobs.Job job) throws IOException {
+    if (job.getState() != Jobs.State.DONE) {
+      sendError(exchange, HttpStatus.CONFLICT, String.format("Job is %s, it has no results!", job.getState()));
+      return;
+    }
+    var format = job.getFormat();
+    var responseHeaders = new HashMap<String, List<String>>();
+    Http.addContentTypeResponseHeaders(responseHeaders, format.getContentType());
+    responseHeaders.put("Content-Disposition",
+        List.of(String.format("attachment; filename=pike-%s.%s", job.getId(), format.getName())));
+    try {
+      // The results don't change once the job is done.
+      Http.sendFile(exchange, job.getFile(), String.format("\"%s\"", job.getId()), responseHeaders);
+    } catch (NoSuchFileException e) {
+      // The job expired and its results were deleted after it was looked up.
+      // A download already under way keeps reading the file it opened.
+      responseHeaders.keySet().forEach(exchange.getResponseHeaders()::remove);
+      exchange.getResponseHeaders().remove("Accept-Ranges");
+      exchange.getResponseHeaders().remove("ETag");
+      sendError(exchange, HttpStatus.GONE, "Job's results have expired!");
+    }
+  }
+
+  private void sendMethodNotAllowed(HttpExchange exchange, String method, String... allowed) throws IOException {
+    var responseHeaders = new HashMap<String, List<String>>();
+    Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+    responseHeaders.put("Allow", List.of(allowed));
+    Http.sendResponse(exchange, HttpStatus.METHOD_NOT_ALLOWED,
+        Json.encode(Map.of("error", String.format("Method %s not allowed!", method))), responseHeaders);
+  }
+
+  private void sendError(HttpExchange exchange, HttpStatus status, String message) throws IOException {
+    Http.sendResponse(exchange, status, Json.encode(Map.of("error", message)), ContentTypes.TYPES.get("json"));
+  }
+}
@@ -1,264 +1,387 @@
 package com.github.argherna.pike;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.function.Predicate;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
-
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
 
 final class Json {
 
-  private static final Logger LOGGER = Logger.getLogger(Json.class.getName());
-
   private Json() {
     // Empty constructor prevents instantiation.
   }
 
-  // Values can be rendered if they are non-null, and if String non-empty (length
-  // > 0).
-  private static final Predicate<? super Object> HAS_VALUE = v -> {
-    var hasValue = Objects.nonNull(v);
-    if (hasValue && v instanceof String) {
-      hasValue = v.toString().length() > 0;
-    }
-    return hasValue;
-  };
+  static String renderObject(Map<String, Object> object) throws IOException {
+    return new String(new JsonWriter().writeObject(object).toByteArray(), StandardCharsets.UTF_8);
+  }
 
-  private static final Predicate<Entry<String, Object>> ENTRY_HAS_VALUE = e -> {
-    var hasValue = Objects.nonNull(e.getValue());
-    if (hasValue && e.getValue() instanceof String) {
-      hasValue = e.getValue().toString().length() > 0;
+  static String renderList(Iterable<? extends Object> values) throws IOException {
+    return new String(new JsonWriter().writeList(values).toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Renders a value as UTF-8 encoded JSON.
+   * 
+   * @param value the value to render
+   * @return the JSON bytes
+   * @throws IOException if the value couldn't be rendered
+   * @see JsonWriter
+   */
+  static byte[] encode(Object value) throws IOException {
+    return new JsonWriter().writeValue(value).toByteArray();
+  }
+
+  /**
+   * Wraps JSON that has already been rendered so it can be put in a Map or List
+   * and written out as is.
+   * 
+   * @param json the rendered JSON
+   * @return the wrapped JSON
+   */
+  static Fragment fragment(String json) {
+    return new Fragment(json);
+  }
+
+  /**
+   * Parses a JSON object.
+   * 
+   * @param json the JSON text
+   * @return the object as a Map
+   * @throws IllegalArgumentException if the text isn't a well-formed JSON object
+   */
+  static Map<String, Object> marshal(String json) {
+    try {
+      return new Parser(new StringReader(json)).parseDocument();
+    } catch (IOException e) {
+      // Shouldn't happen reading from a String, throw a RuntimeException so
+      // it's logged.
+      throw new RuntimeException(e);
     }
-    return hasValue;
-  };
+  }
 
-  static String renderObject(Map<String, Object> object) throws IOException {
-    var buffer = new StringBuilder();
-    renderObject(object, buffer);
-    return buffer.toString();
+  /**
+   * Parses a JSON object from a stream of UTF-8 encoded text. Objects are
+   * returned as Maps that keep the order of their members, arrays as Lists,
+   * numbers as Integer, Long, BigInteger or Double depending on their size and
+   * format.
+   * 
+   * @param in the stream to read; not closed
+   * @return the object as a Map
+   * @throws IOException              if the stream couldn't be read
+   * @throws IllegalArgumentException if the text isn't a well-formed JSON object
+   */
+  static Map<String, Object> marshal(InputStream in) throws IOException {
+    return new Parser(new InputStreamReader(in, StandardCharsets.UTF_8)).parseDocument();
   }
 
-  static String renderList(Iterable<? extends Object> values) throws IOException {
-    var buffer = new StringBuilder();
-    renderList(values, buffer);
-    return buffer.toString();
+  /**
+   * Already rendered JSON.
+   */
+  static final class Fragment {
+
+    private final String json;
+
+    private Fragment(String json) {
+      this.json = Objects.requireNonNull(json);
+    }
+
+    @Override
+    public String toString() {
+      return json;
+    }
   }
 
-  private static void renderObject(Map<String, Object> data, Appendable buffer) throws IOException {
-    var filteredData = data.entrySet().stream().filter(ENTRY_HAS_VALUE)
-        .collect(Collectors.toMap(k -> k.getKey(), v -> v.getValue()));
-    if (!filteredData.isEmpty()) {
-      buffer.append("{");
-      for (Iterator<String> keys = filteredData.keySet().iterator(); keys.hasNext();) {
-        var key = keys.next();
-        buffer.append("\"").append(key).append("\":");
-        renderValue(filteredData.get(key), buffer);
-        if (keys.hasNext()) {
-          buffer.append(",");
+  /**
+   * Recursive descent parser for <a href="https://tools.ietf.org/html/rfc8259">
+   * RFC 8259</a> JSON. Text is read through a fixed size buffer and a single
+   * builder is reused for all strings and numbers.
+   */
+  private static final class Parser {
+
+    private static final int MAX_DEPTH = 256;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[4096];
+
+    private final StringBuilder text = new StringBuilder();
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    private long offset = 0;
+
+    private int depth = 0;
+
+    private Parser(Reader reader) {
+      this.reader = reader;
+    }
+
+    private Map<String, Object> parseDocument() throws IOException {
+      if (skipWhitespace() != '{') {
+        throw error("Expected a JSON object");
+      }
+      var object = parseObject();
+      if (skipWhitespace() != -1) {
+        throw error("Unexpected text after the JSON object");
+      }
+      return object;
+    }
+
+    private Object parseValue() throws IOException {
+      var c = skipWhitespace();
+      switch (c) {
+      case '{':
+        return parseObject();
+      case '[':
+        return parseList();
+      case '"':
+        return parseString();
+      case 't':
+        expectLiteral("true");
+        return Boolean.TRUE;
+      case 'f':
+        expectLiteral("false");
+        return Boolean.FALSE;
+      case 'n':
+        expectLiteral("null");
+        return null;
+      default:
+        if (c == '-' || (c >= '0' && c <= '9')) {
+          return parseNumber();
         }
+        throw error(c == -1 ? "Unexpected end of input" : "Unexpected character");
       }
-      buffer.append("}");
     }
-  }
 
-  private static void renderList(Iterable<? extends Object> data, Appendable buffer) throws IOException {
-    List<? extends Object> filteredData = StreamSupport.stream(data.spliterator(), false).filter(HAS_VALUE)
-        .collect(Collectors.toList());
-    buffer.append("[");
-    if (!filteredData.isEmpty()) {
-      for (Iterator<? extends Object> values = data.iterator(); values.hasNext();) {
-        Object value = values.next();
-        renderValue(value, buffer);
-        if (values.hasNext()) {
-          buffer.append(",");
+    private Map<String, Object> parseObject() throws IOException {
+      enter();
+      pos++;
+      var object = new LinkedHashMap<String, Object>();
+      var c = skipWhitespace();
+      if (c == '}') {
+        pos++;
+      } else {
+        while (true) {
+          if (c != '"') {
+            throw error("Expected a member name");
+          }
+          var name = parseString();
+          if (skipWhitespace() != ':') {
+            throw error("Expected ':'");
+          }
+          pos++;
+          object.put(name, parseValue());
+          c = skipWhitespace();
+          pos++;
+          if (c == '}') {
+            break;
+          } else if (c != ',') {
+            throw error("Expected ',' or '}'");
+          }
+          c = skipWhitespace();
         }
       }
+      depth--;
+      return object;
     }
-    buffer.append("]");
-  }
 
-  @SuppressWarnings("unchecked")
-  private static void renderValue(Object value, Appendable buffer) throws IOException {
-    if (value instanceof List) {
-      renderList((List<Object>) value, buffer);
-    } else if (value instanceof Map) {
-      renderObject((Map<String, Object>) value, buffer);
-    } else {
-      renderScalar(value, buffer);
+    private List<Object> parseList() throws IOException {
+      enter();
+      pos++;
+      var list = new ArrayList<Object>();
+      if (skipWhitespace() == ']') {
+        pos++;
+      } else {
+        while (true) {
+          list.add(parseValue());
+          var c = skipWhitespace();
+          pos++;
+          if (c == ']') {
+            break;
+          } else if (c != ',') {
+            throw error("Expected ',' or ']'");
+          }
+        }
+      }
+      depth--;
+      return list;
     }
-  }
 
-  private static void renderScalar(Object value, Appendable buffer) throws IOException {
-    if (value == null) {
-      buffer.append("null");
-    } else if (value instanceof Number || value instanceof Boolean) {
-      buffer.append(value.toString());
-    } else {
-      // Has to be a String (no other option)
-      buffer.append("\"");
-      char[] valueChars = value.toString().toCharArray();
-      for (int i = 0; i < valueChars.length; i++) {
-        char valueChar = valueChars[i];
-        // Handle escape characters that MUST be handled according to
-        // https://www.json.org/.
-        if (valueChar == '\b') {
-          buffer.append('\\').append('b');
-        } else if (valueChar == '\f') {
-          buffer.append('\\').append('f');
-        } else if (valueChar == '\n') {
-          buffer.append('\\').append('n');
-        } else if (valueChar == '\r') {
-          buffer.append('\\').append('r');
-        } else if (valueChar == '\t') {
-          buffer.append('\\').append('t');
-        } else if (valueChar == '\"') {
-          buffer.append('\\').append('\"');
-        } else if (valueChar == '\\') {
-          buffer.append('\\').append('\\');
+    private String parseString() throws IOException {
+      pos++;
+      text.setLength(0);
+      while (true) {
+        if (pos == limit && !fill()) {
+          throw error("Unterminated string");
+        }
+        // Copy runs of plain characters in one go.
+        var start = pos;
+        while (pos < limit && buffer[pos] != '"' && buffer[pos] != '\\' && buffer[pos] >= 0x20) {
+          pos++;
+        }
+        text.append(buffer, start, pos - start);
+        if (pos == limit) {
+          continue;
+        }
+        var c = buffer[pos++];
+        if (c == '"') {
+          return text.toString();
+        } else if (c == '\\') {
+          text.append(parseEscape());
         } else {
-          logCharType(valueChar);
-          buffer.append(toPrintable(valueChar));
+          pos--;
+          throw error("Unescaped control character in string");
         }
       }
-      buffer.append("\"");
     }
-  }
 
-  private static void logCharType(char value) {
-    // Attribute values aren't always JSON-friendly. When things go wrong,
-    // set the LOGGER to FINEST and run the query again looking at the output
-    // from this method. Update #toPrintable(char) as appropriate.
-    if (LOGGER.isLoggable(Level.FINEST)) {
-      var charTypeName = "UNKNOWN";
-      switch (Character.getType(value)) {
-      case 0:
-        charTypeName = "Character.UNASSIGNED";
-        break;
-      case 1:
-        charTypeName = "Character.UPPERCASE_LETTER";
-        break;
-      case 2:
-        charTypeName = "Character.LOWERCASE_LETTER";
-        break;
-      case 3:
-        charTypeName = "Character.TITLECASE_LETTER";
-        break;
-      case 4:
-        charTypeName = "Character.MODIFIER_LETTER";
-        break;
-      case 5:
-        charTypeName = "Character.OTHER_LETTER";
-        break;
-      case 6:
-        charTypeName = "Character.NON_SPACING_MARK";
-        break;
-      case 7:
-        charTypeName = "Character.ENCLOSING_MARK";
-        break;
-      case 8:
-        charTypeName = "Character.COMBINING_SPACING_MARK";
-        break;
-      case 9:
-        charTypeName = "Character.DECIMAL_DIGIT_NUMBER";
-        break;
-      case 10:
-        charTypeName = "Character.LETTER_NUMBER";
-        break;
-      case 11:
-        charTypeName = "Character.OTHER_NUMBER";
-        break;
-      case 12:
-        charTypeName = "Character.SPACE_SEPARATOR";
-        break;
-      case 13:
-        charTypeName = "Character.LINE_SEPARATOR";
-        break;
-      case 14:
-        charTypeName = "Character.PARAGRAPH_SEPARATOR";
-        break;
-      case 15:
-        charTypeName = "Character.CONTROL";
-        break;
-      case 16:
-        charTypeName = "Character.FORMAT";
-        break;
-      case 18:
-        charTypeName = "Character.PRIVATE_USE";
-        break;
-      case 19:
-        charTypeName = "Character.SURROGATE";
-        break;
-      case 20:
-        charTypeName = "Character.DASH_PUNCTUATION";
-        break;
-      case 21:
-        charTypeName = "Character.START_PUNCTUATION";
-        break;
-      case 22:
-        charTypeName = "Character.END_PUNCTUATION";
-        break;
-      case 23:
-        charTypeName = "Character.CONNECTOR_PUNCTUATION";
-        break;
-      case 24:
-        charTypeName = "Character.OTHER_PUNCTUATION";
-        break;
-      case 25:
-        charTypeName = "Character.MATH_SYMBOL";
-        break;
-      case 26:
-        charTypeName = "Character.CURRENCY_SYMBOL";
-        break;
-      case 27:
-        charTypeName = "Character.MODIFIER_SYMBOL";
-        break;
-      case 28:
-        charTypeName = "Character.OTHER_SYMBOL";
-        break;
-      case 29:
-        charTypeName = "Character.INITIAL_QUOTE_PUNCTUATION";
-        break;
-      case 30:
-        charTypeName = "Character.FINAL_QUOTE_PUNCTUATION";
-        break;
+    private char parseEscape() throws IOException {
+      var c = next();
+      switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        var value = 0;
+        for (int i = 0; i < 4; i++) {
+          var digit = Character.digit(next(), 16);
+          if (digit == -1) {
+            throw error("Invalid unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        throw error("Invalid escape");
       }
-      LOGGER.finest(new StringBuilder().append(value).append(": ").append(charTypeName).toString());
     }
-  }
 
-  private static char toPrintable(char c) {
-    switch (Character.getType(c)) {
-    case Character.CONTROL:
-    case Character.OTHER_SYMBOL:
-      return '?';
-    default:
+    private Number parseNumber() throws IOException {
+      text.setLength(0);
+      var integral = true;
+      if (peek() == '-') {
+        text.append((char) next());
+      }
+      if (peek() == '0') {
+        text.append((char) next());
+      } else {
+        appendDigits();
+      }
+      if (peek() == '.') {
+        integral = false;
+        text.append((char) next());
+        appendDigits();
+      }
+      if (peek() == 'e' || peek() == 'E') {
+        integral = false;
+        text.append((char) next());
+        if (peek() == '+' || peek() == '-') {
+          text.append((char) next());
+        }
+        appendDigits();
+      }
+      var number = text.toString();
+      if (integral) {
+        long value;
+        try {
+          value = Long.parseLong(number);
+        } catch (NumberFormatException e) {
+          // Too big for a long; keep every digit.
+          return new BigInteger(number);
+        }
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+          return (int) value;
+        }
+        return value;
+      }
+      return Double.parseDouble(number);
+    }
+
+    private void appendDigits() throws IOException {
+      var c = peek();
+      if (c < '0' || c > '9') {
+        throw error("Expected a digit");
+      }
+      do {
+        text.append((char) next());
+        c = peek();
+      } while (c >= '0' && c <= '9');
+    }
+
+    private void expectLiteral(String literal) throws IOException {
+      for (int i = 0; i < literal.length(); i++) {
+        if (next() != literal.charAt(i)) {
+          throw error(String.format("Expected %s", literal));
+        }
+      }
+    }
+
+    private void enter() {
+      if (++depth > MAX_DEPTH) {
+        throw error("Too deeply nested");
+      }
+    }
+
+    private int skipWhitespace() throws IOException {
+      while (true) {
+        var c = peek();
+        if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+          return c;
+        }
+        pos++;
+      }
+    }
+
+    private int peek() throws IOException {
+      if (pos == limit && !fill()) {
+        return -1;
+      }
+      return buffer[pos];
+    }
+
+    private int next() throws IOException {
+      var c = peek();
+      if (c == -1) {
+        throw error("Unexpected end of input");
+      }
+      pos++;
       return c;
     }
-  }
 
-  @SuppressWarnings("unchecked")
-  static Map<String, Object> marshal(String json) {
-    // With great thanks to
-    // http://www.adam-bien.com/roller/abien/entry/converting_json_to_map_with
-    var seManager = new ScriptEngineManager();
-    var se = seManager.getEngineByName("javascript");
-    LOGGER.fine(() -> String.format("Marshalling %s", json));
-    var script = String.format("Java.asJSONCompatible(%s)", json);
+    private boolean fill() throws IOException {
+      offset += limit;
+      pos = 0;
+      limit = 0;
+      var read = reader.read(buffer);
+      if (read > 0) {
+        limit = read;
+      }
+      return read > 0;
+    }
 
-    try {
-      Object evaluated = se.eval(script);
-      return (Map<String, Object>) evaluated;
-    } catch (ScriptException e) {
-      throw new RuntimeException(e);
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(String.format("%s at character %d", message, offset + pos));
     }
   }
 }
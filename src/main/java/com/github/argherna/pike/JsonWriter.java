@@ -0,0 +1,402 @@
+package com.github.argherna.pike;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes JSON as UTF-8 straight into a byte buffer that is either drained to
+ * an OutputStream when it fills up or grown and returned as a byte array.
+ *
+ * <p>
+ * Maps are written as objects, leaving out members whose value is null or an
+ * empty String. A Map with no members left isn't written at all. A List is
+ * written as an empty array unless it has at least one such value, in which
+ * case all of its values are written. Anything else is written as a string,
+ * with control characters and other symbols replaced by {@code '?'}.
+ */
+final class JsonWriter implements Closeable, Flushable {
+
+  private static final Logger LOGGER = Logger.getLogger(JsonWriter.class.getName());
+
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  private static final int ARRAY_BUFFER_SIZE = 512;
+
+  // Longest encoding of one character: a 4 byte UTF-8 sequence for a surrogate
+  // pair, or a 2 byte escape.
+  private static final int MAX_CHAR_BYTES = 4;
+
+  private final OutputStream out;
+
+  private byte[] buffer;
+
+  private int count = 0;
+
+  /**
+   * Creates a writer that collects the JSON for {@link #toByteArray()}.
+   */
+  JsonWriter() {
+    this.out = null;
+    this.buffer = new byte[ARRAY_BUFFER_SIZE];
+  }
+
+  /**
+   * Creates a writer that writes the JSON to a stream.
+   *
+   * @param out the stream to write to
+   */
+  JsonWriter(OutputStream out) {
+    this.out = out;
+    this.buffer = new byte[STREAM_BUFFER_SIZE];
+  }
+
+  @SuppressWarnings("unchecked")
+  JsonWriter writeValue(Object value) throws IOException {
+    if (value instanceof Json.Fragment) {
+      writeRaw(value.toString());
+    } else if (value instanceof List) {
+      writeList((List<Object>) value);
+    } else if (value instanceof Map) {
+      writeObject((Map<String, Object>) value);
+    } else if (value == null) {
+      writeRaw("null");
+    } else if (value instanceof Number || value instanceof Boolean) {
+      writeRaw(value.toString());
+    } else {
+      writeString(value.toString());
+    }
+    return this;
+  }
+
+  JsonWriter writeObject(Map<String, ?> object) throws IOException {
+    var empty = true;
+    for (var entry : object.entrySet()) {
+      if (hasValue(entry.getValue())) {
+        writeByte(empty ? '{' : ',');
+        empty = false;
+        writeString(String.valueOf(entry.getKey()));
+        writeByte(':');
+        writeValue(entry.getValue());
+      }
+    }
+    if (!empty) {
+      writeByte('}');
+    }
+    return this;
+  }
+
+  JsonWriter writeList(Iterable<?> values) throws IOException {
+    writeByte('[');
+    var hasValues = false;
+    for (var value : values) {
+      if (hasValue(value)) {
+        hasValues = true;
+        break;
+      }
+    }
+    if (hasValues) {
+      var first = true;
+      for (var value : values) {
+        if (!first) {
+          writeByte(',');
+        }
+        first = false;
+        writeValue(value);
+      }
+    }
+    writeByte(']');
+    return this;
+  }
+
+  private static boolean hasValue(Object value) {
+    return value != null && !(value instanceof String && ((String) value).isEmpty());
+  }
+
+  /**
+   * Writes a quoted and escaped string.
+   *
+   * @param value the string
+   * @return this writer
+   * @throws IOException if the stream couldn't be written
+   */
+  JsonWriter writeString(String value) throws IOException {
+    writeByte('"');
+    var tracing = LOGGER.isLoggable(Level.FINEST);
+    var length = value.length();
+    var i = 0;
+    while (i < length) {
+      ensureCapacity(MAX_CHAR_BYTES);
+      // Copy runs of printable ASCII characters as bytes while they fit in
+      // the buffer.
+      var bytes = buffer;
+      var pos = count;
+      var end = Math.min(length, i + bytes.length - pos);
+      if (!tracing) {
+        while (i < end) {
+          var c = value.charAt(i);
+          if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+            break;
+          }
+          bytes[pos++] = (byte) c;
+          i++;
+        }
+      }
+      count = pos;
+      if (i < end) {
+        ensureCapacity(MAX_CHAR_BYTES);
+        i = writeChar(value, i, tracing);
+      }
+    }
+    writeByte('"');
+    return this;
+  }
+
+  private int writeChar(String value, int i, boolean tracing) {
+    var c = value.charAt(i);
+    if (tracing) {
+      logCharType(c);
+    }
+    switch (c) {
+    // Handle escape characters that MUST be handled according to
+    // https://www.json.org/.
+    case '\b':
+      putEscape('b');
+      break;
+    case '\f':
+      putEscape('f');
+      break;
+    case '\n':
+      putEscape('n');
+      break;
+    case '\r':
+      putEscape('r');
+      break;
+    case '\t':
+      putEscape('t');
+      break;
+    case '"':
+      putEscape('"');
+      break;
+    case '\\':
+      putEscape('\\');
+      break;
+    default:
+      if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        putCodePoint(Character.toCodePoint(c, value.charAt(i + 1)));
+        return i + 2;
+      }
+      putCodePoint(Character.isSurrogate(c) ? '?' : toPrintable(c));
+    }
+    return i + 1;
+  }
+
+  /**
+   * Writes text that is already JSON.
+   *
+   * @param json the JSON text
+   * @return this writer
+   * @throws IOException if the stream couldn't be written
+   */
+  JsonWriter writeRaw(String json) throws IOException {
+    var length = json.length();
+    for (int i = 0; i < length; i++) {
+      ensureCapacity(MAX_CHAR_BYTES);
+      var c = json.charAt(i);
+      if (c < 0x80) {
+        buffer[count++] = (byte) c;
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(json.charAt(i + 1))) {
+        putCodePoint(Character.toCodePoint(c, json.charAt(++i)));
+      } else {
+        putCodePoint(Character.isSurrogate(c) ? '?' : c);
+      }
+    }
+    return this;
+  }
+
+  private void writeByte(char c) throws IOException {
+    ensureCapacity(1);
+    buffer[count++] = (byte) c;
+  }
+
+  private void putEscape(char c) {
+    buffer[count++] = '\\';
+    buffer[count++] = (byte) c;
+  }
+
+  private void putCodePoint(int cp) {
+    if (cp < 0x80) {
+      buffer[count++] = (byte) cp;
+    } else if (cp < 0x800) {
+      buffer[count++] = (byte) (0xc0 | (cp >> 6));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (cp < 0x10000) {
+      buffer[count++] = (byte) (0xe0 | (cp >> 12));
+      buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    } else {
+      buffer[count++] = (byte) (0xf0 | (cp >> 18));
+      buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    }
+  }
+
+  private void ensureCapacity(int needed) throws IOException {
+    if (count + needed > buffer.length) {
+      if (out != null) {
+        drain();
+      } else {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + needed));
+      }
+    }
+  }
+
+  private void drain() throws IOException {
+    if (out != null && count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * @return the JSON written so far, for a writer without a stream
+   */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, count);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    drain();
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    drain();
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  private static char toPrintable(char c) {
+    switch (Character.getType(c)) {
+    case Character.CONTROL:
+    case Character.OTHER_SYMBOL:
+      return '?';
+    default:
+      return c;
+    }
+  }
+
+  private static void logCharType(char value) {
+    // Attribute values aren't always JSON-friendly. When things go wrong,
+    // set the LOGGER to FINEST and run the query again looking at the output
+    // from this method. Update #toPrintable(char) as appropriate.
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      var charTypeName = "UNKNOWN";
+      switch (Character.getType(value)) {
+      case 0:
+        charTypeName = "Character.UNASSIGNED";
+        break;
+      case 1:
+        charTypeName = "Character.UPPERCASE_LETTER";
+        break;
+      case 2:
+        charTypeName = "Character.LOWERCASE_LETTER";
+        break;
+      case 3:
+        charTypeName = "Character.TITLECASE_LETTER";
+        break;
+      case 4:
+        charTypeName = "Character.MODIFIER_LETTER";
+        break;
+      case 5:
+        charTypeName = "Character.OTHER_LETTER";
+        break;
+      case 6:
+        charTypeName = "Character.NON_SPACING_MARK";
+        break;
+      case 7:
+        charTypeName = "Character.ENCLOSING_MARK";
+        break;
+      case 8:
+        charTypeName = "Character.COMBINING_SPACING_MARK";
+        break;
+      case 9:
+        charTypeName = "Character.DECIMAL_DIGIT_NUMBER";
+        break;
+      case 10:
+        charTypeName = "Character.LETTER_NUMBER";
+        break;
+      case 11:
+        charTypeName = "Character.OTHER_NUMBER";
+        break;
+      case 12:
+        charTypeName = "Character.SPACE_SEPARATOR";
+        break;
+      case 13:
+        charTypeName = "Character.LINE_SEPARATOR";
+        break;
+      case 14:
+        charTypeName = "Character.PARAGRAPH_SEPARATOR";
+        break;
+      case 15:
+        charTypeName = "Character.CONTROL";
+        break;
+      case 16:
+        charTypeName = "Character.FORMAT";
+        break;
+      case 18:
+        charTypeName = "Character.PRIVATE_USE";
+        break;
+      case 19:
+        charTypeName = "Character.SURROGATE";
+        break;
+      case 20:
+        charTypeName = "Character.DASH_PUNCTUATION";
+        break;
+      case 21:
+        charTypeName = "Character.START_PUNCTUATION";
+        break;
+      case 22:
+        charTypeName = "Character.END_PUNCTUATION";
+        break;
+      case 23:
+        charTypeName = "Character.CONNECTOR_PUNCTUATION";
+        break;
+      case 24:
+        charTypeName = "Character.OTHER_PUNCTUATION";
+        break;
+      case 25:
+        charTypeName = "Character.MATH_SYMBOL";
+        break;
+      case 26:
+        charTypeName = "Character.CURRENCY_SYMBOL";
+        break;
+      case 27:
+        charTypeName = "Character.MODIFIER_SYMBOL";
+        break;
+      case 28:
+        charTypeName = "Character.OTHER_SYMBOL";
+        break;
+      case 29:
+        charTypeName = "Character.INITIAL_QUOTE_PUNCTUATION";
+        break;
+      case 30:
+        charTypeName = "Character.FINAL_QUOTE_PUNCTUATION";
+        break;
+      }
+      LOGGER.finest(new StringBuilder().append(value).append(": ").append(charTypeName).toString());
+    }
+  }
+}
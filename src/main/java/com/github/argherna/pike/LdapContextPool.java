@@ -0,0 +1,479 @@
+package com.github.argherna.pike;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
+
+/**
+ * Pool of authenticated LDAP contexts, one pool per connection.
+ *
+ * <p>
+ * Contexts are bound when created and handed out as {@link PooledContext}
+ * leases that return the context to its pool when closed. A pool is rebuilt
+ * when the settings of its connection change. Idle contexts above the minimum
+ * pool size are closed by a background thread after they have been idle for
+ * a while.
+ *
+ * <p>
+ * The pool is tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.pool.minSize}</dt>
+ * <dd>contexts kept open per connection (default 0)</dd>
+ * <dt>{@code pike.pool.maxSize}</dt>
+ * <dd>contexts open at once per connection (default 8)</dd>
+ * <dt>{@code pike.pool.idleTimeout}</dt>
+ * <dd>seconds an idle context is kept above the minimum (default 300)</dd>
+ * <dt>{@code pike.pool.borrowTimeout}</dt>
+ * <dd>seconds to wait for a context when the pool is exhausted (default
+ * 30)</dd>
+ * <dt>{@code pike.pool.validateOnBorrow}</dt>
+ * <dd>read the root DSE before handing out an idle context (default
+ * true)</dd>
+ * <dt>{@code pike.ldap.connectTimeout}</dt>
+ * <dd>seconds to wait for the directory to accept a connection (default
+ * 10)</dd>
+ * <dt>{@code pike.ldap.timeLimit}</dt>
+ * <dd>seconds a search may run for connections that don't set their own time
+ * limit; 0 for no limit (default 60)</dd>
+ * </dl>
+ *
+ * <p>
+ * Contexts wait for a reply no longer than a few seconds past the time limit,
+ * in case the directory doesn't keep to it.
+ *
+ * <p>
+ * Connections with an {@code ldif:} URL get {@link LdifContext}s over the
+ * file instead, pooled and limited the same way.
+ */
+final class LdapContextPool {
+
+  private static final Logger LOGGER = Logger.getLogger(LdapContextPool.class.getName());
+
+  private static final int MIN_SIZE = Integer.getInteger("pike.pool.minSize", 0);
+
+  static final int MAX_SIZE = Math.max(1, Integer.getInteger("pike.pool.maxSize", 8));
+
+  private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.pool.idleTimeout", 300));
+
+  private static final long BORROW_TIMEOUT_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.pool.borrowTimeout", 30));
+
+  private static final boolean VALIDATE_ON_BORROW = Boolean
+      .parseBoolean(System.getProperty("pike.pool.validateOnBorrow", "true"));
+
+  private static final long CONNECT_TIMEOUT_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.ldap.connectTimeout", 10));
+
+  private static final long DEFAULT_TIME_LIMIT_SECONDS = Long.getLong("pike.ldap.timeLimit", 60);
+
+  private static final long READ_TIMEOUT_GRACE_MILLIS = 5000;
+
+  private static final long EVICTION_INTERVAL_SECONDS = 30;
+
+  private static final String[] NO_ATTRIBUTES = new String[] { "1.1" };
+
+  private static final Map<String, LdapContextPool> POOLS = new ConcurrentHashMap<>();
+
+  private static final Metrics.Family LDAP_OPERATIONS = Metrics.histogram("pike_ldap_operation_duration_seconds",
+      "Time taken by LDAP operations", Metrics.LATENCY_BUCKETS, "connection", "operation");
+
+  private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+    var t = new Thread(r, "pike-pool-evictor");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static {
+    EVICTOR.scheduleWithFixedDelay(LdapContextPool::evictAll, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  private final Settings.ConnectionSettings connection;
+
+  private final Deque<IdleContext> idle = new ArrayDeque<>();
+
+  private final Semaphore permits = new Semaphore(MAX_SIZE, true);
+
+  private volatile boolean closed = false;
+
+  private LdapContextPool(Settings.ConnectionSettings connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Borrows a bound context for the given connection.
+   *
+   * @param connection the connection settings
+   * @return a lease on a context; close it to return the context to the pool
+   * @throws NamingException if a new context couldn't be created or bound
+   * @throws ConcurrencyLimiter.LimitExceededException if no context was free
+   *                                                   in time
+   */
+  static PooledContext borrow(Settings.ConnectionSettings connection) throws NamingException {
+    return poolFor(connection).borrow();
+  }
+
+  /**
+   * Closes all contexts for the named connection and discards its pool.
+   *
+   * @param name the connection name
+   */
+  static void evict(String name) {
+    var pool = POOLS.remove(name);
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  /**
+   * Closes all contexts in all pools.
+   */
+  static void shutdown() {
+    EVICTOR.shutdownNow();
+    POOLS.keySet().forEach(LdapContextPool::evict);
+  }
+
+  /**
+   * @return idle contexts, contexts in use and borrowers waiting for each
+   *         connection
+   */
+  static Map<String, Object> getStats() {
+    var stats = new HashMap<String, Object>();
+    POOLS.forEach((name, pool) -> stats.put(name, Map.of("idle", pool.idleCount(), "inUse",
+        MAX_SIZE - pool.permits.availablePermits(), "waiting", pool.permits.getQueueLength())));
+    return stats;
+  }
+
+  /**
+   * Returns the time limit for searches on the given connection.
+   *
+   * @param connection the connection settings
+   * @return the time limit in milliseconds, 0 if there is none
+   */
+  static long getTimeLimitMillis(Settings.ConnectionSettings connection) {
+    var timeLimit = connection.getSearchTimeLimit() >= 0 ? connection.getSearchTimeLimit()
+        : DEFAULT_TIME_LIMIT_SECONDS;
+    return TimeUnit.SECONDS.toMillis(timeLimit);
+  }
+
+  /**
+   * Records how long an operation on a connection took in the metrics and the
+   * request's server timing.
+   *
+   * @param connectionName the connection name
+   * @param operation      the operation's name
+   * @param nanos          the operation's latency in nanoseconds
+   */
+  static void recordOperation(String connectionName, String operation, long nanos) {
+    LDAP_OPERATIONS.labels(connectionName, operation).observeNanos(nanos);
+    ServerTiming.record(operation, nanos);
+  }
+
+  private static LdapContextPool poolFor(Settings.ConnectionSettings connection) {
+    var replaced = new LdapContextPool[1];
+    var current = POOLS.compute(connection.getName(), (name, pool) -> {
+      if (pool != null && pool.connection.equals(connection)) {
+        return pool;
+      }
+      replaced[0] = pool;
+      return new LdapContextPool(connection);
+    });
+    if (replaced[0] != null) {
+      // Closed outside compute so unbinding from the directory doesn't hold
+      // up borrowers for other connections.
+      LOGGER.fine(() -> String.format("Settings for %s changed, rebuilt its context pool.", connection.getName()));
+      replaced[0].close();
+    }
+    return current;
+  }
+
+  private static void evictAll() {
+    for (var pool : POOLS.values()) {
+      try {
+        pool.evictIdle();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Context pool maintenance failed", e);
+      }
+    }
+  }
+
+  private PooledContext borrow() throws NamingException {
+    try {
+      var start = System.nanoTime();
+      if (!permits.tryAcquire()) {
+        // A context parked in an expired cursor won't be asked for again, so
+        // take it back rather than make this request wait.
+        SearchCursors.closeExpired();
+        if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+          throw new ConcurrencyLimiter.LimitExceededException(
+              String.format("No LDAP context free for the %s connection, try again later", connection.getName()),
+              1);
+        }
+      }
+      ServerTiming.record("queue", System.nanoTime() - start);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+
+    try {
+      IdleContext candidate;
+      while ((candidate = pollIdle()) != null) {
+        if (!VALIDATE_ON_BORROW || isValid(candidate.context)) {
+          return new PooledContext(this, candidate.context);
+        }
+        LOGGER.fine(() -> String.format("Discarding stale LDAP context for %s.", connection.getName()));
+        closeQuietly(candidate.context);
+      }
+      return new PooledContext(this, createContext());
+    } catch (NamingException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private synchronized IdleContext pollIdle() {
+    return idle.pollFirst();
+  }
+
+  private void release(LdapContext context, boolean reusable) {
+    try {
+      if (reusable && !closed) {
+        try {
+          context.setRequestControls(null);
+        } catch (NamingException e) {
+          reusable = false;
+        }
+      }
+      if (reusable && !closed) {
+        synchronized (this) {
+          idle.offerFirst(new IdleContext(context, System.currentTimeMillis()));
+        }
+      } else {
+        closeQuietly(context);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void evictIdle() {
+    var now = System.currentTimeMillis();
+    synchronized (this) {
+      while (idle.size() > MIN_SIZE && now - idle.peekLast().lastUsed > IDLE_TIMEOUT_MILLIS) {
+        closeQuietly(idle.pollLast().context);
+      }
+    }
+    while (!closed && idleCount() < MIN_SIZE && permits.tryAcquire()) {
+      try {
+        var context = createContext();
+        synchronized (this) {
+          idle.offerLast(new IdleContext(context, now));
+        }
+      } catch (NamingException e) {
+        LOGGER.log(Level.FINE, String.format("Couldn't prefill context pool for %s", connection.getName()), e);
+        break;
+      } finally {
+        permits.release();
+      }
+    }
+  }
+
+  private synchronized int idleCount() {
+    return idle.size();
+  }
+
+  private synchronized void close() {
+    closed = true;
+    while (!idle.isEmpty()) {
+      closeQuietly(idle.pollFirst().context);
+    }
+  }
+
+  private LdapContext createContext() throws NamingException {
+    if (LdifDirectory.isLdifUrl(connection.getLdapUrl())) {
+      // Nothing to connect or bind to. Loading the file the first time is
+      // timed as connecting.
+      var start = System.nanoTime();
+      var ldifContext = new LdifContext(connection.getLdapUrl(), null);
+      observe("connect", start);
+      return ldifContext;
+    }
+    var env = new Hashtable<String, Object>();
+    env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+    env.put(Context.PROVIDER_URL, connection.getLdapUrl());
+    if (CONNECT_TIMEOUT_MILLIS > 0) {
+      env.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(CONNECT_TIMEOUT_MILLIS));
+    }
+    var timeLimitMillis = getTimeLimitMillis(connection);
+    if (timeLimitMillis > 0) {
+      env.put("com.sun.jndi.ldap.read.timeout", String.valueOf(timeLimitMillis + READ_TIMEOUT_GRACE_MILLIS));
+    }
+    var start = System.nanoTime();
+    var ldapContext = new InitialLdapContext(env, null);
+    start = observe("connect", start);
+    try {
+      if (connection.getUseStartTls()) {
+        LOGGER.fine("Starting TLS session...");
+        var tls = (StartTlsResponse) ldapContext.extendedOperation(new StartTlsRequest());
+        tls.negotiate();
+        start = observe("startTls", start);
+      }
+      ldapContext.addToEnvironment(Context.SECURITY_AUTHENTICATION, connection.getAuthType().toLowerCase());
+      if (!connection.getAuthType().toLowerCase().equals("none")) {
+        LOGGER.fine("Authenticating...");
+        ldapContext.addToEnvironment(Context.SECURITY_PRINCIPAL, connection.getBindDn());
+        ldapContext.addToEnvironment(Context.SECURITY_CREDENTIALS, Settings.getBindPassword(connection));
+      }
+      ldapContext.addToEnvironment(Context.REFERRAL, connection.getReferralPolicy().toLowerCase());
+
+      // Changing the security environment only takes effect on the next
+      // operation, so do a cheap one now to make sure the context is bound
+      // before it goes into the pool.
+      ldapContext.getAttributes("", NO_ATTRIBUTES);
+      observe("bind", start);
+      LOGGER.fine("Ldap context successfully created!");
+      return ldapContext;
+    } catch (NamingException | RuntimeException e) {
+      closeQuietly(ldapContext);
+      throw e;
+    } catch (Exception e) {
+      closeQuietly(ldapContext);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private long observe(String operation, long start) {
+    var now = System.nanoTime();
+    recordOperation(connection.getName(), operation, now - start);
+    return now;
+  }
+
+  private boolean isValid(LdapContext context) {
+    try {
+      context.getAttributes("", NO_ATTRIBUTES);
+      return true;
+    } catch (NamingException e) {
+      return false;
+    }
+  }
+
+  private static void closeQuietly(LdapContext context) {
+    try {
+      context.close();
+    } catch (NamingException e) {
+      LOGGER.log(Level.FINE, "Error closing LDAP context", e);
+    }
+  }
+
+  private static final class IdleContext {
+
+    private final LdapContext context;
+
+    private final long lastUsed;
+
+    private IdleContext(LdapContext context, long lastUsed) {
+      this.context = context;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  /**
+   * A context borrowed from a pool. Closing it returns the context to the pool
+   * unless it has been invalidated.
+   */
+  static final class PooledContext implements AutoCloseable {
+
+    private final LdapContextPool pool;
+
+    private final LdapContext context;
+
+    private boolean reusable = true;
+
+    private boolean released = false;
+
+    private ConcurrencyLimiter.Permit permit;
+
+    private PooledContext(LdapContextPool pool, LdapContext context) {
+      this.pool = pool;
+      this.context = context;
+    }
+
+    LdapContext get() {
+      return context;
+    }
+
+    /**
+     * Ties a concurrency limiter permit to this lease. The permit is given up
+     * when the lease is closed.
+     *
+     * @param permit the permit
+     */
+    void attach(ConcurrencyLimiter.Permit permit) {
+      releasePermit();
+      this.permit = permit;
+    }
+
+    /**
+     * Gives up the permit tied to this lease, if any, while keeping the
+     * context.
+     */
+    void releasePermit() {
+      if (permit != null) {
+        permit.close();
+        permit = null;
+      }
+    }
+
+    /**
+     * Reports how long an operation on the context took to the concurrency
+     * limiter, the metrics and the request's server timing.
+     *
+     * @param operation the operation's name
+     * @param nanos     the operation's latency in nanoseconds
+     */
+    void recordLatency(String operation, long nanos) {
+      recordOperation(pool.connection.getName(), operation, nanos);
+      if (permit != null) {
+        permit.sample(operation, nanos);
+      }
+    }
+
+    /**
+     * Marks the context as unfit for reuse. It will be closed instead of being
+     * returned to the pool.
+     */
+    void invalidate() {
+      reusable = false;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        try {
+          pool.release(context, reusable);
+        } finally {
+          releasePermit();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,427 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.directory.InvalidSearchFilterException;
+
+/**
+ * LDAP search filter (RFC 4515) evaluated against an {@link LdifDirectory}.
+ *
+ * <p>
+ * Equality, presence, substring, ordering and approximate (taken as equality)
+ * assertions are supported, combined with and, or and not. Extensible match
+ * assertions aren't. Values are compared the way the directory compares them,
+ * as case insensitive strings; ordering assertions compare numbers as numbers.
+ */
+abstract class LdapFilter {
+
+  /**
+   * Parses a filter. The outer parentheses may be left off.
+   *
+   * @param filter the filter
+   * @return the parsed filter
+   * @throws InvalidSearchFilterException if the filter isn't valid
+   */
+  static LdapFilter parse(String filter) throws InvalidSearchFilterException {
+    var trimmed = filter == null ? "" : filter.trim();
+    if (trimmed.isEmpty()) {
+      trimmed = SearchRequest.DEFAULT_FILTER;
+    } else if (!trimmed.startsWith("(")) {
+      trimmed = "(" + trimmed + ")";
+    }
+    var parser = new Parser(trimmed);
+    var parsed = parser.parseFilter();
+    if (parser.pos != trimmed.length()) {
+      throw parser.invalid("unexpected text after the filter");
+    }
+    return parsed;
+  }
+
+  /**
+   * @param directory the directory
+   * @param entry     an entry's number
+   * @return {@code true} if the entry matches this filter
+   */
+  abstract boolean matches(LdifDirectory directory, int entry);
+
+  /**
+   * Uses the directory's indexes to narrow down the entries this filter could
+   * match.
+   *
+   * @param directory the directory
+   * @return ascending numbers of the entries that could match, or {@code null}
+   *         if the indexes don't help
+   */
+  abstract int[] candidates(LdifDirectory directory);
+
+  private static final class And extends LdapFilter {
+
+    private final List<LdapFilter> filters;
+
+    private And(List<LdapFilter> filters) {
+      this.filters = filters;
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      for (var filter : filters) {
+        if (!filter.matches(directory, entry)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      int[] candidates = null;
+      for (var filter : filters) {
+        var narrowed = filter.candidates(directory);
+        if (narrowed != null) {
+          candidates = candidates == null ? narrowed : LdifDirectory.intersect(candidates, narrowed);
+          if (candidates.length == 0) {
+            break;
+          }
+        }
+      }
+      return candidates;
+    }
+  }
+
+  private static final class Or extends LdapFilter {
+
+    private final List<LdapFilter> filters;
+
+    private Or(List<LdapFilter> filters) {
+      this.filters = filters;
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      for (var filter : filters) {
+        if (filter.matches(directory, entry)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      var candidates = new int[0];
+      for (var filter : filters) {
+        var narrowed = filter.candidates(directory);
+        if (narrowed == null) {
+          // Anything could match this one.
+          return null;
+        }
+        candidates = LdifDirectory.union(candidates, narrowed);
+      }
+      return candidates;
+    }
+  }
+
+  private static final class Not extends LdapFilter {
+
+    private final LdapFilter filter;
+
+    private Not(LdapFilter filter) {
+      this.filter = filter;
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      return !filter.matches(directory, entry);
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      return null;
+    }
+  }
+
+  private static final class Equality extends LdapFilter {
+
+    private final String attribute;
+
+    private final String value;
+
+    private Equality(String attribute, String value) {
+      this.attribute = attribute;
+      this.value = LdifDirectory.normalizeValue(value);
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      return directory.anyValueMatches(entry, attribute, value::equals);
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      return directory.getEqualityCandidates(attribute, value);
+    }
+  }
+
+  private static final class Presence extends LdapFilter {
+
+    private final String attribute;
+
+    private Presence(String attribute) {
+      this.attribute = attribute;
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      return directory.hasAttribute(entry, attribute);
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      return directory.getPresenceCandidates(attribute);
+    }
+  }
+
+  private static final class Substring extends LdapFilter {
+
+    private final String attribute;
+
+    private final String initial;
+
+    private final List<String> any;
+
+    private final String last;
+
+    private final List<String> pieces = new ArrayList<>();
+
+    private Substring(String attribute, String initial, List<String> any, String last) {
+      this.attribute = attribute;
+      // Values are trimmed, so a space can't start or end one.
+      var normalizedInitial = LdifDirectory.normalizeValue(initial, false);
+      this.initial = normalizedInitial.startsWith(" ") ? normalizedInitial.substring(1) : normalizedInitial;
+      this.any = new ArrayList<>();
+      for (var piece : any) {
+        this.any.add(LdifDirectory.normalizeValue(piece, false));
+      }
+      var normalizedLast = LdifDirectory.normalizeValue(last, false);
+      this.last = normalizedLast.endsWith(" ") ? normalizedLast.substring(0, normalizedLast.length() - 1)
+          : normalizedLast;
+      pieces.add(this.initial);
+      pieces.addAll(this.any);
+      pieces.add(this.last);
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      return directory.anyValueMatches(entry, attribute, this::matches);
+    }
+
+    private boolean matches(String value) {
+      if (!value.startsWith(initial)) {
+        return false;
+      }
+      var pos = initial.length();
+      for (var piece : any) {
+        var found = value.indexOf(piece, pos);
+        if (found < 0) {
+          return false;
+        }
+        pos = found + piece.length();
+      }
+      return value.length() - last.length() >= pos && value.endsWith(last);
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      return directory.getSubstringCandidates(attribute, pieces);
+    }
+  }
+
+  private static final class Ordering extends LdapFilter {
+
+    private final String attribute;
+
+    private final String value;
+
+    private final boolean greater;
+
+    private Ordering(String attribute, String value, boolean greater) {
+      this.attribute = attribute;
+      this.value = LdifDirectory.normalizeValue(value);
+      this.greater = greater;
+    }
+
+    @Override
+    boolean matches(LdifDirectory directory, int entry) {
+      return directory.anyValueMatches(entry, attribute, v -> {
+        var comparison = compare(v, value);
+        return greater ? comparison >= 0 : comparison <= 0;
+      });
+    }
+
+    private static int compare(String a, String b) {
+      if (isNumber(a) && isNumber(b)) {
+        return Long.compare(Long.parseLong(a), Long.parseLong(b));
+      }
+      return a.compareTo(b);
+    }
+
+    private static boolean isNumber(String value) {
+      var start = value.startsWith("-") ? 1 : 0;
+      if (value.length() == start || value.length() - start > 18) {
+        return false;
+      }
+      for (int i = start; i < value.length(); i++) {
+        if (!Character.isDigit(value.charAt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    int[] candidates(LdifDirectory directory) {
+      return null;
+    }
+  }
+
+  private static final class Parser {
+
+    private final String filter;
+
+    private int pos = 0;
+
+    private Parser(String filter) {
+      this.filter = filter;
+    }
+
+    private LdapFilter parseFilter() throws InvalidSearchFilterException {
+      expect('(');
+      if (pos >= filter.length()) {
+        throw invalid("filter ends early");
+      }
+      LdapFilter parsed;
+      switch (filter.charAt(pos)) {
+      case '&':
+        pos++;
+        parsed = new And(parseFilterList());
+        break;
+      case '|':
+        pos++;
+        parsed = new Or(parseFilterList());
+        break;
+      case '!':
+        pos++;
+        parsed = new Not(parseFilter());
+        break;
+      default:
+        parsed = parseItem();
+        break;
+      }
+      expect(')');
+      return parsed;
+    }
+
+    private List<LdapFilter> parseFilterList() throws InvalidSearchFilterException {
+      var filters = new ArrayList<LdapFilter>();
+      while (pos < filter.length() && filter.charAt(pos) == '(') {
+        filters.add(parseFilter());
+      }
+      return filters;
+    }
+
+    private LdapFilter parseItem() throws InvalidSearchFilterException {
+      var start = pos;
+      while (pos < filter.length() && "=~<>:()".indexOf(filter.charAt(pos)) == -1) {
+        pos++;
+      }
+      var attribute = filter.substring(start, pos).trim();
+      if (attribute.isEmpty()) {
+        throw invalid("missing attribute name");
+      }
+      if (pos >= filter.length() || filter.charAt(pos) == '(' || filter.charAt(pos) == ')') {
+        throw invalid(String.format("missing comparison after %s", attribute));
+      }
+      var operator = filter.charAt(pos++);
+      if (operator == ':') {
+        throw invalid("extensible match filters aren't supported");
+      }
+      if (operator != '=') {
+        expect('=');
+      }
+
+      // The value's pieces between unescaped asterisks.
+      var pieces = new ArrayList<String>();
+      var piece = new ByteArrayOutputStream();
+      while (pos < filter.length() && filter.charAt(pos) != ')') {
+        var c = filter.charAt(pos++);
+        if (c == '\\') {
+          readEscape(piece);
+        } else if (c == '*') {
+          pieces.add(new String(piece.toByteArray(), UTF_8));
+          piece.reset();
+        } else if (c == '(') {
+          throw invalid("unescaped ( in a value");
+        } else {
+          var bytes = String.valueOf(c).getBytes(UTF_8);
+          if (Character.isHighSurrogate(c) && pos < filter.length()) {
+            bytes = filter.substring(pos - 1, ++pos).getBytes(UTF_8);
+          }
+          piece.write(bytes, 0, bytes.length);
+        }
+      }
+      pieces.add(new String(piece.toByteArray(), UTF_8));
+
+      if (pieces.size() > 1 && operator != '=') {
+        throw invalid(String.format("wildcard in a %c= comparison", operator));
+      }
+      switch (operator) {
+      case '>':
+        return new Ordering(attribute, pieces.get(0), true);
+      case '<':
+        return new Ordering(attribute, pieces.get(0), false);
+      case '~':
+        return new Equality(attribute, pieces.get(0));
+      default:
+        if (pieces.size() == 1) {
+          return new Equality(attribute, pieces.get(0));
+        } else if (pieces.size() == 2 && pieces.get(0).isEmpty() && pieces.get(1).isEmpty()) {
+          return new Presence(attribute);
+        }
+        return new Substring(attribute, pieces.get(0), pieces.subList(1, pieces.size() - 1),
+            pieces.get(pieces.size() - 1));
+      }
+    }
+
+    private void readEscape(ByteArrayOutputStream piece) throws InvalidSearchFilterException {
+      if (pos + 1 < filter.length() && isHexDigit(filter.charAt(pos)) && isHexDigit(filter.charAt(pos + 1))) {
+        piece.write(Integer.parseInt(filter.substring(pos, pos + 2), 16));
+        pos += 2;
+      } else if (pos < filter.length()) {
+        // Older clients escape the character itself.
+        var bytes = String.valueOf(filter.charAt(pos++)).getBytes(UTF_8);
+        piece.write(bytes, 0, bytes.length);
+      } else {
+        throw invalid("filter ends with \\");
+      }
+    }
+
+    private static boolean isHexDigit(char c) {
+      return Character.digit(c, 16) != -1;
+    }
+
+    private void expect(char c) throws InvalidSearchFilterException {
+      if (pos >= filter.length() || filter.charAt(pos) != c) {
+        throw invalid(String.format("expected %c", c));
+      }
+      pos++;
+    }
+
+    private InvalidSearchFilterException invalid(String message) {
+      return new InvalidSearchFilterException(String.format("Invalid filter %s at %d: %s", filter, pos, message));
+    }
+  }
+}
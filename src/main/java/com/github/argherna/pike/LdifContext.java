@@ -0,0 +1,750 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.naming.Binding;
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortResponseControl;
+
+/**
+ * Read-only LDAP context over an {@link LdifDirectory}, handed out by the
+ * context pool for connections with an {@code ldif:} URL.
+ *
+ * <p>
+ * Searches (with filters, scopes, returned attributes, count and time limits)
+ * and reading entries are supported, as are the sort, paged results and
+ * virtual list view (by offset) request controls Pike sends. Sorting compares
+ * the first value of each key's attribute as the directory compares values,
+ * with entries that have no value last (first in reverse order); ordering
+ * rules are ignored. Everything else, including changing entries,
+ * fails with an {@link OperationNotSupportedException}.
+ */
+final class LdifContext implements LdapContext {
+
+  private static final int BER_VLV_BY_OFFSET = 0xa0;
+
+  private static final int BER_SORT_ORDERING_RULE = 0x80;
+
+  private static final int BER_SORT_REVERSE_ORDER = 0x81;
+
+  private static final String[] ROOT_DSE_CONTROLS = new String[] { SortControl.OID, PagedResultsControl.OID,
+      VirtualListViewControl.OID };
+
+  private final String ldapUrl;
+
+  private final Hashtable<Object, Object> environment;
+
+  private Control[] requestControls;
+
+  private Control[] responseControls;
+
+  /**
+   * Opens a context, loading the directory if it hasn't been loaded yet.
+   *
+   * @param ldapUrl     the connection's {@code ldif:} URL
+   * @param environment the context's environment
+   * @throws NamingException if the file couldn't be loaded
+   */
+  LdifContext(String ldapUrl, Hashtable<?, ?> environment) throws NamingException {
+    LdifDirectory.open(ldapUrl);
+    this.ldapUrl = ldapUrl;
+    this.environment = environment == null ? new Hashtable<>() : new Hashtable<>(environment);
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(String name, String filter, SearchControls cons)
+      throws NamingException {
+    responseControls = null;
+    var searchControls = cons == null ? new SearchControls() : cons;
+    var parsed = LdapFilter.parse(filter);
+
+    SortKey[] sortKeys = null;
+    byte[] sortControl = null;
+    var pageSize = 0;
+    byte[] pageCookie = null;
+    int[] window = null;
+    if (requestControls != null) {
+      for (var control : requestControls) {
+        var ber = new Ber(control.getEncodedValue());
+        if (control.getID().equals(SortControl.OID)) {
+          sortKeys = SortKey.decode(ber);
+          sortControl = control.getEncodedValue();
+        } else if (control.getID().equals(PagedResultsControl.OID)) {
+          var request = ber.readSequence(Ber.SEQUENCE);
+          pageSize = request.readInteger(Ber.INTEGER);
+          pageCookie = request.readOctets(Ber.OCTET_STRING);
+        } else if (control.getID().equals(VirtualListViewControl.OID)) {
+          var request = ber.readSequence(Ber.SEQUENCE);
+          var before = request.readInteger(Ber.INTEGER);
+          var after = request.readInteger(Ber.INTEGER);
+          if (request.peek() != BER_VLV_BY_OFFSET) {
+            throw new OperationNotSupportedException("Only virtual list views by offset are supported");
+          }
+          var target = request.readSequence(BER_VLV_BY_OFFSET);
+          window = new int[] { before, after, target.readInteger(Ber.INTEGER), target.readInteger(Ber.INTEGER) };
+        } else if (control.isCritical()) {
+          throw new OperationNotSupportedException(String.format("Control %s isn't supported", control.getID()));
+        }
+      }
+    }
+
+    // Later pages carry on through the entries the first page found, in the
+    // directory as it was then.
+    var query = String.join("\n", name, Integer.toString(searchControls.getSearchScope()), filter,
+        sortControl == null ? "" : Base64.getEncoder().encodeToString(sortControl));
+    var page = pageCookie == null || pageCookie.length == 0 ? null : Page.resume(pageCookie, query);
+    if (page == null) {
+      var directory = LdifDirectory.open(ldapUrl);
+      var deadline = searchControls.getTimeLimit() > 0
+          ? System.nanoTime() + searchControls.getTimeLimit() * 1_000_000L
+          : 0;
+      var matches = directory.search(name, searchControls.getSearchScope(), parsed, deadline);
+      var entries = sortKeys == null ? matches.getEntries() : sort(directory, matches.getEntries(), sortKeys);
+      page = new Page(directory, entries, matches.isComplete(), query, 0);
+    }
+    var directory = page.directory;
+    var entries = page.entries;
+    var responses = new Control[3];
+    if (sortKeys != null) {
+      try {
+        responses[0] = new SortResponseControl(SortResponseControl.OID, false,
+            Ber.sequence(Ber.integer(Ber.ENUMERATED, 0)));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    var from = 0;
+    var to = entries.length;
+    if (window != null) {
+      // Scale the target to the list's size if the client guessed a different
+      // one.
+      var offset = window[3] > 0 ? (int) ((long) window[2] * entries.length / window[3]) : window[2];
+      var targetPosition = Math.max(1, Math.min(offset, entries.length));
+      from = Math.max(0, targetPosition - 1 - window[0]);
+      to = Math.min(entries.length, targetPosition + window[1]);
+      responses[1] = new BasicControl(VirtualListViewControl.RESPONSE_OID, false,
+          Ber.sequence(Ber.integer(Ber.INTEGER, entries.length == 0 ? 0 : targetPosition),
+              Ber.integer(Ber.INTEGER, entries.length), Ber.integer(Ber.ENUMERATED, 0)));
+    } else if (pageSize > 0) {
+      from = page.next;
+      to = Math.min(entries.length, from + pageSize);
+      var cookie = to < entries.length ? page.suspend(to) : new byte[0];
+      try {
+        responses[2] = new PagedResultsResponseControl(PagedResultsResponseControl.OID, false,
+            Ber.sequence(Ber.integer(Ber.INTEGER, entries.length), Ber.element(Ber.OCTET_STRING, cookie)));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    responseControls = Arrays.stream(responses).filter(c -> c != null).toArray(Control[]::new);
+    return new Results(directory, entries, from, to, searchControls, page.complete);
+  }
+
+  private static int[] sort(LdifDirectory directory, int[] entries, SortKey[] sortKeys) {
+    var keys = new String[entries.length][];
+    var order = new Integer[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      order[i] = i;
+      keys[i] = new String[sortKeys.length];
+      for (int k = 0; k < sortKeys.length; k++) {
+        var key = keys[i];
+        var index = k;
+        directory.anyValueMatches(entries[i], sortKeys[k].attribute, v -> {
+          key[index] = v;
+          return true;
+        });
+      }
+    }
+    Comparator<Integer> comparator = (a, b) -> {
+      for (int k = 0; k < sortKeys.length; k++) {
+        var x = keys[a][k];
+        var y = keys[b][k];
+        // A missing value counts as larger than any other (RFC 2891), so
+        // entries without the attribute go first in reverse order.
+        var comparison = sortKeys[k].direction * (x == null ? (y == null ? 0 : 1) : y == null ? -1 : x.compareTo(y));
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+      return 0;
+    };
+    Arrays.sort(order, comparator);
+    var sorted = new int[entries.length];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = entries[order[i]];
+    }
+    return sorted;
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(Name name, String filter, SearchControls cons)
+      throws NamingException {
+    return search(name.toString(), filter, cons);
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(String name, String filterExpr, Object[] filterArgs,
+      SearchControls cons) throws NamingException {
+    throw unsupported("Searching with filter arguments");
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(Name name, String filterExpr, Object[] filterArgs,
+      SearchControls cons) throws NamingException {
+    return search(name.toString(), filterExpr, filterArgs, cons);
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(String name, Attributes matchingAttributes,
+      String[] attributesToReturn) throws NamingException {
+    throw unsupported("Searching by matching attributes");
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(Name name, Attributes matchingAttributes,
+      String[] attributesToReturn) throws NamingException {
+    return search(name.toString(), matchingAttributes, attributesToReturn);
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(String name, Attributes matchingAttributes)
+      throws NamingException {
+    return search(name, matchingAttributes, null);
+  }
+
+  @Override
+  public NamingEnumeration<SearchResult> search(Name name, Attributes matchingAttributes) throws NamingException {
+    return search(name.toString(), matchingAttributes, null);
+  }
+
+  @Override
+  public Attributes getAttributes(String name, String[] attrIds) throws NamingException {
+    if (name.trim().isEmpty()) {
+      // The root DSE.
+      var rootDse = new BasicAttributes(true);
+      if (attrIds == null || Arrays.asList(attrIds).contains("supportedControl")) {
+        var supportedControl = new BasicAttribute("supportedControl");
+        for (var oid : ROOT_DSE_CONTROLS) {
+          supportedControl.add(oid);
+        }
+        rootDse.put(supportedControl);
+      }
+      return rootDse;
+    }
+    var directory = LdifDirectory.open(ldapUrl);
+    var entry = directory.find(name);
+    if (entry < 0) {
+      throw new NameNotFoundException(String.format("No such object: %s", name));
+    }
+    return directory.getAttributes(entry, attrIds);
+  }
+
+  @Override
+  public Attributes getAttributes(Name name, String[] attrIds) throws NamingException {
+    return getAttributes(name.toString(), attrIds);
+  }
+
+  @Override
+  public Attributes getAttributes(String name) throws NamingException {
+    return getAttributes(name, null);
+  }
+
+  @Override
+  public Attributes getAttributes(Name name) throws NamingException {
+    return getAttributes(name.toString(), null);
+  }
+
+  @Override
+  public void setRequestControls(Control[] requestControls) throws NamingException {
+    this.requestControls = requestControls == null ? null : requestControls.clone();
+  }
+
+  @Override
+  public Control[] getRequestControls() throws NamingException {
+    return requestControls == null ? null : requestControls.clone();
+  }
+
+  @Override
+  public Control[] getResponseControls() throws NamingException {
+    return responseControls == null ? null : responseControls.clone();
+  }
+
+  @Override
+  public Control[] getConnectControls() throws NamingException {
+    return null;
+  }
+
+  @Override
+  public void reconnect(Control[] connCtls) throws NamingException {
+    // There's no connection.
+  }
+
+  @Override
+  public LdapContext newInstance(Control[] requestControls) throws NamingException {
+    var context = new LdifContext(ldapUrl, environment);
+    context.setRequestControls(requestControls);
+    return context;
+  }
+
+  @Override
+  public ExtendedResponse extendedOperation(ExtendedRequest request) throws NamingException {
+    throw unsupported(String.format("Extended operation %s", request.getID()));
+  }
+
+  @Override
+  public Object addToEnvironment(String propName, Object propVal) throws NamingException {
+    return environment.put(propName, propVal);
+  }
+
+  @Override
+  public Object removeFromEnvironment(String propName) throws NamingException {
+    return environment.remove(propName);
+  }
+
+  @Override
+  public Hashtable<?, ?> getEnvironment() throws NamingException {
+    return new Hashtable<>(environment);
+  }
+
+  @Override
+  public void close() throws NamingException {
+    // The directory is shared and stays loaded.
+  }
+
+  @Override
+  public String getNameInNamespace() throws NamingException {
+    return "";
+  }
+
+  @Override
+  public Name composeName(Name name, Name prefix) throws NamingException {
+    return ((Name) prefix.clone()).addAll(name);
+  }
+
+  @Override
+  public String composeName(String name, String prefix) throws NamingException {
+    return composeName(new CompositeName(name), new CompositeName(prefix)).toString();
+  }
+
+  @Override
+  public Object lookup(Name name) throws NamingException {
+    return lookup(name.toString());
+  }
+
+  @Override
+  public Object lookup(String name) throws NamingException {
+    throw unsupported("Looking up objects");
+  }
+
+  @Override
+  public Object lookupLink(Name name) throws NamingException {
+    return lookupLink(name.toString());
+  }
+
+  @Override
+  public Object lookupLink(String name) throws NamingException {
+    throw unsupported("Looking up objects");
+  }
+
+  @Override
+  public NamingEnumeration<NameClassPair> list(Name name) throws NamingException {
+    return list(name.toString());
+  }
+
+  @Override
+  public NamingEnumeration<NameClassPair> list(String name) throws NamingException {
+    throw unsupported("Listing objects");
+  }
+
+  @Override
+  public NamingEnumeration<Binding> listBindings(Name name) throws NamingException {
+    return listBindings(name.toString());
+  }
+
+  @Override
+  public NamingEnumeration<Binding> listBindings(String name) throws NamingException {
+    throw unsupported("Listing objects");
+  }
+
+  @Override
+  public NameParser getNameParser(Name name) throws NamingException {
+    return getNameParser(name.toString());
+  }
+
+  @Override
+  public NameParser getNameParser(String name) throws NamingException {
+    throw unsupported("Parsing names");
+  }
+
+  @Override
+  public void bind(Name name, Object obj) throws NamingException {
+    bind(name.toString(), obj);
+  }
+
+  @Override
+  public void bind(String name, Object obj) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void bind(Name name, Object obj, Attributes attrs) throws NamingException {
+    bind(name.toString(), obj, attrs);
+  }
+
+  @Override
+  public void bind(String name, Object obj, Attributes attrs) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void rebind(Name name, Object obj) throws NamingException {
+    rebind(name.toString(), obj);
+  }
+
+  @Override
+  public void rebind(String name, Object obj) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void rebind(Name name, Object obj, Attributes attrs) throws NamingException {
+    rebind(name.toString(), obj, attrs);
+  }
+
+  @Override
+  public void rebind(String name, Object obj, Attributes attrs) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void unbind(Name name) throws NamingException {
+    unbind(name.toString());
+  }
+
+  @Override
+  public void unbind(String name) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void rename(Name oldName, Name newName) throws NamingException {
+    rename(oldName.toString(), newName.toString());
+  }
+
+  @Override
+  public void rename(String oldName, String newName) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public Context createSubcontext(Name name) throws NamingException {
+    return createSubcontext(name.toString());
+  }
+
+  @Override
+  public Context createSubcontext(String name) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public DirContext createSubcontext(Name name, Attributes attrs) throws NamingException {
+    return createSubcontext(name.toString(), attrs);
+  }
+
+  @Override
+  public DirContext createSubcontext(String name, Attributes attrs) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void destroySubcontext(Name name) throws NamingException {
+    destroySubcontext(name.toString());
+  }
+
+  @Override
+  public void destroySubcontext(String name) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void modifyAttributes(Name name, int modOp, Attributes attrs) throws NamingException {
+    modifyAttributes(name.toString(), modOp, attrs);
+  }
+
+  @Override
+  public void modifyAttributes(String name, int modOp, Attributes attrs) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public void modifyAttributes(Name name, ModificationItem[] mods) throws NamingException {
+    modifyAttributes(name.toString(), mods);
+  }
+
+  @Override
+  public void modifyAttributes(String name, ModificationItem[] mods) throws NamingException {
+    throw readOnly();
+  }
+
+  @Override
+  public DirContext getSchema(Name name) throws NamingException {
+    return getSchema(name.toString());
+  }
+
+  @Override
+  public DirContext getSchema(String name) throws NamingException {
+    throw unsupported("Reading the schema");
+  }
+
+  @Override
+  public DirContext getSchemaClassDefinition(Name name) throws NamingException {
+    return getSchemaClassDefinition(name.toString());
+  }
+
+  @Override
+  public DirContext getSchemaClassDefinition(String name) throws NamingException {
+    throw unsupported("Reading the schema");
+  }
+
+  private static OperationNotSupportedException unsupported(String operation) {
+    return new OperationNotSupportedException(String.format("%s isn't supported by LDIF directories", operation));
+  }
+
+  private static OperationNotSupportedException readOnly() {
+    return new OperationNotSupportedException("LDIF directories are read-only");
+  }
+
+  /**
+   * A sort key decoded from a sort control.
+   *
+   * <pre>
+   * SortKeyList ::= SEQUENCE OF SEQUENCE {
+   *   attributeType   AttributeDescription,
+   *   orderingRule    [0] MatchingRuleId OPTIONAL,
+   *   reverseOrder    [1] BOOLEAN DEFAULT FALSE }
+   * </pre>
+   */
+  private static final class SortKey {
+
+    private final String attribute;
+
+    private final int direction;
+
+    private SortKey(String attribute, int direction) {
+      this.attribute = attribute;
+      this.direction = direction;
+    }
+
+    private static SortKey[] decode(Ber ber) throws NamingException {
+      var keys = new ArrayList<SortKey>();
+      var list = ber.readSequence(Ber.SEQUENCE);
+      while (list.hasMore()) {
+        var key = list.readSequence(Ber.SEQUENCE);
+        var attribute = new String(key.readOctets(Ber.OCTET_STRING), UTF_8);
+        var reverse = false;
+        while (key.hasMore()) {
+          if (key.peek() == BER_SORT_REVERSE_ORDER) {
+            reverse = key.readBoolean(BER_SORT_REVERSE_ORDER);
+          } else {
+            key.readOctets(BER_SORT_ORDERING_RULE);
+          }
+        }
+        keys.add(new SortKey(attribute, reverse ? -1 : 1));
+      }
+      return keys.toArray(new SortKey[0]);
+    }
+  }
+
+  /**
+   * Where a paged search is up to. The cookie handed back with each page but
+   * the last names the page after it, so pages keep to the entries the first
+   * page found in the order it sorted them, even if the file is reloaded in
+   * between. Only the most recent paged searches are kept.
+   */
+  private static final class Page {
+
+    private static final int MAX_SUSPENDED = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Map<String, Page> SUSPENDED = new LinkedHashMap<>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+        return size() > MAX_SUSPENDED;
+      }
+    };
+
+    private final LdifDirectory directory;
+
+    private final int[] entries;
+
+    private final boolean complete;
+
+    private final String query;
+
+    private final int next;
+
+    private Page(LdifDirectory directory, int[] entries, boolean complete, String query, int next) {
+      this.directory = directory;
+      this.entries = entries;
+      this.complete = complete;
+      this.query = query;
+      this.next = next;
+    }
+
+    /**
+     * Takes up a paged search where a cookie left it.
+     *
+     * @param cookie the cookie from the last page
+     * @param query  the search, which has to be the one the cookie came from
+     * @return the page
+     * @throws NamingException if the cookie is unknown, has been dropped to
+     *                         make room for newer searches, or is for another
+     *                         search
+     */
+    private static Page resume(byte[] cookie, String query) throws NamingException {
+      Page page;
+      synchronized (SUSPENDED) {
+        page = SUSPENDED.remove(Base64.getEncoder().encodeToString(cookie));
+      }
+      if (page == null || !page.query.equals(query)) {
+        throw new NamingException("Paged results cookie is unknown or has expired");
+      }
+      return page;
+    }
+
+    /**
+     * Keeps the search to carry on from an entry.
+     *
+     * @param next the index of the next page's first entry
+     * @return the cookie for the next page
+     */
+    private byte[] suspend(int next) {
+      var cookie = new byte[16];
+      RANDOM.nextBytes(cookie);
+      synchronized (SUSPENDED) {
+        SUSPENDED.put(Base64.getEncoder().encodeToString(cookie), new Page(directory, entries, complete, query, next));
+      }
+      return cookie;
+    }
+  }
+
+  /**
+   * The results of a search, made into search results as they're read.
+   */
+  private static final class Results implements NamingEnumeration<SearchResult> {
+
+    private final LdifDirectory directory;
+
+    private final int[] entries;
+
+    private final int to;
+
+    private final String[] attributeIds;
+
+    private final long countLimit;
+
+    private final boolean complete;
+
+    private int next;
+
+    private long returned = 0;
+
+    private Results(LdifDirectory directory, int[] entries, int from, int to, SearchControls searchControls,
+        boolean complete) {
+      this.directory = directory;
+      this.entries = entries;
+      this.next = from;
+      this.to = to;
+      this.attributeIds = searchControls.getReturningAttributes();
+      this.countLimit = searchControls.getCountLimit();
+      this.complete = complete;
+    }
+
+    @Override
+    public boolean hasMore() throws NamingException {
+      if (next < to && countLimit > 0 && returned >= countLimit) {
+        throw new SizeLimitExceededException();
+      }
+      if (next >= to && !complete) {
+        throw new TimeLimitExceededException();
+      }
+      return next < to;
+    }
+
+    @Override
+    public SearchResult next() throws NamingException {
+      if (!hasMore()) {
+        throw new NoSuchElementException();
+      }
+      var entry = entries[next++];
+      returned++;
+      var dn = directory.getDn(entry);
+      var result = new SearchResult(dn, null, directory.getAttributes(entry, attributeIds), false);
+      result.setNameInNamespace(dn);
+      return result;
+    }
+
+    @Override
+    public boolean hasMoreElements() {
+      try {
+        return hasMore();
+      } catch (NamingException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public SearchResult nextElement() {
+      try {
+        return next();
+      } catch (NamingException e) {
+        throw new NoSuchElementException(e.getMessage());
+      }
+    }
+
+    @Override
+    public void close() {
+      next = to;
+    }
+  }
+}
@@ -0,0 +1,995 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NoPermissionException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.InvalidAttributesException;
+import javax.naming.directory.SearchControls;
+
+/**
+ * Read-only directory held in memory, loaded from an LDIF file.
+ *
+ * <p>
+ * Connections whose LDAP URL is {@code ldif:} followed by the path of a file
+ * (e.g. {@code ldif:/var/tmp/export.ldif}) are served from one of these
+ * instead of a directory server. The file is loaded the first time it's used
+ * and again in the background whenever it changes, while what was loaded
+ * before is still served. Only content records (and {@code changetype:
+ * add} records) are read. The file, and any file a value is read from with a
+ * {@code :<} URL, has to be in the LDIF directory; relative paths are taken
+ * from there. No file is read until the LDIF directory is set.
+ *
+ * <p>
+ * Entries are numbered in the order they appear in the file. Indexed
+ * attributes get an equality index (value to entry numbers) and a presence
+ * index, and can also get a substring index of the trigrams in their values,
+ * so filters on them only look at the entries they could match. All values
+ * are compared as case insensitive strings with runs of white space taken as
+ * one space.
+ *
+ * <p>
+ * Set these system properties to say where the files are and how they're
+ * indexed:
+ * <dl>
+ * <dt>{@code pike.ldif.dir}</dt>
+ * <dd>directory the LDIF files are in (no default)</dd>
+ * <dt>{@code pike.ldif.indexes}</dt>
+ * <dd>comma separated attributes to give equality and presence indexes
+ * (default {@code objectClass,uid,cn,sn,givenName,mail,memberOf})</dd>
+ * <dt>{@code pike.ldif.substringIndexes}</dt>
+ * <dd>comma separated indexed attributes to also give substring indexes (default
+ * {@code uid,cn,sn,givenName,mail})</dd>
+ * <dt>{@code pike.ldif.checkInterval}</dt>
+ * <dd>seconds between checks of whether a loaded file has changed (default
+ * 1)</dd>
+ * </dl>
+ */
+final class LdifDirectory {
+
+  private static final Logger LOGGER = Logger.getLogger(LdifDirectory.class.getName());
+
+  private static final String URL_SCHEME = "ldif:";
+
+  private static final Path DATA_DIRECTORY = System.getProperty("pike.ldif.dir") == null ? null
+      : Paths.get(System.getProperty("pike.ldif.dir")).toAbsolutePath().normalize();
+
+  private static final Set<String> INDEXED_ATTRIBUTES = indexedAttributes(
+      System.getProperty("pike.ldif.indexes", "objectClass,uid,cn,sn,givenName,mail,memberOf"));
+
+  private static final Set<String> SUBSTRING_INDEXED_ATTRIBUTES = indexedAttributes(
+      System.getProperty("pike.ldif.substringIndexes", "uid,cn,sn,givenName,mail"));
+
+  // Attributes whose values are kept as bytes, as JNDI does by default.
+  private static final Set<String> BINARY_ATTRIBUTES = Set.of("userpassword", "userpkcs12", "usercertificate",
+      "cacertificate", "authorityrevocationlist", "certificaterevocationlist", "crosscertificatepair",
+      "x500uniqueidentifier", "audio", "jpegphoto", "photo", "personalsignature", "objectguid", "objectsid");
+
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS
+      .toNanos(Long.getLong("pike.ldif.checkInterval", 1));
+
+  private static final int GRAM_LENGTH = 3;
+
+  private static final int[] NONE = new int[0];
+
+  private static final Map<Path, LdifDirectory> DIRECTORIES = new ConcurrentHashMap<>();
+
+  private static final Map<Path, CompletableFuture<LdifDirectory>> LOADING = new ConcurrentHashMap<>();
+
+  private static final ExecutorService RELOADER = Executors.newCachedThreadPool(r -> {
+    var t = new Thread(r, "pike-ldif-reloader");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final Path path;
+
+  // The version of the file last seen, which is the one loaded unless a
+  // reload of a later one failed.
+  private volatile FileTime lastModified;
+
+  private volatile long size;
+
+  private volatile long checkedAt = System.nanoTime();
+
+  private final String[] dns;
+
+  private final String[] normalizedDns;
+
+  // For each entry, the attribute name of each value and the value (a String
+  // or, for binary values, a byte[]).
+  private final String[][] names;
+
+  private final Object[][] values;
+
+  private final Map<String, Integer> entryNumbers;
+
+  private final Map<String, int[]> children;
+
+  // Distinguished names with entries under them, whether they're in the file
+  // or not, so searches can start above the top entries.
+  private final Set<String> ancestors;
+
+  private final Map<String, Index> indexes;
+
+  private LdifDirectory(Path path, BasicFileAttributes fileAttributes, Loader loader) {
+    this.path = path;
+    this.lastModified = fileAttributes.lastModifiedTime();
+    this.size = fileAttributes.size();
+    this.dns = loader.dns.toArray(new String[0]);
+    this.normalizedDns = loader.normalizedDns.toArray(new String[0]);
+    this.names = loader.names.toArray(new String[0][]);
+    this.values = loader.values.toArray(new Object[0][]);
+    this.entryNumbers = loader.entryNumbers;
+    this.children = new HashMap<>();
+    loader.children.forEach((dn, entries) -> children.put(dn, entries.toArray()));
+    this.ancestors = loader.ancestors;
+    this.indexes = new HashMap<>();
+    loader.indexes.forEach((name, index) -> indexes.put(name, index.build()));
+  }
+
+  /**
+   * @param ldapUrl a connection's LDAP URL
+   * @return {@code true} if the URL names an LDIF file
+   */
+  static boolean isLdifUrl(String ldapUrl) {
+    return ldapUrl != null && ldapUrl.regionMatches(true, 0, URL_SCHEME, 0, URL_SCHEME.length());
+  }
+
+  /**
+   * Returns the directory for an {@code ldif:} URL, loading the file if it
+   * hasn't been loaded yet. If the file has changed since it was loaded, it's
+   * loaded again in the background and the directory already loaded is
+   * returned until that's done.
+   *
+   * @param ldapUrl the URL
+   * @return the directory
+   * @throws NamingException if the file isn't in the LDIF directory, couldn't
+   *                         be read or isn't valid LDIF
+   */
+  static LdifDirectory open(String ldapUrl) throws NamingException {
+    var path = toPath(ldapUrl);
+    var directory = DIRECTORIES.get(path);
+    if (directory == null) {
+      // Nothing to serve until it's loaded, so load it on this thread.
+      return await(load(path, null, Runnable::run));
+    }
+    var changed = directory.changedAttributes();
+    if (changed != null) {
+      load(path, directory, RELOADER).whenComplete((loaded, e) -> {
+        if (e != null) {
+          // Don't try this version again; keep serving the one loaded.
+          directory.lastModified = changed.lastModifiedTime();
+          directory.size = changed.size();
+          LOGGER.log(Level.WARNING, String.format("Couldn't reload %s, still serving what was loaded before", path), e);
+        }
+      });
+    }
+    return directory;
+  }
+
+  /**
+   * Starts loading a file unless it's already being loaded, and makes what's
+   * loaded the directory for it.
+   *
+   * @param path     the file
+   * @param previous the directory loaded from it before, or {@code null}
+   * @param executor runs the load
+   * @return the load in progress
+   */
+  private static CompletableFuture<LdifDirectory> load(Path path, LdifDirectory previous, Executor executor) {
+    var future = new CompletableFuture<LdifDirectory>();
+    var loading = LOADING.putIfAbsent(path, future);
+    if (loading != null) {
+      return loading;
+    }
+    executor.execute(() -> {
+      try {
+        var directory = load(path);
+        if (previous == null) {
+          DIRECTORIES.put(path, directory);
+        } else {
+          DIRECTORIES.replace(path, previous, directory);
+        }
+        future.complete(directory);
+      } catch (NamingException | RuntimeException e) {
+        future.completeExceptionally(e);
+      } finally {
+        LOADING.remove(path, future);
+      }
+    });
+    return future;
+  }
+
+  private static LdifDirectory await(CompletableFuture<LdifDirectory> loading) throws NamingException {
+    try {
+      return loading.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof NamingException) {
+        throw (NamingException) e.getCause();
+      }
+      throw (RuntimeException) e.getCause();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedNamingException("Interrupted while waiting for an LDIF file to load");
+    }
+  }
+
+  private static Path toPath(String ldapUrl) throws NamingException {
+    var location = ldapUrl.substring(URL_SCHEME.length());
+    if (location.startsWith("//")) {
+      // ldif:///var/tmp/export.ldif
+      location = location.substring(2);
+    }
+    if (DATA_DIRECTORY == null) {
+      throw new NoPermissionException("LDIF files can't be read until pike.ldif.dir is set");
+    }
+    Path path;
+    try {
+      path = DATA_DIRECTORY.resolve(location).normalize();
+    } catch (InvalidPathException e) {
+      throw new InvalidNameException(String.format("%s isn't a valid path", location));
+    }
+    if (!isInDataDirectory(path)) {
+      throw new NoPermissionException(String.format("%s isn't in the LDIF directory", location));
+    }
+    return path;
+  }
+
+  /**
+   * Tells if a file is in the LDIF directory, following any links. A file
+   * that doesn't exist yet only has to be named under it.
+   *
+   * @param path an absolute, normalized path
+   * @return {@code true} if the file is in the LDIF directory
+   */
+  private static boolean isInDataDirectory(Path path) {
+    if (DATA_DIRECTORY == null || !path.startsWith(DATA_DIRECTORY)) {
+      return false;
+    }
+    try {
+      return path.toRealPath().startsWith(DATA_DIRECTORY.toRealPath());
+    } catch (IOException e) {
+      return !Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+    }
+  }
+
+  /**
+   * Checks if the file has changed, at most once every check interval.
+   *
+   * @return the file's attributes if it has changed, otherwise {@code null}
+   */
+  private BasicFileAttributes changedAttributes() {
+    var now = System.nanoTime();
+    if (now - checkedAt < CHECK_INTERVAL_NANOS) {
+      return null;
+    }
+    checkedAt = now;
+    try {
+      var fileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return fileAttributes.lastModifiedTime().equals(lastModified) && fileAttributes.size() == size ? null
+          : fileAttributes;
+    } catch (IOException e) {
+      // Keep serving what was loaded while the file is being replaced.
+      return null;
+    }
+  }
+
+  private static LdifDirectory load(Path path) throws NamingException {
+    var start = System.nanoTime();
+    var loader = new Loader();
+    BasicFileAttributes fileAttributes;
+    try (var reader = Files.newBufferedReader(path, UTF_8)) {
+      fileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+      loader.read(reader);
+    } catch (IOException e) {
+      var ne = new ServiceUnavailableException(String.format("Couldn't read %s: %s", path, e.getMessage()));
+      ne.setRootCause(e);
+      throw ne;
+    }
+    var directory = new LdifDirectory(path, fileAttributes, loader);
+    LOGGER.info(() -> String.format("Loaded %d entries from %s in %d ms", directory.dns.length, path,
+        (System.nanoTime() - start) / 1_000_000));
+    return directory;
+  }
+
+  private static Set<String> indexedAttributes(String property) {
+    var attributes = new HashSet<String>();
+    for (var attribute : property.split(",")) {
+      if (!attribute.trim().isEmpty()) {
+        attributes.add(attribute.trim().toLowerCase(Locale.ROOT));
+      }
+    }
+    return attributes;
+  }
+
+  /**
+   * @return the number of entries
+   */
+  int size() {
+    return dns.length;
+  }
+
+  /**
+   * Finds the entries in scope of a search that match a filter.
+   *
+   * @param base     distinguished name of the search base
+   * @param scope    one of the {@link SearchControls} scopes
+   * @param filter   the filter
+   * @param deadline {@link System#nanoTime()} to stop looking at, 0 for none
+   * @return the matching entries in the order they're in the file
+   * @throws NameNotFoundException if there's nothing at the search base
+   */
+  Matches search(String base, int scope, LdapFilter filter, long deadline) throws NameNotFoundException {
+    var normalizedBase = normalizeDn(base);
+    var baseEntry = entryNumbers.get(normalizedBase);
+    if (baseEntry == null && !normalizedBase.isEmpty() && !ancestors.contains(normalizedBase)) {
+      throw new NameNotFoundException(String.format("No such object: %s", base));
+    }
+
+    int[] inScope = null;
+    if (scope == SearchControls.OBJECT_SCOPE) {
+      inScope = baseEntry == null ? NONE : new int[] { baseEntry };
+    } else if (scope == SearchControls.ONELEVEL_SCOPE) {
+      inScope = children.getOrDefault(normalizedBase, NONE);
+    }
+    var candidates = filter.candidates(this);
+    if (candidates != null && inScope != null) {
+      candidates = intersect(candidates, inScope);
+    } else if (candidates == null) {
+      candidates = inScope;
+    }
+
+    // Subtree searches of everything under the base that the indexes didn't
+    // narrow down look at every entry.
+    var checkSubtree = scope == SearchControls.SUBTREE_SCOPE && !normalizedBase.isEmpty();
+    var count = candidates == null ? dns.length : candidates.length;
+    var matches = new IntList(Math.min(count, 1024));
+    for (int i = 0; i < count; i++) {
+      if (deadline != 0 && (i & 0x3ff) == 0x3ff && System.nanoTime() - deadline > 0) {
+        return new Matches(matches.toArray(), false);
+      }
+      var entry = candidates == null ? i : candidates[i];
+      if (checkSubtree && !isInSubtree(normalizedDns[entry], normalizedBase)) {
+        continue;
+      }
+      if (filter.matches(this, entry)) {
+        matches.add(entry);
+      }
+    }
+    return new Matches(matches.toArray(), true);
+  }
+
+  private static boolean isInSubtree(String dn, String base) {
+    return dn.endsWith(base)
+        && (dn.length() == base.length() || dn.charAt(dn.length() - base.length() - 1) == ',');
+  }
+
+  /**
+   * @param dn a distinguished name
+   * @return the number of its entry, -1 if it's not in the directory
+   */
+  int find(String dn) {
+    var entry = entryNumbers.get(normalizeDn(dn));
+    return entry == null ? -1 : entry;
+  }
+
+  /**
+   * @param entry an entry's number
+   * @return its distinguished name as written in the file
+   */
+  String getDn(int entry) {
+    return dns[entry];
+  }
+
+  /**
+   * Returns some or all of an entry's attributes.
+   *
+   * @param entry        the entry's number
+   * @param attributeIds the attributes to return; {@code null} or {@code "*"}
+   *                     for all of them and {@code "1.1"} for none
+   * @return the attributes
+   */
+  Attributes getAttributes(int entry, String[] attributeIds) {
+    Set<String> wanted = null;
+    if (attributeIds != null) {
+      wanted = new HashSet<>();
+      for (var id : attributeIds) {
+        if (id.equals("*") || id.equals("+")) {
+          wanted = null;
+          break;
+        }
+        wanted.add(id.toLowerCase(Locale.ROOT));
+      }
+    }
+    var attributes = new BasicAttributes(true);
+    var entryNames = names[entry];
+    var entryValues = values[entry];
+    for (int i = 0; i < entryNames.length; i++) {
+      if (wanted != null && !wanted.contains(entryNames[i].toLowerCase(Locale.ROOT))) {
+        continue;
+      }
+      var attribute = attributes.get(entryNames[i]);
+      if (attribute == null) {
+        attribute = new BasicAttribute(entryNames[i]);
+        attributes.put(attribute);
+      }
+      attribute.add(entryValues[i]);
+    }
+    return attributes;
+  }
+
+  /**
+   * @param entry     an entry's number
+   * @param attribute an attribute name
+   * @return {@code true} if the entry has a value for the attribute
+   */
+  boolean hasAttribute(int entry, String attribute) {
+    for (var name : names[entry]) {
+      if (name.equalsIgnoreCase(attribute)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tests an entry's string values for an attribute.
+   *
+   * @param entry     an entry's number
+   * @param attribute an attribute name
+   * @param test      test of a {@link #normalizeValue(String) normalized}
+   *                  value
+   * @return {@code true} if any value passes the test
+   */
+  boolean anyValueMatches(int entry, String attribute, Predicate<String> test) {
+    var entryNames = names[entry];
+    for (int i = 0; i < entryNames.length; i++) {
+      if (entryNames[i].equalsIgnoreCase(attribute) && values[entry][i] instanceof String
+          && test.test(normalizeValue((String) values[entry][i]))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param attribute an attribute name
+   * @param value     a {@link #normalizeValue(String) normalized} value
+   * @return the entries with the value, or {@code null} if the attribute isn't
+   *         indexed
+   */
+  int[] getEqualityCandidates(String attribute, String value) {
+    var index = indexes.get(attribute.toLowerCase(Locale.ROOT));
+    return index == null ? null : index.values.getOrDefault(value, NONE);
+  }
+
+  /**
+   * @param attribute an attribute name
+   * @return the entries with the attribute, or {@code null} if it isn't
+   *         indexed
+   */
+  int[] getPresenceCandidates(String attribute) {
+    var index = indexes.get(attribute.toLowerCase(Locale.ROOT));
+    return index == null ? null : index.present;
+  }
+
+  /**
+   * @param attribute an attribute name
+   * @param pieces    {@link #normalizeValue(String) normalized} pieces that
+   *                  all have to be in a value
+   * @return entries with values that have the trigrams of every piece, or
+   *         {@code null} if the attribute isn't indexed or no piece is long
+   *         enough to narrow it down
+   */
+  int[] getSubstringCandidates(String attribute, List<String> pieces) {
+    var index = indexes.get(attribute.toLowerCase(Locale.ROOT));
+    if (index == null || index.grams == null) {
+      return null;
+    }
+    int[] candidates = null;
+    for (var piece : pieces) {
+      for (int i = 0; i + GRAM_LENGTH <= piece.length(); i++) {
+        var entries = index.grams.getOrDefault(piece.substring(i, i + GRAM_LENGTH), NONE);
+        candidates = candidates == null ? entries : intersect(candidates, entries);
+        if (candidates.length == 0) {
+          return candidates;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Intersects two ascending lists of entry numbers.
+   *
+   * @param a a list
+   * @param b another list
+   * @return the entries in both, ascending
+   */
+  static int[] intersect(int[] a, int[] b) {
+    var result = new int[Math.min(a.length, b.length)];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[n++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Merges two ascending lists of entry numbers.
+   *
+   * @param a a list
+   * @param b another list
+   * @return the entries in either, ascending
+   */
+  static int[] union(int[] a, int[] b) {
+    var result = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        result[n++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        result[n++] = b[j++];
+      } else {
+        result[n++] = a[i++];
+        j++;
+      }
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Puts a distinguished name in the form names are compared in: lower case
+   * with no spaces around the separators.
+   *
+   * @param dn the distinguished name
+   * @return the normalized name
+   */
+  static String normalizeDn(String dn) {
+    var normalized = new StringBuilder(dn.length());
+    var separated = true;
+    for (int i = 0; i < dn.length(); i++) {
+      var c = dn.charAt(i);
+      if (c == ' ') {
+        var end = i;
+        while (end < dn.length() && dn.charAt(end) == ' ') {
+          end++;
+        }
+        if (!separated && end < dn.length() && !isDnSeparator(dn.charAt(end))) {
+          normalized.append(dn, i, end);
+        }
+        i = end - 1;
+      } else if (c == '\\' && i + 1 < dn.length()) {
+        normalized.append(c).append(Character.toLowerCase(dn.charAt(++i)));
+        separated = false;
+      } else {
+        normalized.append(Character.toLowerCase(c));
+        separated = isDnSeparator(c);
+      }
+    }
+    // Most names are already normalized, so keep one copy.
+    return dn.contentEquals(normalized) ? dn : normalized.toString();
+  }
+
+  private static boolean isDnSeparator(char c) {
+    return c == ',' || c == '=' || c == '+';
+  }
+
+  private static String parentOf(String normalizedDn) {
+    for (int i = 0; i < normalizedDn.length(); i++) {
+      var c = normalizedDn.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == ',') {
+        return normalizedDn.substring(i + 1);
+      }
+    }
+    return "";
+  }
+
+  /**
+   * Puts a value in the form values are compared in: lower case and trimmed
+   * with runs of white space replaced by one space.
+   *
+   * @param value the value
+   * @return the normalized value
+   */
+  static String normalizeValue(String value) {
+    return normalizeValue(value, true);
+  }
+
+  /**
+   * Puts part of a value in the form values are compared in without trimming
+   * it, so spaces at its ends still have to match.
+   *
+   * @param value the value
+   * @param trim  {@code true} to trim the value
+   * @return the normalized value
+   */
+  static String normalizeValue(String value, boolean trim) {
+    var normalized = new StringBuilder(value.length());
+    var space = false;
+    for (int i = 0; i < value.length(); i++) {
+      var c = value.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+      } else {
+        if (space && (!trim || normalized.length() > 0)) {
+          normalized.append(' ');
+        }
+        space = false;
+        normalized.append(Character.toLowerCase(c));
+      }
+    }
+    if (space && !trim) {
+      normalized.append(' ');
+    }
+    return value.contentEquals(normalized) ? value : normalized.toString();
+  }
+
+  /**
+   * Entries found by a search.
+   */
+  static final class Matches {
+
+    private final int[] entries;
+
+    private final boolean complete;
+
+    private Matches(int[] entries, boolean complete) {
+      this.entries = entries;
+      this.complete = complete;
+    }
+
+    /**
+     * @return numbers of the matching entries
+     */
+    int[] getEntries() {
+      return entries;
+    }
+
+    /**
+     * @return {@code false} if the search ran out of time before looking at
+     *         every entry
+     */
+    boolean isComplete() {
+      return complete;
+    }
+  }
+
+  private static final class Index {
+
+    private final Map<String, int[]> values;
+
+    private final int[] present;
+
+    // Null if the attribute has no substring index.
+    private final Map<String, int[]> grams;
+
+    private Index(Map<String, int[]> values, int[] present, Map<String, int[]> grams) {
+      this.values = values;
+      this.present = present;
+      this.grams = grams;
+    }
+  }
+
+  private static final class IndexBuilder {
+
+    private final Map<String, IntList> values = new HashMap<>();
+
+    private final IntList present = new IntList(16);
+
+    private final Map<String, IntList> grams;
+
+    private IndexBuilder(boolean substrings) {
+      grams = substrings ? new HashMap<>() : null;
+    }
+
+    private void add(int entry, String value) {
+      present.add(entry);
+      var normalized = normalizeValue(value);
+      values.computeIfAbsent(normalized, v -> new IntList(1)).add(entry);
+      if (grams != null) {
+        for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++) {
+          grams.computeIfAbsent(normalized.substring(i, i + GRAM_LENGTH), g -> new IntList(4)).add(entry);
+        }
+      }
+    }
+
+    private Index build() {
+      var builtValues = new HashMap<String, int[]>(values.size() * 4 / 3 + 1);
+      values.forEach((value, entries) -> builtValues.put(value, entries.toArray()));
+      HashMap<String, int[]> builtGrams = null;
+      if (grams != null) {
+        builtGrams = new HashMap<>(grams.size() * 4 / 3 + 1);
+        for (var gram : grams.entrySet()) {
+          builtGrams.put(gram.getKey(), gram.getValue().toArray());
+        }
+      }
+      return new Index(builtValues, present.toArray(), builtGrams);
+    }
+  }
+
+  /**
+   * Growable list of ascending entry numbers that ignores an entry added twice
+   * in a row.
+   */
+  private static final class IntList {
+
+    private int[] entries;
+
+    private int size = 0;
+
+    private IntList(int capacity) {
+      entries = new int[Math.max(1, capacity)];
+    }
+
+    private void add(int entry) {
+      if (size > 0 && entries[size - 1] == entry) {
+        return;
+      }
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      entries[size++] = entry;
+    }
+
+    private int[] toArray() {
+      return Arrays.copyOf(entries, size);
+    }
+  }
+
+  /**
+   * Reads LDIF records (RFC 2849) into entries and indexes.
+   */
+  private static final class Loader {
+
+    private final List<String> dns = new ArrayList<>();
+
+    private final List<String> normalizedDns = new ArrayList<>();
+
+    private final List<String[]> names = new ArrayList<>();
+
+    private final List<Object[]> values = new ArrayList<>();
+
+    private final Map<String, Integer> entryNumbers = new HashMap<>();
+
+    private final Map<String, IntList> children = new HashMap<>();
+
+    private final Set<String> ancestors = new HashSet<>();
+
+    private final Map<String, IndexBuilder> indexes = new HashMap<>();
+
+    // Attribute names are kept once each, as first spelled in the file.
+    private final Map<String, String> attributeNames = new HashMap<>();
+
+    private final List<String> record = new ArrayList<>();
+
+    private int lineNumber = 0;
+
+    private int recordLineNumber = 0;
+
+    private void read(BufferedReader reader) throws IOException, NamingException {
+      var logical = new StringBuilder();
+      var inComment = false;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.startsWith(" ")) {
+          if (!inComment) {
+            logical.append(line, 1, line.length());
+          }
+          continue;
+        }
+        if (logical.length() > 0) {
+          record.add(logical.toString());
+          logical.setLength(0);
+        }
+        inComment = line.startsWith("#");
+        if (line.isEmpty()) {
+          endRecord();
+        } else if (!inComment) {
+          if (record.isEmpty()) {
+            recordLineNumber = lineNumber;
+          }
+          logical.append(line);
+        }
+      }
+      if (logical.length() > 0) {
+        record.add(logical.toString());
+      }
+      endRecord();
+    }
+
+    private void endRecord() throws NamingException {
+      var lines = new ArrayList<>(record);
+      record.clear();
+      if (!lines.isEmpty() && dns.isEmpty() && lines.get(0).startsWith("version:")) {
+        lines.remove(0);
+      }
+      if (lines.isEmpty()) {
+        return;
+      }
+      var dn = valueOf(lines.get(0), "dn");
+      if (!(dn instanceof String)) {
+        throw invalid("record doesn't start with a dn");
+      }
+      var entryNames = new ArrayList<String>(lines.size());
+      var entryValues = new ArrayList<Object>(lines.size());
+      for (int i = 1; i < lines.size(); i++) {
+        var line = lines.get(i);
+        var colon = line.indexOf(':');
+        if (colon < 1) {
+          throw invalid("a line has no attribute name");
+        }
+        var name = line.substring(0, colon).trim();
+        if (name.equalsIgnoreCase("changetype")) {
+          var changeType = line.substring(colon + 1).trim();
+          if (!changeType.equalsIgnoreCase("add")) {
+            throw invalid("only content and add records are supported");
+          }
+          continue;
+        }
+        if (name.equalsIgnoreCase("control")) {
+          continue;
+        }
+        name = attributeNames.computeIfAbsent(name.toLowerCase(Locale.ROOT), n -> line.substring(0, colon).trim());
+        entryNames.add(name);
+        entryValues.add(valueOf(line, name));
+      }
+      addEntry((String) dn, entryNames.toArray(new String[0]), entryValues.toArray());
+    }
+
+    private void addEntry(String dn, String[] entryNames, Object[] entryValues) throws NamingException {
+      var normalizedDn = normalizeDn(dn);
+      var entry = dns.size();
+      if (entryNumbers.putIfAbsent(normalizedDn, entry) != null) {
+        throw invalid("the entry's dn is in the file more than once");
+      }
+      dns.add(dn);
+      normalizedDns.add(normalizedDn);
+      names.add(entryNames);
+      values.add(entryValues);
+      var parent = parentOf(normalizedDn);
+      children.computeIfAbsent(parent, p -> new IntList(4)).add(entry);
+      while (!parent.isEmpty() && ancestors.add(parent)) {
+        parent = parentOf(parent);
+      }
+      for (int i = 0; i < entryNames.length; i++) {
+        var name = entryNames[i].toLowerCase(Locale.ROOT);
+        if (INDEXED_ATTRIBUTES.contains(name) && entryValues[i] instanceof String) {
+          indexes.computeIfAbsent(name, n -> new IndexBuilder(SUBSTRING_INDEXED_ATTRIBUTES.contains(n)))
+              .add(entry, (String) entryValues[i]);
+        }
+      }
+    }
+
+    private Object valueOf(String line, String name) throws NamingException {
+      var colon = line.indexOf(':');
+      if (colon < 1) {
+        return null;
+      }
+      if (name.equals("dn") && !line.substring(0, colon).trim().equalsIgnoreCase("dn")) {
+        return null;
+      }
+      var start = colon + 1;
+      var kind = start < line.length() ? line.charAt(start) : ' ';
+      if (kind == ':' || kind == '<') {
+        start++;
+      }
+      while (start < line.length() && line.charAt(start) == ' ') {
+        start++;
+      }
+      var value = line.substring(start);
+      if (kind == ':') {
+        byte[] bytes;
+        try {
+          bytes = Base64.getMimeDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+          throw invalid("a value isn't valid base64");
+        }
+        return toValue(name, bytes);
+      } else if (kind == '<') {
+        return toValue(name, readUrl(value));
+      } else if (isBinary(name)) {
+        return value.getBytes(UTF_8);
+      }
+      return value;
+    }
+
+    // Reads a value from a file URL, which has to be in the LDIF directory.
+    // Neither the URL nor what was read is put in an error, since the file
+    // might not be LDIF and the errors go back to the client.
+    private byte[] readUrl(String url) throws NamingException {
+      Path path;
+      try {
+        path = Paths.get(URI.create(url)).toAbsolutePath().normalize();
+      } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+        throw invalid("a value's URL isn't a file URL");
+      }
+      if (!isInDataDirectory(path)) {
+        throw invalid("a value's file isn't in the LDIF directory");
+      }
+      try {
+        return Files.readAllBytes(path);
+      } catch (IOException e) {
+        throw invalid("a value's file couldn't be read");
+      }
+    }
+
+    private static Object toValue(String name, byte[] bytes) {
+      if (isBinary(name)) {
+        return bytes;
+      }
+      try {
+        return UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(bytes)).toString();
+      } catch (CharacterCodingException e) {
+        return bytes;
+      }
+    }
+
+    private static boolean isBinary(String name) {
+      var lowerCaseName = name.toLowerCase(Locale.ROOT);
+      return lowerCaseName.endsWith(";binary") || BINARY_ATTRIBUTES.contains(lowerCaseName);
+    }
+
+    private NamingException invalid(String message) {
+      return new InvalidAttributesException(String.format("Line %d: %s", recordLineNumber, message));
+    }
+  }
+}
@@ -30,6 +30,10 @@ final class Maps {
     if (Strings.isNullOrEmpty(ldapUrl)) {
       return "unknown";
     }
+    if (LdifDirectory.isLdifUrl(ldapUrl)) {
+      // Served from a file on this machine.
+      return "localhost";
+    }
     return URI.create(ldapUrl).getHost();
   }
 
@@ -0,0 +1,340 @@
+package com.github.argherna.pike;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of counters and histograms written out in the Prometheus text
+ * format.
+ *
+ * <p>
+ * Recording a value only looks up its series in a concurrent map and adds to
+ * {@link LongAdder}s, so it never blocks. Stats kept elsewhere (caches, pools,
+ * limiters) are registered as sources and read when the metrics are written.
+ */
+final class Metrics {
+
+  /**
+   * Bucket bounds in seconds for latencies.
+   */
+  static final double[] LATENCY_BUCKETS = new double[] { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+      2.5, 5, 10, 30 };
+
+  private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+  private static final Map<String, Source> SOURCES = new ConcurrentHashMap<>();
+
+  private Metrics() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * Registers a counter.
+   *
+   * @param name       metric name
+   * @param help       what the metric counts
+   * @param labelNames names of the labels its series are told apart by
+   * @return the counter family
+   */
+  static Family counter(String name, String help, String... labelNames) {
+    return FAMILIES.computeIfAbsent(name, n -> new Family(n, help, "counter", null, labelNames));
+  }
+
+  /**
+   * Registers a histogram.
+   *
+   * @param name       metric name
+   * @param help       what the metric measures
+   * @param buckets    upper bounds of the buckets, in increasing order
+   * @param labelNames names of the labels its series are told apart by
+   * @return the histogram family
+   */
+  static Family histogram(String name, String help, double[] buckets, String... labelNames) {
+    return FAMILIES.computeIfAbsent(name, n -> new Family(n, help, "histogram", buckets.clone(), labelNames));
+  }
+
+  /**
+   * Registers stats to read when the metrics are written. Each number in the
+   * map becomes a metric named after the prefix and its key. A map in the map
+   * holds the numbers for one connection, named by its key.
+   *
+   * @param prefix prefix of the metric names
+   * @param help   what the stats are about
+   * @param stats  reads the current stats
+   */
+  static void register(String prefix, String help, Supplier<Map<String, Object>> stats) {
+    SOURCES.put(prefix, new Source(prefix, help, stats));
+  }
+
+  /**
+   * @return all metrics in the Prometheus text format
+   */
+  static String scrape() {
+    var out = new StringBuilder(4096);
+    for (var family : new TreeMap<>(FAMILIES).values()) {
+      family.write(out);
+    }
+    for (var source : new TreeMap<>(SOURCES).values()) {
+      source.write(out);
+    }
+    return out.toString();
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+        .append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeLabels(StringBuilder out, String[] names, List<String> values, String extraName,
+      String extraValue) {
+    if (names.length == 0 && extraName == null) {
+      return;
+    }
+    out.append('{');
+    for (int i = 0; i < names.length; i++) {
+      if (i > 0) {
+        out.append(',');
+      }
+      writeLabel(out, names[i], values.get(i));
+    }
+    if (extraName != null) {
+      if (names.length > 0) {
+        out.append(',');
+      }
+      writeLabel(out, extraName, extraValue);
+    }
+    out.append('}');
+  }
+
+  private static void writeLabel(StringBuilder out, String name, String value) {
+    out.append(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      var c = value.charAt(i);
+      if (c == '\\' || c == '"') {
+        out.append('\\').append(c);
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  private static String format(double value) {
+    if (value == Double.POSITIVE_INFINITY) {
+      return "+Inf";
+    }
+    return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+        : Double.toString(value);
+  }
+
+  /**
+   * A metric with one series for each combination of label values.
+   */
+  static final class Family {
+
+    private final String name;
+
+    private final String help;
+
+    private final String type;
+
+    private final double[] buckets;
+
+    private final String[] labelNames;
+
+    private final Map<List<String>, Series> series = new ConcurrentHashMap<>();
+
+    private Family(String name, String help, String type, double[] buckets, String[] labelNames) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.buckets = buckets;
+      this.labelNames = labelNames.clone();
+    }
+
+    /**
+     * Returns the series for some label values, creating it the first time.
+     *
+     * @param labelValues values of the labels, in the order they were named
+     * @return the series
+     */
+    Series labels(String... labelValues) {
+      if (labelValues.length != labelNames.length) {
+        throw new IllegalArgumentException(
+            String.format("%s needs %d label values, got %d", name, labelNames.length, labelValues.length));
+      }
+      var key = Arrays.asList(labelValues);
+      var s = series.get(key);
+      return s != null ? s : series.computeIfAbsent(List.of(labelValues), k -> new Series(buckets));
+    }
+
+    private void write(StringBuilder out) {
+      if (series.isEmpty()) {
+        return;
+      }
+      writeHeader(out, name, help, type);
+      for (var entry : series.entrySet()) {
+        var labelValues = entry.getKey();
+        var s = entry.getValue();
+        if (buckets == null) {
+          out.append(name);
+          writeLabels(out, labelNames, labelValues, null, null);
+          out.append(' ').append(s.count.sum()).append('\n');
+          continue;
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= buckets.length; i++) {
+          cumulative += s.buckets[i].sum();
+          out.append(name).append("_bucket");
+          writeLabels(out, labelNames, labelValues, "le",
+              format(i < buckets.length ? buckets[i] : Double.POSITIVE_INFINITY));
+          out.append(' ').append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum");
+        writeLabels(out, labelNames, labelValues, null, null);
+        out.append(' ').append(format(s.sum.sum())).append('\n');
+        out.append(name).append("_count");
+        writeLabels(out, labelNames, labelValues, null, null);
+        out.append(' ').append(cumulative).append('\n');
+      }
+    }
+  }
+
+  /**
+   * The values recorded for one combination of label values.
+   */
+  static final class Series {
+
+    private final double[] bounds;
+
+    // One more bucket than bounds for values above the last bound. Each
+    // bucket counts only its own values; they're added up when written.
+    private final LongAdder[] buckets;
+
+    private final LongAdder count = new LongAdder();
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Series(double[] bounds) {
+      this.bounds = bounds;
+      if (bounds == null) {
+        this.buckets = null;
+      } else {
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+          buckets[i] = new LongAdder();
+        }
+      }
+    }
+
+    /**
+     * Adds one to a counter.
+     */
+    void inc() {
+      count.increment();
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param amount the amount to add
+     */
+    void add(long amount) {
+      count.add(amount);
+    }
+
+    /**
+     * Records a value in a histogram.
+     *
+     * @param value the value
+     */
+    void observe(double value) {
+      var i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+      buckets[i].increment();
+      sum.add(value);
+    }
+
+    /**
+     * Records a duration in seconds in a histogram.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    void observeNanos(long nanos) {
+      observe(nanos / 1e9);
+    }
+  }
+
+  private static final class Source {
+
+    private final String prefix;
+
+    private final String help;
+
+    private final Supplier<Map<String, Object>> stats;
+
+    private Source(String prefix, String help, Supplier<Map<String, Object>> stats) {
+      this.prefix = prefix;
+      this.help = help;
+      this.stats = stats;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void write(StringBuilder out) {
+      // Gather the samples for each metric first since each metric's samples
+      // have to be written together.
+      var samples = new TreeMap<String, List<String[]>>();
+      for (var entry : stats.get().entrySet()) {
+        if (entry.getValue() instanceof Map) {
+          for (var inner : ((Map<String, Object>) entry.getValue()).entrySet()) {
+            if (inner.getValue() instanceof Number) {
+              samples.computeIfAbsent(inner.getKey(), k -> new ArrayList<>())
+                  .add(new String[] { entry.getKey(), format(((Number) inner.getValue()).doubleValue()) });
+            }
+          }
+        } else if (entry.getValue() instanceof Number) {
+          samples.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+              .add(new String[] { null, format(((Number) entry.getValue()).doubleValue()) });
+        }
+      }
+      for (var entry : samples.entrySet()) {
+        var name = prefix + "_" + toSnakeCase(entry.getKey());
+        writeHeader(out, name, String.format("%s: %s", help, entry.getKey()), "untyped");
+        for (var sample : entry.getValue()) {
+          out.append(name);
+          if (sample[0] != null) {
+            out.append('{');
+            writeLabel(out, "connection", sample[0]);
+            out.append('}');
+          }
+          out.append(' ').append(sample[1]).append('\n');
+        }
+      }
+    }
+
+    private static String toSnakeCase(String key) {
+      var name = new StringBuilder(key.length() + 4);
+      for (int i = 0; i < key.length(); i++) {
+        var c = key.charAt(i);
+        if (Character.isUpperCase(c)) {
+          name.append('_').append(Character.toLowerCase(c));
+        } else {
+          name.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+      }
+      return name.toString();
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.github.argherna.pike;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Records how long requests take and how many bytes their responses have, by
+ * the path of the context that handles them.
+ *
+ * <p>
+ * The time is taken until the handler returns, so it includes writing a
+ * streamed response. Bytes are counted as they are written to the client,
+ * after compression. A request that fails before its response is started is
+ * counted with status 500.
+ */
+class MetricsFilter extends Filter {
+
+  private static final Metrics.Family REQUESTS = Metrics.histogram("pike_http_request_duration_seconds",
+      "Time taken to handle HTTP requests", Metrics.LATENCY_BUCKETS, "route", "method", "status");
+
+  private static final Metrics.Family RESPONSE_BYTES = Metrics.counter("pike_http_response_bytes_total",
+      "Bytes of HTTP response bodies sent", "route");
+
+  @Override
+  public String description() {
+    return "Records request latency and response size.";
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Filter.Chain chain) throws IOException {
+    var start = System.nanoTime();
+    var measured = new MeasuredHttpExchange(exchange);
+    try {
+      chain.doFilter(measured);
+    } finally {
+      var route = exchange.getHttpContext().getPath();
+      REQUESTS.labels(route, exchange.getRequestMethod(), String.valueOf(measured.statusCode))
+          .observeNanos(System.nanoTime() - start);
+      if (measured.bytes > 0) {
+        RESPONSE_BYTES.labels(route).add(measured.bytes);
+      }
+    }
+  }
+
+  private static final class MeasuredHttpExchange extends DelegatingHttpExchange {
+
+    private int statusCode = HttpStatus.INTERNAL_SERVER_ERROR.getStatusCode();
+
+    private long bytes = 0;
+
+    private OutputStream body;
+
+    private MeasuredHttpExchange(HttpExchange exchange) {
+      super(exchange);
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+      statusCode = rCode;
+      super.sendResponseHeaders(rCode, responseLength);
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+      if (body == null) {
+        body = new FilterOutputStream(super.getResponseBody()) {
+
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+          }
+        };
+      }
+      return body;
+    }
+  }
+}
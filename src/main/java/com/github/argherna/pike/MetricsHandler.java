@@ -0,0 +1,32 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Serves the {@link Metrics} in the Prometheus text format.
+ */
+class MetricsHandler implements HttpHandler {
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  static {
+    Metrics.register("pike_search_cache", "Search result cache", SearchCache::getStats);
+    Metrics.register("pike_record_cache", "Record cache", RecordCache::getStats);
+    Metrics.register("pike_search_coalescing", "Coalesced searches", SearchHandler.SEARCHES::getStats);
+    Metrics.register("pike_limiter", "Concurrency limiter", ConcurrencyLimiter::getStats);
+    Metrics.register("pike_pool", "LDAP context pool", LdapContextPool::getStats);
+    Metrics.register("pike_compression", "Response compression", CompressionFilter::getStats);
+    Metrics.register("pike_jobs", "Background jobs", Jobs::getStats);
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    var content = Metrics.scrape().getBytes(UTF_8);
+    Http.sendResponse(exchange, HttpStatus.OK, content, CONTENT_TYPE);
+  }
+}
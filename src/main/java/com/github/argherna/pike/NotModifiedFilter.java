@@ -1,22 +1,21 @@
 package com.github.argherna.pike;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.URI;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
 
 import com.sun.net.httpserver.Filter;
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpPrincipal;
 
 class NotModifiedFilter extends Filter {
 
@@ -24,6 +23,20 @@ class NotModifiedFilter extends Filter {
 
   private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
 
+  private static final int POOLED_BUFFER_SIZE = 0x10000;
+
+  private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(8);
+
+  /**
+   * Exchange attribute that is {@link Boolean#TRUE} when this filter wants an
+   * ETag for the response. Whoever sends a whole body at once can work the tag
+   * out with {@link #eTag(byte[])} and set it, so the body needn't be copied
+   * here. It's answered by this filter's exchange, through any wrappers added
+   * after it, rather than stored with the context's attributes, which the
+   * server shares between exchanges.
+   */
+  static final String ETAG_WANTED = NotModifiedFilter.class.getName() + ".eTagWanted";
+
   @Override
   public String description() {
     return "Generates an ETag header by calculating the checksum of the "
@@ -36,32 +49,19 @@ class NotModifiedFilter extends Filter {
     if (exchange.getRequestMethod().equals("GET") || exchange.getRequestMethod().equals("HEAD")) {
       if (requestIsForStaticResource(exchange.getRequestURI().getPath())) {
         var path = exchange.getRequestURI().getPath();
-        var mTime = IO.lastMTime(path);
-        var lastModified = new LastModifiedHttpExchange(exchange, mTime);
-        var in = exchange.getRequestHeaders();
-        if (in.containsKey("If-Modified-Since")) {
-          var ifModifiedSinceValue = in.getFirst("If-Modified-Since");
-          var inTimestamp = 0l;
-          try {
-            var fmt = new SimpleDateFormat(HTTP_DATE_FORMAT);
-            inTimestamp = fmt.parse(ifModifiedSinceValue).getTime();
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
+        var resource = IO.getResource(path);
+        var mTime = resource == null ? -1 : resource.getLastModified();
+        if (mTime >= 0) {
+          if (!isModifiedSince(exchange.getRequestHeaders().getFirst("If-Modified-Since"), mTime)) {
+            Http.sendResponse(exchange, HttpStatus.NOT_MODIFIED, new byte[0], Map.of());
+            return;
           }
-          if (inTimestamp != mTime) {
-            chain.doFilter(lastModified);
-            lastModified.doResponse();
-          } else {
-            lastModified.doResponse();
-          }
-        } else {
-          chain.doFilter(lastModified);
-          lastModified.doResponse();
+          // OMG@!! THERE IT IS AGAIN!!!! HAAAAAAHAAHAHA!
+          exchange.getResponseHeaders().put("Last-Modified", List.of(newHttpDateFormat().format(mTime)));
         }
+        chain.doFilter(exchange);
       } else {
-        var etag = new ETagHttpExchange(exchange);
-        chain.doFilter(etag);
-        etag.doResponse();
+        chain.doFilter(new ETagHttpExchange(exchange));
       }
     } else {
       chain.doFilter(exchange);
@@ -72,182 +72,166 @@ class NotModifiedFilter extends Filter {
     return STATIC_PATHS.stream().anyMatch(p -> path.startsWith(p));
   }
 
-  private static abstract class CaptureResponseHttpExchange extends HttpExchange {
-
-    final HttpExchange exchange;
-
-    ByteArrayOutputStream responseBody;
-
-    int statusCode = -1;
-
-    long responseLength = -1l;
-
-    private CaptureResponseHttpExchange(HttpExchange exchange) {
-      this.exchange = exchange;
-      responseBody = new ByteArrayOutputStream();
-    }
-
-    @Override
-    public void close() {
-      // No-Op for this instance. We'll call close in #send().
-    }
-
-    @Override
-    public Object getAttribute(String name) {
-      return exchange.getAttribute(name);
+  private static boolean isModifiedSince(String ifModifiedSince, long mTime) {
+    if (ifModifiedSince == null) {
+      return true;
     }
-
-    @Override
-    public HttpContext getHttpContext() {
-      return exchange.getHttpContext();
+    try {
+      return newHttpDateFormat().parse(ifModifiedSince).getTime() < mTime;
+    } catch (ParseException e) {
+      // An invalid date is ignored.
+      return true;
     }
+  }
 
-    @Override
-    public InetSocketAddress getLocalAddress() {
-      return exchange.getLocalAddress();
-    }
+  private static SimpleDateFormat newHttpDateFormat() {
+    var fmt = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return fmt;
+  }
 
-    @Override
-    public HttpPrincipal getPrincipal() {
-      return exchange.getPrincipal();
-    }
+  /**
+   * Computes an entity tag from a response body.
+   *
+   * @param content the response body
+   * @return the quoted entity tag
+   */
+  static String eTag(byte[] content) {
+    Checksum checksum = new CRC32C();
+    checksum.update(content, 0, content.length);
+    return eTag(checksum);
+  }
 
-    @Override
-    public String getProtocol() {
-      return exchange.getProtocol();
-    }
+  private static String eTag(Checksum checksum) {
+    return String.format("\"%s\"", Long.toHexString(checksum.getValue()));
+  }
 
-    @Override
-    public InetSocketAddress getRemoteAddress() {
-      return exchange.getRemoteAddress();
-    }
+  /**
+   * Adds an ETag to successful responses that don't have one.
+   *
+   * <p>
+   * {@link Http#sendResponse(HttpExchange, HttpStatus, byte[], java.util.Map)}
+   * has the whole body before it sends the headers, so it works out the ETag
+   * itself when it sees the {@link #ETAG_WANTED} attribute and nothing needs
+   * to be held here. Chunked responses go straight through without an ETag;
+   * the server can't send one as a trailer. Any other response is captured in
+   * a pooled buffer so its ETag can be sent ahead of it.
+   */
+  private static final class ETagHttpExchange extends DelegatingHttpExchange {
 
-    @Override
-    public InputStream getRequestBody() {
-      return exchange.getRequestBody();
-    }
+    private int statusCode = -1;
 
-    @Override
-    public Headers getRequestHeaders() {
-      return exchange.getRequestHeaders();
-    }
+    private CaptureOutputStream captured;
 
-    @Override
-    public Headers getResponseHeaders() {
-      return exchange.getResponseHeaders();
-    }
+    private boolean closed = false;
 
-    @Override
-    public URI getRequestURI() {
-      return exchange.getRequestURI();
+    private ETagHttpExchange(HttpExchange exchange) {
+      super(exchange);
     }
 
     @Override
-    public String getRequestMethod() {
-      return exchange.getRequestMethod();
+    public Object getAttribute(String name) {
+      return ETAG_WANTED.equals(name) ? Boolean.TRUE : super.getAttribute(name);
     }
 
     @Override
     public OutputStream getResponseBody() {
-      if (responseBody.size() > 0) {
-        responseBody.reset();
-      }
-      return responseBody;
-    }
-
-    @Override
-    public int getResponseCode() {
-      return exchange.getResponseCode();
+      return captured != null ? captured : super.getResponseBody();
     }
 
     @Override
     public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
-      this.statusCode = rCode;
-      this.responseLength = responseLength;
-    }
-
-    @Override
-    public void setAttribute(String name, Object value) {
-      exchange.setAttribute(name, value);
+      if (rCode != HttpStatus.OK.getStatusCode() || responseLength <= 0
+          || getResponseHeaders().containsKey("ETag")) {
+        super.sendResponseHeaders(rCode, responseLength);
+      } else {
+        statusCode = rCode;
+        captured = new CaptureOutputStream(responseLength);
+      }
     }
 
     @Override
-    public void setStreams(InputStream i, OutputStream o) {
-      exchange.setStreams(i, o);
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (captured != null) {
+          sendCaptured();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      } finally {
+        if (captured != null) {
+          captured.release();
+        }
+        super.close();
+      }
     }
 
-    abstract void doResponse() throws IOException;
+    private void sendCaptured() throws IOException {
+      var checksum = new CRC32C();
+      checksum.update(captured.buffer, 0, captured.count);
+      var eTag = eTag(checksum);
 
-    void send(byte[] content) throws IOException {
-      exchange.sendResponseHeaders(statusCode, responseLength);
-      if (responseLength > 0l) {
-        try (var out = exchange.getResponseBody()) {
-          out.write(content);
-          out.flush();
+      // HAHA! I LOVE PUNS!!!!!!
+      getResponseHeaders().put("ETag", List.of(eTag));
+      if (Http.eTagMatches(getRequestHeaders().getFirst("If-None-Match"), eTag)) {
+        getResponseHeaders().remove("Content-Type");
+        super.sendResponseHeaders(HttpStatus.NOT_MODIFIED.getStatusCode(), -1);
+      } else {
+        super.sendResponseHeaders(statusCode, captured.count);
+        try (var out = super.getResponseBody()) {
+          out.write(captured.buffer, 0, captured.count);
         }
       }
-
-      exchange.close();
     }
   }
 
-  private static class ETagHttpExchange extends CaptureResponseHttpExchange {
+  /**
+   * Holds a response body in a buffer borrowed from a small pool. Bodies too
+   * big for a pooled buffer get a buffer of their own.
+   */
+  private static final class CaptureOutputStream extends OutputStream {
 
-    private ETagHttpExchange(HttpExchange exchange) {
-      super(exchange);
-    }
+    private byte[] buffer;
 
-    @Override
-    void doResponse() throws IOException {
-      var content = responseBody.toByteArray();
-      var checksum = new CRC32C();
-      checksum.update(content);
-
-      var in = exchange.getRequestHeaders();
-      if (in.containsKey("If-None-Match")) {
-        var inm = in.getFirst("If-None-Match");
-        if (inm.equals(Long.toHexString(checksum.getValue()))) {
-          this.statusCode = HttpStatus.NOT_MODIFIED.getStatusCode();
-          this.responseLength = -1l;
-          exchange.getResponseHeaders().remove("Content-Type");
-        } else {
-          setETag(checksum);
-        }
+    private int count = 0;
+
+    private CaptureOutputStream(long expectedLength) {
+      if (expectedLength <= POOLED_BUFFER_SIZE) {
+        var pooled = BUFFERS.poll();
+        buffer = pooled != null ? pooled : new byte[POOLED_BUFFER_SIZE];
       } else {
-        setETag(checksum);
+        buffer = new byte[(int) Math.min(expectedLength, Integer.MAX_VALUE - 8)];
       }
-
-      send(content);
     }
 
-    private void setETag(Checksum checksum) {
-      var out = exchange.getResponseHeaders();
-
-      // HAHA! I LOVE PUNS!!!!!!
-      out.put("ETag", List.of(Long.toHexString(checksum.getValue())));
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      buffer[count++] = (byte) b;
     }
-  }
-
-  private static class LastModifiedHttpExchange extends CaptureResponseHttpExchange {
 
-    private final long mTime;
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
 
-    private LastModifiedHttpExchange(HttpExchange exchange, long mTime) {
-      super(exchange);
-      this.mTime = mTime;
+    private void ensureCapacity(int needed) {
+      if (count + needed > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + needed));
+      }
     }
 
-    @Override
-    void doResponse() throws IOException {
-      if (responseLength > 0l) {
-        var out = exchange.getResponseHeaders();
-        var fmt = new SimpleDateFormat(HTTP_DATE_FORMAT);
-        // OMG@!! THERE IT IS AGAIN!!!! HAAAAAAHAAHAHA!
-        out.put("Last-Modified", List.of(fmt.format(mTime)));
-      } else {
-        this.statusCode = HttpStatus.NOT_MODIFIED.getStatusCode();
+    private void release() {
+      if (buffer.length == POOLED_BUFFER_SIZE) {
+        BUFFERS.offer(buffer);
       }
-      send(responseBody.toByteArray());
+      buffer = null;
     }
   }
 }
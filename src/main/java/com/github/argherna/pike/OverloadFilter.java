@@ -0,0 +1,83 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Turns requests away with 503 Service Unavailable when the request executor
+ * has no room for them.
+ *
+ * <p>
+ * The executor hands an exchange it can't take to {@link #REJECT}, which runs
+ * it on a small pool of its own. The exchange only gets as far as this filter,
+ * which answers it without calling the handler, so the server's dispatcher
+ * thread never runs a request itself and keeps accepting connections. When
+ * that pool is full too the connection is closed.
+ */
+class OverloadFilter extends Filter {
+
+  private static final ThreadLocal<Boolean> REJECTED = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+  private static final LongAdder REJECTED_COUNT = new LongAdder();
+
+  private static final ThreadPoolExecutor REJECTER = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<>(64), r -> {
+        var t = new Thread(r, "pike-http-rejecter");
+        t.setDaemon(true);
+        return t;
+      }, new ThreadPoolExecutor.AbortPolicy());
+
+  static {
+    REJECTER.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Rejects exchanges the request executor has no room for.
+   */
+  static final RejectedExecutionHandler REJECT = (r, executor) -> {
+    REJECTED_COUNT.increment();
+    REJECTER.execute(() -> {
+      REJECTED.set(Boolean.TRUE);
+      try {
+        r.run();
+      } finally {
+        REJECTED.remove();
+      }
+    });
+  };
+
+  /**
+   * @return how many exchanges have been rejected
+   */
+  static long getRejectedCount() {
+    return REJECTED_COUNT.sum();
+  }
+
+  @Override
+  public String description() {
+    return "Return a 503 status for requests the executor has no room for";
+  }
+
+  @Override
+  public void doFilter(HttpExchange exchange, Filter.Chain chain) throws IOException {
+    if (REJECTED.get()) {
+      var responseHeaders = new HashMap<String, List<String>>();
+      responseHeaders.put("Retry-After", List.of("1"));
+      Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+      Http.sendResponse(exchange, HttpStatus.SERVICE_UNAVAILABLE,
+          Json.encode(Map.of("error", "Too many requests, try again later")), responseHeaders);
+    } else {
+      chain.doFilter(exchange);
+    }
+  }
+}
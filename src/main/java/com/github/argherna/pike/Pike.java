@@ -5,6 +5,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.sun.net.httpserver.Filter;
@@ -15,18 +24,38 @@ class Pike {
 
   private static final int DEFAULT_HTTP_SERVER_PORT = 8085;
 
+  private static final int DEFAULT_BACKLOG = 0;
+
+  private static final String DEFAULT_EXECUTOR_TYPE = "pool";
+
+  private static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+
   private static final Logger LOGGER = Logger.getLogger(Pike.class.getName());
 
+  private static final OverloadFilter OVERLOAD_FILTER = new OverloadFilter();
+
   private final HttpServer httpServer;
 
+  private final ExecutorService executor;
+
   public static void main(String... args) {
     var port = DEFAULT_HTTP_SERVER_PORT;
+    var backlog = DEFAULT_BACKLOG;
+    var executorType = DEFAULT_EXECUTOR_TYPE;
+    var threads = DEFAULT_THREADS;
+    var queueSize = DEFAULT_QUEUE_SIZE;
     var argIdx = 0;
     String connName = null;
     String filename = null;
     while (argIdx < args.length) {
       var arg = args[argIdx];
       switch (arg) {
+      case "-b":
+      case "--backlog":
+        backlog = intOptionOrExit(arg, args, ++argIdx);
+        break;
       case "-D":
       case "--delete-all-connections":
         Settings.deleteAllConnections();
@@ -36,6 +65,14 @@ class Pike {
         connName = args[++argIdx];
         Settings.deleteSingleConnection(connName);
         System.exit(0);
+      case "-e":
+      case "--executor":
+        executorType = args[++argIdx];
+        if (!List.of("dispatcher", "pool", "virtual").contains(executorType)) {
+          System.err.printf("Unknown executor type %s%n", executorType);
+          showUsageAndExit(1);
+        }
+        break;
       case "-h":
       case "--help":
         showUsageAndExit(2);
@@ -54,6 +91,14 @@ class Pike {
       case "--list-connections":
         Arrays.stream(Settings.getAllConnectionNames()).forEach(System.out::println);
         System.exit(0);
+      case "-q":
+      case "--queue-size":
+        queueSize = intOptionOrExit(arg, args, ++argIdx);
+        break;
+      case "-t":
+      case "--threads":
+        threads = intOptionOrExit(arg, args, ++argIdx);
+        break;
       case "-X":
       case "--export-all-connections":
         System.out.println(new String(Settings.exportAllConnectionSettings()));
@@ -85,33 +130,8 @@ class Pike {
     }
 
     try {
-      final Pike pike = new Pike(port);
-      var searchHandler = new SearchHandler();
-      var staticResourceHandler = new StaticResourceHandler();
-
-      var faviconFilter = new FaviconFilter();
-      var internalServerErrorFilter = new InternalServerErrorFilter();
-      var jsonInFilter = new JsonInFilter();
-      var notModifiedFilter = new NotModifiedFilter();
-
-      pike.addHandler("/", searchHandler, List.of(notModifiedFilter, faviconFilter, internalServerErrorFilter));
-      pike.addHandler("/connection", new ConnectionHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/connections", new ConnectionsHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/css", staticResourceHandler,
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/error", new ErrorHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/js", staticResourceHandler,
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/record", new RecordViewHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/search", searchHandler, List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
-      pike.addHandler("/searches", new SearchesHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter, jsonInFilter));
-      pike.addHandler("/settings", new SettingsHandler(),
-          List.of(internalServerErrorFilter, notModifiedFilter, faviconFilter));
+      final Pike pike = new Pike(port, backlog, newExecutor(executorType, threads, queueSize));
+      pike.addDefaultHandlers();
       Runtime.getRuntime().addShutdownHook(new Thread() {
         @Override
         public void run() {
@@ -125,6 +145,59 @@ class Pike {
     }
   }
 
+  private static int intOptionOrExit(String option, String[] args, int argIdx) {
+    try {
+      var value = Integer.parseInt(args[argIdx]);
+      if (value >= 0) {
+        return value;
+      }
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      // Fall through to the usage message.
+    }
+    System.err.printf("%s needs a non-negative number%n", option);
+    showUsageAndExit(1);
+    return -1;
+  }
+
+  /**
+   * Creates the executor that runs exchanges for the HTTP server.
+   * 
+   * @param type      {@code dispatcher} to run exchanges on the server's
+   *                  dispatcher thread, {@code virtual} for a virtual thread
+   *                  per exchange, or {@code pool} for a bounded pool
+   * @param threads   number of threads in the bounded pool
+   * @param queueSize number of exchanges waiting for a pool thread before more
+   *                  are turned away
+   * @return the executor, or {@code null} for the dispatcher thread
+   */
+  static ExecutorService newExecutor(String type, int threads, int queueSize) {
+    switch (type) {
+    case "dispatcher":
+      return null;
+    case "virtual":
+      try {
+        // Looked up reflectively so Pike still builds and runs on JDKs
+        // without virtual threads.
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        LOGGER.warning(
+            () -> String.format("Virtual threads aren't available on Java %s, using a bounded thread pool instead",
+                Runtime.version()));
+      }
+      // Fall through to a bounded pool.
+    default:
+      var poolSize = Math.max(1, threads);
+      var pool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(Math.max(1, queueSize)), new NamedThreadFactory("pike-http"),
+          // When the queue is full the exchange is answered with a 503 rather
+          // than run on the dispatcher thread, which would stop it from
+          // accepting connections until the request is done.
+          OverloadFilter.REJECT);
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+  }
+
   private static void showUsageAndExit(int status) {
     showUsage();
     System.exit(status);
@@ -142,15 +215,25 @@ class Pike {
     System.err.println();
     System.err.println("Options:");
     System.err.println();
+    System.err.println("  -b <n>, --backlog <n>");
+    System.err.println("                   Queue at most <n> incoming connections (default is system default)");
     System.err.println("  -D, --delete-all-connections");
     System.err.println("                   Deletes all connections");
     System.err.println("  -d <conn-name>, --delete-connection <conn-name>");
     System.err.println("                   Delete the connection settings named <conn-name>");
+    System.err.println("  -e <type>, --executor <type>");
+    System.err.println("                   Run requests with <type> executor, one of dispatcher, pool or virtual");
+    System.err.println("                   (default is " + DEFAULT_EXECUTOR_TYPE + ")");
     System.err.println("  -h, --help       Show this help and exit");
     System.err.println("  -i <file-name>, --import-connections <file-name>");
     System.err.println("                   Import connection settings from <file-name>");
     System.err.println("  -l, --list-connections");
     System.err.println("                   List connection names and exit");
+    System.err.println("  -q <n>, --queue-size <n>");
+    System.err.println("                   Queue at most <n> requests waiting for a pool thread (default is "
+        + DEFAULT_QUEUE_SIZE + ")");
+    System.err.println("  -t <n>, --threads <n>");
+    System.err.println("                   Run at most <n> pool threads (default is " + DEFAULT_THREADS + ")");
     System.err.println("  -X, --export-all-connections");
     System.err.println("                   Export all connection settings and exit");
     System.err.println("  -x <conn-name>, --export-connections <conn-name>");
@@ -158,22 +241,120 @@ class Pike {
   }
 
   Pike(int port) throws IOException {
-    httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+    this(port, DEFAULT_BACKLOG, null);
+  }
+
+  Pike(int port, int backlog, ExecutorService executor) throws IOException {
+    // The server writes the headers and a small body separately, which with
+    // Nagle's algorithm stalls each response until the client's delayed ACK.
+    // Read once, when the first server is created.
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+    httpServer = HttpServer.create(new InetSocketAddress(port), backlog);
+    httpServer.setExecutor(executor);
+    this.executor = executor;
+  }
+
+  ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Adds Pike's pages and endpoints with their filters.
+   */
+  void addDefaultHandlers() {
+    var searchHandler = new SearchHandler();
+    var staticResourceHandler = new StaticResourceHandler();
+
+    var compressionFilter = new CompressionFilter();
+    var faviconFilter = new FaviconFilter();
+    var internalServerErrorFilter = new InternalServerErrorFilter();
+    var jsonInFilter = new JsonInFilter();
+    var metricsFilter = new MetricsFilter();
+    var notModifiedFilter = new NotModifiedFilter();
+
+    addHandler("/", searchHandler,
+        List.of(metricsFilter, compressionFilter, notModifiedFilter, faviconFilter, internalServerErrorFilter));
+    addHandler("/connection", new ConnectionHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/connections", new ConnectionsHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/css", staticResourceHandler,
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/error", new ErrorHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/jobs", new JobsHandler(), List.of(metricsFilter, internalServerErrorFilter, faviconFilter));
+    addHandler("/js", staticResourceHandler,
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/record", new RecordViewHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/search", searchHandler,
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/searches", new SearchesHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter,
+            jsonInFilter));
+    addHandler("/settings", new SettingsHandler(),
+        List.of(metricsFilter, internalServerErrorFilter, compressionFilter, notModifiedFilter, faviconFilter));
+    addHandler("/stats", new StatsHandler(), List.of(internalServerErrorFilter, faviconFilter));
+    addHandler("/metrics", new MetricsHandler(), List.of(internalServerErrorFilter, faviconFilter));
+    if (executor instanceof ThreadPoolExecutor) {
+      var pool = (ThreadPoolExecutor) executor;
+      Metrics.register("pike_executor", "HTTP request executor",
+          () -> Map.of("queueDepth", pool.getQueue().size(), "activeThreads", pool.getActiveCount(), "poolSize",
+              pool.getPoolSize(), "completedTasks", pool.getCompletedTaskCount(), "rejectedTasks",
+              OverloadFilter.getRejectedCount()));
+    }
   }
 
   void addHandler(String path, HttpHandler handler, List<Filter> filters) {
     var context = httpServer.createContext(path);
+    // First, so a rejected exchange does no other work.
+    context.getFilters().add(OVERLOAD_FILTER);
     context.getFilters().addAll(filters);
     context.setHandler(handler);
   }
 
   void serveHttp() {
     LOGGER.info(() -> String.format("%s running with PID %d", Pike.class.getName(), ProcessHandle.current().pid()));
+    LOGGER.config(() -> String.format("Running requests on %s",
+        executor == null ? "the dispatcher thread" : executor.toString()));
     httpServer.start();
   }
 
   void shutdown() {
     LOGGER.warning("Stopping HTTP server...");
     httpServer.stop(0);
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+          executor.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.FINE, "Interrupted waiting for requests to finish", e);
+        executor.shutdownNow();
+      }
+    }
+    Jobs.shutdown();
+    LdapContextPool.shutdown();
+  }
+
+  private static final class NamedThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final String prefix;
+
+    private NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      var t = new Thread(r, String.format("%s-%d", prefix, count.incrementAndGet()));
+      t.setDaemon(true);
+      return t;
+    }
   }
 }
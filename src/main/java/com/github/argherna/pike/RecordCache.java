@@ -0,0 +1,394 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * Bounded in-process cache of rendered records, validated against the
+ * directory's own change markers.
+ *
+ * <p>
+ * A record is cached with the values of its {@code entryCSN},
+ * {@code modifyTimestamp}, {@code whenChanged} and {@code uSNChanged}
+ * operational attributes, whichever the directory has. Reading those is a
+ * cheap object-scope search, so a record can be checked for changes without
+ * fetching and rendering it again. Records without any of them aren't cached.
+ *
+ * <p>
+ * A record younger than its maximum age is served without asking the
+ * directory. An older one is still served for a while, and checked in the
+ * background. After that it has to be checked before it can be served again.
+ *
+ * <p>
+ * The cache is tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.records.maxAge}</dt>
+ * <dd>seconds a record is served without checking it (default 5)</dd>
+ * <dt>{@code pike.records.staleWhileRevalidate}</dt>
+ * <dd>seconds after that a record is served while it's checked in the
+ * background (default 60)</dd>
+ * <dt>{@code pike.records.maxWeight}</dt>
+ * <dd>bytes of rendered records kept in total; 0 disables the cache (default
+ * 8388608)</dd>
+ * </dl>
+ */
+final class RecordCache {
+
+  private static final Logger LOGGER = Logger.getLogger(RecordCache.class.getName());
+
+  private static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("pike.records.maxAge", 5));
+
+  private static final long STALE_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.records.staleWhileRevalidate", 60));
+
+  private static final long MAX_WEIGHT = Long.getLong("pike.records.maxWeight", 8 * 1024 * 1024);
+
+  // In the order they're most likely to change with every modification.
+  private static final String[] VALIDATOR_ATTRIBUTES = new String[] { "entryCSN", "modifyTimestamp", "whenChanged",
+      "uSNChanged" };
+
+  private static final LinkedHashMap<Key, Entry> ENTRIES = new LinkedHashMap<>(64, 0.75f, true);
+
+  private static final ThreadPoolExecutor REVALIDATOR = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(64), r -> {
+        var t = new Thread(r, "pike-record-revalidator");
+        t.setDaemon(true);
+        return t;
+      });
+
+  private static final LongAdder HITS = new LongAdder();
+
+  private static final LongAdder STALE_HITS = new LongAdder();
+
+  private static final LongAdder REVALIDATIONS = new LongAdder();
+
+  private static final LongAdder NOT_MODIFIED = new LongAdder();
+
+  private static final LongAdder MISSES = new LongAdder();
+
+  private static long weight = 0;
+
+  private RecordCache() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * Reads the change markers of an entry.
+   *
+   * @param context the context to read with
+   * @param dn      the entry's distinguished name
+   * @return the change markers, or {@code null} if the entry has none
+   * @throws NamingException if the entry couldn't be read
+   */
+  static String readValidator(DirContext context, String dn) throws NamingException {
+    var attributes = context.getAttributes(dn, VALIDATOR_ATTRIBUTES);
+    var validator = new StringBuilder();
+    for (var id : VALIDATOR_ATTRIBUTES) {
+      var attribute = attributes.get(id);
+      if (attribute != null && attribute.size() > 0) {
+        validator.append(id).append('=').append(attribute.get()).append(';');
+      }
+    }
+    return validator.length() == 0 ? null : validator.toString();
+  }
+
+  /**
+   * Computes the entity tag of a record from its change markers.
+   *
+   * @param connection the connection JSON the record is rendered with
+   * @param dn         the record's distinguished name
+   * @param validator  the record's change markers
+   * @return the quoted entity tag
+   */
+  static String eTag(Json.Fragment connection, String dn, String validator) {
+    return NotModifiedFilter.eTag(String.format("%s%n%s%n%s", connection, dn, validator).getBytes(UTF_8));
+  }
+
+  /**
+   * Looks up a cached record, however old it is.
+   *
+   * @param connectionName the connection name
+   * @param dn             the record's distinguished name
+   * @return the record, or {@code null} if there is none
+   */
+  static Entry get(String connectionName, String dn) {
+    synchronized (ENTRIES) {
+      return ENTRIES.get(new Key(connectionName, dn));
+    }
+  }
+
+  /**
+   * Caches a record, evicting least recently used records as needed.
+   *
+   * @param connectionName the connection name
+   * @param dn             the record's distinguished name
+   * @param entry          the record
+   */
+  static void put(String connectionName, String dn, Entry entry) {
+    if (entry.content.length > MAX_WEIGHT / 8) {
+      return;
+    }
+    synchronized (ENTRIES) {
+      putLocked(new Key(connectionName, dn), entry);
+    }
+  }
+
+  private static void putLocked(Key key, Entry entry) {
+    remove(key);
+    ENTRIES.put(key, entry);
+    weight += entry.content.length;
+    for (Iterator<Entry> it = ENTRIES.values().iterator(); weight > MAX_WEIGHT && it.hasNext();) {
+      weight -= it.next().content.length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Replaces (or with a {@code null} entry, drops) a cached record unless it
+   * has been replaced or dropped since it was looked up.
+   */
+  private static void replace(String connectionName, String dn, Entry cached, Entry entry) {
+    var key = new Key(connectionName, dn);
+    synchronized (ENTRIES) {
+      if (ENTRIES.get(key) == cached) {
+        if (entry == null) {
+          remove(key);
+        } else {
+          putLocked(key, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks a stale record against the directory in the background and
+   * replaces it if it changed. Does nothing if the record is already being
+   * checked.
+   *
+   * @param connection the connection the record came from
+   * @param dn         the record's distinguished name
+   * @param cached     the stale record
+   * @param loader     renders the record again from a context
+   */
+  static void revalidateLater(Settings.ConnectionSettings connection, String dn, Entry cached, Loader loader) {
+    if (!cached.revalidating.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      REVALIDATOR.execute(() -> {
+        try {
+          replace(connection.getName(), dn, cached, revalidate(connection, dn, cached, loader));
+        } catch (NameNotFoundException e) {
+          replace(connection.getName(), dn, cached, null);
+        } catch (NamingException | IOException | RuntimeException e) {
+          LOGGER.fine(() -> String.format("Couldn't revalidate %s on %s: %s", dn, connection.getName(), e));
+        } finally {
+          cached.revalidating.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      cached.revalidating.set(false);
+    }
+  }
+
+  private static Entry revalidate(Settings.ConnectionSettings connection, String dn, Entry cached, Loader loader)
+      throws NamingException, IOException {
+    // Takes a turn like a request would, so revalidating doesn't add to a
+    // directory that's already busy.
+    var permit = ConcurrencyLimiter.forConnection(connection.getName()).acquire();
+    LdapContextPool.PooledContext lease;
+    try {
+      lease = LdapContextPool.borrow(connection);
+    } catch (NamingException | RuntimeException e) {
+      permit.close();
+      throw e;
+    }
+    lease.attach(permit);
+    try (var ldapContext = lease) {
+      var validator = readValidator(ldapContext.get(), dn);
+      if (validator == null) {
+        return null;
+      } else if (validator.equals(cached.validator)) {
+        REVALIDATIONS.increment();
+        return cached.renewed();
+      }
+      return new Entry(validator, eTag(Settings.getConnectionJson(connection.getName()), dn, validator),
+          loader.load(ldapContext.get()));
+    }
+  }
+
+  static void countHit(Entry entry) {
+    if (entry.isFresh()) {
+      HITS.increment();
+    } else {
+      STALE_HITS.increment();
+    }
+  }
+
+  static void countRevalidation() {
+    REVALIDATIONS.increment();
+  }
+
+  static void countNotModified() {
+    NOT_MODIFIED.increment();
+  }
+
+  static void countMiss() {
+    MISSES.increment();
+  }
+
+  /**
+   * Drops all records for the named connection.
+   *
+   * @param connectionName the connection name
+   */
+  static void invalidate(String connectionName) {
+    synchronized (ENTRIES) {
+      ENTRIES.entrySet().removeIf(e -> {
+        if (e.getKey().connectionName.equals(connectionName)) {
+          weight -= e.getValue().content.length;
+          return true;
+        }
+        return false;
+      });
+    }
+  }
+
+  /**
+   * Drops all records.
+   */
+  static void invalidateAll() {
+    synchronized (ENTRIES) {
+      ENTRIES.clear();
+      weight = 0;
+    }
+  }
+
+  /**
+   * @return hit, revalidation and miss counts and current size of the cache
+   */
+  static Map<String, Object> getStats() {
+    synchronized (ENTRIES) {
+      return Map.of("hits", HITS.sum(), "staleHits", STALE_HITS.sum(), "revalidations", REVALIDATIONS.sum(),
+          "notModified", NOT_MODIFIED.sum(), "misses", MISSES.sum(), "entries", ENTRIES.size(), "weight", weight,
+          "maxWeight", MAX_WEIGHT);
+    }
+  }
+
+  private static void remove(Key key) {
+    var removed = ENTRIES.remove(key);
+    if (removed != null) {
+      weight -= removed.content.length;
+    }
+  }
+
+  /**
+   * Renders a record with a context.
+   */
+  @FunctionalInterface
+  interface Loader {
+    byte[] load(DirContext context) throws NamingException, IOException;
+  }
+
+  private static final class Key {
+
+    private final String connectionName;
+
+    private final String dn;
+
+    private Key(String connectionName, String dn) {
+      this.connectionName = connectionName;
+      this.dn = dn;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      var other = (Key) o;
+      return connectionName.equals(other.connectionName) && dn.equalsIgnoreCase(other.dn);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(connectionName, dn.toLowerCase());
+    }
+  }
+
+  /**
+   * A rendered record with the change markers it was rendered at.
+   */
+  static final class Entry {
+
+    private final String validator;
+
+    private final String eTag;
+
+    private final byte[] content;
+
+    private final long checkedAt;
+
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    Entry(String validator, String eTag, byte[] content) {
+      this.validator = validator;
+      this.eTag = eTag;
+      this.content = content;
+      this.checkedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a copy of this record that was checked just now
+     */
+    Entry renewed() {
+      return new Entry(validator, eTag, content);
+    }
+
+    String getValidator() {
+      return validator;
+    }
+
+    String getETag() {
+      return eTag;
+    }
+
+    byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return {@code true} if this record can be served without checking it
+     */
+    boolean isFresh() {
+      return System.currentTimeMillis() - checkedAt < MAX_AGE_MILLIS;
+    }
+
+    /**
+     * @return {@code true} if this record can be served while it's checked in
+     *         the background
+     */
+    boolean isServableWhileStale() {
+      return System.currentTimeMillis() - checkedAt < MAX_AGE_MILLIS + STALE_MILLIS;
+    }
+  }
+}
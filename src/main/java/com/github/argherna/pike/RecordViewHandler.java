@@ -1,11 +1,13 @@
 package com.github.argherna.pike;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
 
 import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
 
 import com.sun.net.httpserver.HttpExchange;
 
@@ -18,25 +20,99 @@ class RecordViewHandler extends BaseLdapHandler {
 
   @Override
   void doJson(HttpExchange exchange) throws IOException {
-    var ldapContext = getLdapContext();
+    serve(exchange, false);
+  }
+
+  /**
+   * Answers a HEAD request from the cache or the entry's change markers, which
+   * also shows that it exists, without fetching the entry.
+   */
+  @Override
+  void doHead(HttpExchange exchange) throws IOException {
+    serve(exchange, true);
+  }
+
+  private void serve(HttpExchange exchange, boolean head) throws IOException {
     var dn = getDnFromPath(Http.getLastPathComponent(exchange.getRequestURI().getPath()));
-    var content = new byte[0];
-    try {
-      var attributes = ldapContext.getAttributes(dn);
-      content = Json.renderObject(
-          Map.of("connection", Maps.toMap(Settings.getConnectionSettings(Settings.getActiveConnectionName())), "record",
-              Maps.toMap(dn, attributes)))
-          .getBytes();
+    var connectionName = Settings.getActiveConnectionName();
+    var ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+
+    var cached = RecordCache.get(connectionName, dn);
+    if (cached != null && cached.isServableWhileStale()) {
+      exchange.getResponseHeaders().set("X-Cache", cached.isFresh() ? "HIT" : "STALE");
+      if (!cached.isFresh()) {
+        RecordCache.revalidateLater(Settings.getConnectionSettings(connectionName), dn, cached,
+            context -> render(connectionName, dn, context));
+      }
+      RecordCache.countHit(cached);
+      sendRecord(exchange, cached, ifNoneMatch);
+      return;
+    }
+
+    RecordCache.Entry entry;
+    try (var ldapContext = getLdapContext()) {
+      var start = System.nanoTime();
+      var validator = RecordCache.readValidator(ldapContext.get(), dn);
+      ldapContext.recordLatency("getAttributes", System.nanoTime() - start);
+      if (validator == null) {
+        // Nothing to tell whether the entry changed, so leave it to
+        // NotModifiedFilter.
+        exchange.getResponseHeaders().set("X-Cache", "BYPASS");
+        Http.sendResponse(exchange, HttpStatus.OK, head ? new byte[0] : render(connectionName, dn, ldapContext.get()),
+            ContentTypes.TYPES.get("json"));
+        return;
+      }
+      var eTag = RecordCache.eTag(Settings.getConnectionJson(connectionName), dn, validator);
+      if (cached != null && cached.getValidator().equals(validator)) {
+        exchange.getResponseHeaders().set("X-Cache", "REVALIDATED");
+        RecordCache.countRevalidation();
+        entry = cached.renewed();
+      } else if (Http.eTagMatches(ifNoneMatch, eTag)) {
+        // The client's copy is current; don't bother fetching the entry.
+        RecordCache.countNotModified();
+        Http.sendResponse(exchange, HttpStatus.NOT_MODIFIED, new byte[0], Map.of("ETag", List.of(eTag)));
+        return;
+      } else if (head) {
+        exchange.getResponseHeaders().set("X-Cache", "MISS");
+        var responseHeaders = new HashMap<String, List<String>>();
+        responseHeaders.put("ETag", List.of(eTag));
+        Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+        Http.sendResponse(exchange, HttpStatus.OK, new byte[0], responseHeaders);
+        return;
+      } else {
+        exchange.getResponseHeaders().set("X-Cache", "MISS");
+        RecordCache.countMiss();
+        entry = new RecordCache.Entry(validator, eTag, render(connectionName, dn, ldapContext.get()));
+      }
     } catch (NamingException e) {
       throw new RuntimeException(e);
-    } finally {
-      try {
-        ldapContext.close();
-      } catch (NamingException e) {
-        throw new RuntimeException(e);
-      }
     }
-    Http.sendResponse(exchange, HttpStatus.OK, content, ContentTypes.TYPES.get("json"));
+    RecordCache.put(connectionName, dn, entry);
+    sendRecord(exchange, entry, ifNoneMatch);
+  }
+
+  private static byte[] render(String connectionName, String dn, DirContext context)
+      throws NamingException, IOException {
+    var start = System.nanoTime();
+    var attributes = context.getAttributes(dn);
+    var fetched = System.nanoTime();
+    LdapContextPool.recordOperation(connectionName, "getAttributes", fetched - start);
+    var content = Json.encode(Map.of("connection", Settings.getConnectionJson(connectionName), "record",
+        Maps.toMap(dn, attributes)));
+    ServerTiming.record("render", System.nanoTime() - fetched);
+    return content;
+  }
+
+  private static void sendRecord(HttpExchange exchange, RecordCache.Entry entry, String ifNoneMatch)
+      throws IOException {
+    var responseHeaders = new HashMap<String, List<String>>();
+    responseHeaders.put("ETag", List.of(entry.getETag()));
+    if (Http.eTagMatches(ifNoneMatch, entry.getETag())) {
+      Http.sendResponse(exchange, HttpStatus.NOT_MODIFIED, new byte[0], responseHeaders);
+    } else {
+      Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+      Http.sendResponse(exchange, HttpStatus.OK, entry.getContent(), responseHeaders);
+    }
   }
 
   private String getDnFromPath(String path) {
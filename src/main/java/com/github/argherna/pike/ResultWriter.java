@@ -0,0 +1,484 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Writes search results to a stream one entry at a time, in one of the
+ * {@link Format formats} Pike can export. Nothing is kept from one entry to
+ * the next, so a result set of any size is written in constant memory.
+ */
+abstract class ResultWriter implements Closeable, Flushable {
+
+  /**
+   * The formats search results can be written in.
+   */
+  enum Format {
+
+    /**
+     * A JSON document with the connection, the search parameters, the records
+     * and any trailing values like the paging cursor.
+     */
+    JSON("json", true),
+
+    /**
+     * One JSON record per line.
+     */
+    NDJSON("ndjson", false),
+
+    /**
+     * LDIF (RFC 2849) content records.
+     */
+    LDIF("ldif", true),
+
+    /**
+     * Comma-separated values (RFC 4180), with a column for the DN and one for
+     * each attribute.
+     */
+    CSV("csv", false);
+
+    private final String name;
+
+    private final boolean trailer;
+
+    private Format(String name, boolean trailer) {
+      this.name = name;
+      this.trailer = trailer;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    /**
+     * @return {@code true} if the trailer, which says whether the results are
+     *         partial, is written after the records
+     */
+    boolean hasTrailer() {
+      return trailer;
+    }
+
+    String getContentType() {
+      return ContentTypes.TYPES.get(name);
+    }
+
+    /**
+     * @param name a format's name, as in a {@code format} parameter
+     * @return the format
+     * @throws IllegalArgumentException if there is no such format
+     */
+    static Format forName(String name) {
+      for (var format : values()) {
+        if (format.name.equalsIgnoreCase(name)) {
+          return format;
+        }
+      }
+      throw new IllegalArgumentException("format must be one of json, ndjson, ldif or csv");
+    }
+
+    /**
+     * Picks the first format named in an Accept header.
+     *
+     * @param accept the header's values, may be {@code null}
+     * @return the format, or {@code null} if none of them are named
+     */
+    static Format forAccept(List<String> accept) {
+      if (accept != null) {
+        for (var value : accept) {
+          for (var range : value.split(",")) {
+            var mediaType = range.split(";")[0].trim();
+            for (var format : values()) {
+              if (format.getContentType().equalsIgnoreCase(mediaType)) {
+                return format;
+              }
+            }
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Creates a writer.
+   *
+   * @param format the format to write
+   * @param out    the stream to write to
+   * @param attrs  the attributes asked for, which are the CSV columns
+   * @return the writer
+   */
+  static ResultWriter create(Format format, OutputStream out, List<String> attrs) {
+    switch (format) {
+    case NDJSON:
+      return new NdjsonWriter(out);
+    case LDIF:
+      return new LdifWriter(out);
+    case CSV:
+      return new CsvWriter(out, attrs);
+    default:
+      return new JsonDocumentWriter(out);
+    }
+  }
+
+  /**
+   * Writes what comes before the records.
+   *
+   * @param connection the connection, as JSON
+   * @param params     the search parameters
+   * @throws IOException if the stream couldn't be written
+   */
+  abstract void begin(Json.Fragment connection, Map<String, Object> params) throws IOException;
+
+  /**
+   * Writes a record.
+   *
+   * @param result the search result
+   * @throws IOException     if the stream couldn't be written
+   * @throws NamingException if the result couldn't be read
+   */
+  abstract void write(SearchResult result) throws IOException, NamingException;
+
+  /**
+   * Writes what comes after the records, as far as the format allows.
+   *
+   * @param trailer values like the paging cursor or whether the results are
+   *                partial
+   * @throws IOException if the stream couldn't be written
+   */
+  abstract void end(Map<String, Object> trailer) throws IOException;
+
+  private static String toText(Object value) {
+    return value instanceof byte[] ? Base64.getEncoder().encodeToString((byte[]) value) : String.valueOf(value);
+  }
+
+  private static final class JsonDocumentWriter extends ResultWriter {
+
+    private final JsonWriter out;
+
+    private int count = 0;
+
+    private JsonDocumentWriter(OutputStream out) {
+      this.out = new JsonWriter(out);
+    }
+
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      out.writeRaw("{\"connection\":").writeValue(connection);
+      if (!params.isEmpty()) {
+        out.writeRaw(",\"parameters\":").writeObject(params);
+      }
+    }
+
+    @Override
+    void write(SearchResult result) throws IOException, NamingException {
+      out.writeRaw(count++ == 0 ? ",\"records\":[" : ",");
+      out.writeObject(Maps.toMap(result.getNameInNamespace(), result.getAttributes()));
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) throws IOException {
+      if (count > 0) {
+        out.writeRaw("]");
+      }
+      for (var entry : trailer.entrySet()) {
+        out.writeRaw(",").writeString(entry.getKey()).writeRaw(":").writeValue(entry.getValue());
+      }
+      out.writeRaw("}");
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes each record as it would appear in the JSON document, on a line of
+   * its own. There's nowhere to put the trailer, so a response that would
+   * need it to say the results are partial is cut off instead.
+   */
+  private static final class NdjsonWriter extends ResultWriter {
+
+    private final JsonWriter out;
+
+    private NdjsonWriter(OutputStream out) {
+      this.out = new JsonWriter(out);
+    }
+
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) {
+      // Every line is a record.
+    }
+
+    @Override
+    void write(SearchResult result) throws IOException, NamingException {
+      out.writeObject(Maps.toMap(result.getNameInNamespace(), result.getAttributes())).writeRaw("\n");
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) {
+      // Every line is a record.
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes LDIF content records. Values that aren't safe strings are base64
+   * encoded, lines are folded at 76 characters, and the trailer is written as
+   * comments.
+   */
+  private static final class LdifWriter extends ResultWriter {
+
+    private static final int MAX_LINE_LENGTH = 76;
+
+    private final Writer out;
+
+    private LdifWriter(OutputStream out) {
+      this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 8192);
+    }
+
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      out.write("version: 1\n");
+    }
+
+    @Override
+    void write(SearchResult result) throws IOException, NamingException {
+      out.write('\n');
+      writeLine("dn", result.getNameInNamespace());
+      var attributes = result.getAttributes().getAll();
+      while (attributes.hasMore()) {
+        var attribute = attributes.next();
+        for (int i = 0; i < attribute.size(); i++) {
+          writeLine(attribute.getID(), attribute.get(i));
+        }
+      }
+    }
+
+    private void writeLine(String name, Object value) throws IOException {
+      String line;
+      if (value instanceof byte[]) {
+        line = name + ":: " + Base64.getEncoder().encodeToString((byte[]) value);
+      } else {
+        var text = String.valueOf(value);
+        line = isSafe(text) ? name + ": " + text
+            : name + ":: " + Base64.getEncoder().encodeToString(text.getBytes(UTF_8));
+      }
+      // Everything written is ASCII, so characters are bytes.
+      out.write(line, 0, Math.min(line.length(), MAX_LINE_LENGTH));
+      for (int pos = MAX_LINE_LENGTH; pos < line.length(); pos += MAX_LINE_LENGTH - 1) {
+        out.write("\n ");
+        out.write(line, pos, Math.min(line.length() - pos, MAX_LINE_LENGTH - 1));
+      }
+      out.write('\n');
+    }
+
+    private static boolean isSafe(String value) {
+      if (value.isEmpty()) {
+        return true;
+      }
+      var first = value.charAt(0);
+      if (first == ' ' || first == ':' || first == '<' || value.charAt(value.length() - 1) == ' ') {
+        return false;
+      }
+      for (int i = 0; i < value.length(); i++) {
+        var c = value.charAt(i);
+        if (c == 0 || c == '\n' || c == '\r' || c > 0x7f) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) throws IOException {
+      if (!trailer.isEmpty()) {
+        out.write('\n');
+      }
+      for (var entry : trailer.entrySet()) {
+        out.write("# " + entry.getKey() + ": " + entry.getValue() + "\n");
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes a header row and then a row for each record. The columns are the
+   * DN and the attributes asked for, in order, or the attributes of the first
+   * record when none were (or when {@code *} or {@code +} was); attributes
+   * only later records have are left out then. Values of a multi-valued
+   * attribute are separated by semicolons, and a semicolon or backslash in a
+   * value is escaped with a backslash. A cell that starts with {@code =},
+   * {@code +}, {@code -}, {@code @}, a tab or a carriage return gets a leading
+   * {@code '} so a spreadsheet doesn't take it for a formula. There's nowhere
+   * to put the trailer, so a response that would need it to say the results are
+   * partial is cut off instead.
+   */
+  private static final class CsvWriter extends ResultWriter {
+
+    private final Writer out;
+
+    private final List<String> columns = new ArrayList<>();
+
+    private final boolean columnsFromFirstRecord;
+
+    private boolean headerWritten = false;
+
+    private CsvWriter(OutputStream out, List<String> attrs) {
+      this.out = new BufferedWriter(new OutputStreamWriter(out, UTF_8), 8192);
+      var all = attrs.isEmpty();
+      for (var attr : attrs) {
+        if (attr.equals("*") || attr.equals("+")) {
+          all = true;
+        } else if (!attr.equals("1.1") && !attr.isEmpty() && !contains(columns, attr)) {
+          columns.add(attr);
+        }
+      }
+      this.columnsFromFirstRecord = all;
+    }
+
+    private static boolean contains(List<String> names, String name) {
+      for (var candidate : names) {
+        if (candidate.equalsIgnoreCase(name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      if (!columnsFromFirstRecord) {
+        writeHeader();
+      }
+    }
+
+    private void writeHeader() throws IOException {
+      writeCell("dn");
+      for (var column : columns) {
+        out.write(',');
+        writeCell(column);
+      }
+      out.write("\r\n");
+      headerWritten = true;
+    }
+
+    @Override
+    void write(SearchResult result) throws IOException, NamingException {
+      var attributes = result.getAttributes();
+      if (!headerWritten) {
+        var ids = attributes.getIDs();
+        while (ids.hasMore()) {
+          var id = ids.next();
+          if (!contains(columns, id)) {
+            columns.add(id);
+          }
+        }
+        writeHeader();
+      }
+      writeCell(result.getNameInNamespace());
+      for (var column : columns) {
+        out.write(',');
+        writeCell(join(attributes, column));
+      }
+      out.write("\r\n");
+    }
+
+    private static String join(Attributes attributes, String column) throws NamingException {
+      Attribute attribute = attributes.get(column);
+      if (attribute == null) {
+        return "";
+      }
+      var joined = new StringBuilder();
+      for (int i = 0; i < attribute.size(); i++) {
+        if (i > 0) {
+          joined.append(';');
+        }
+        var value = toText(attribute.get(i));
+        for (int j = 0; j < value.length(); j++) {
+          var c = value.charAt(j);
+          if (c == ';' || c == '\\') {
+            joined.append('\\');
+          }
+          joined.append(c);
+        }
+      }
+      return joined.toString();
+    }
+
+    private void writeCell(String value) throws IOException {
+      // Spreadsheets also run formulas after a leading tab or carriage return.
+      if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+        value = "'" + value;
+      }
+      var quote = false;
+      for (int i = 0; i < value.length() && !quote; i++) {
+        var c = value.charAt(i);
+        quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (quote || (!value.isEmpty() && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' '))) {
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+      } else {
+        out.write(value);
+      }
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) throws IOException {
+      if (!headerWritten) {
+        writeHeader();
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
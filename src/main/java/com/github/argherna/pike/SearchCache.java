@@ -0,0 +1,259 @@
+package com.github.argherna.pike;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+/**
+ * Bounded in-process cache of search results.
+ *
+ * <p>
+ * Entries are keyed by connection, search base, filter, scope, returned
+ * attributes and sort keys, and expire after the connection's time to live.
+ * The cache is bounded by an estimate of the memory its results take up and
+ * evicts the least recently used entries first.
+ *
+ * <p>
+ * The cache is tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.cache.ttl}</dt>
+ * <dd>seconds a result is kept for connections that don't set their own time
+ * to live; 0 disables the cache (default 0, so searches stay live unless a
+ * connection asks for caching)</dd>
+ * <dt>{@code pike.cache.maxWeight}</dt>
+ * <dd>approximate bytes of results kept in total (default 33554432)</dd>
+ * <dt>{@code pike.cache.maxEntryWeight}</dt>
+ * <dd>approximate bytes of the largest result kept (default an eighth of the
+ * total)</dd>
+ * </dl>
+ */
+final class SearchCache {
+
+  private static final Logger LOGGER = Logger.getLogger(SearchCache.class.getName());
+
+  private static final long DEFAULT_TTL_SECONDS = Long.getLong("pike.cache.ttl", 0);
+
+  private static final long MAX_WEIGHT = Long.getLong("pike.cache.maxWeight", 32 * 1024 * 1024);
+
+  static final long MAX_ENTRY_WEIGHT = Long.getLong("pike.cache.maxEntryWeight", MAX_WEIGHT / 8);
+
+  private static final LinkedHashMap<Key, Entry> ENTRIES = new LinkedHashMap<>(64, 0.75f, true);
+
+  private static final LongAdder HITS = new LongAdder();
+
+  private static final LongAdder MISSES = new LongAdder();
+
+  private static final LongAdder EVICTIONS = new LongAdder();
+
+  private static long weight = 0;
+
+  private SearchCache() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * Returns the time to live for results of the given connection.
+   *
+   * @param connection the connection settings
+   * @return the time to live in milliseconds, 0 if results aren't cached
+   */
+  static long getTtlMillis(Settings.ConnectionSettings connection) {
+    var ttl = connection.getSearchCacheTtl() >= 0 ? connection.getSearchCacheTtl() : DEFAULT_TTL_SECONDS;
+    return TimeUnit.SECONDS.toMillis(ttl);
+  }
+
+  /**
+   * Looks up a cached result.
+   *
+   * @param key the search key
+   * @return the result, or {@code null} if there is none or it has expired
+   */
+  static Entry get(Key key) {
+    synchronized (ENTRIES) {
+      var entry = ENTRIES.get(key);
+      if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+        remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        MISSES.increment();
+      } else {
+        HITS.increment();
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Caches a result, evicting least recently used results as needed.
+   *
+   * @param key   the search key
+   * @param entry the result
+   */
+  static void put(Key key, Entry entry) {
+    if (entry.weight > MAX_ENTRY_WEIGHT || entry.expiresAt <= System.currentTimeMillis()) {
+      return;
+    }
+    synchronized (ENTRIES) {
+      remove(key);
+      ENTRIES.put(key, entry);
+      weight += entry.weight;
+      var now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<Key, Entry>> it = ENTRIES.entrySet().iterator(); weight > MAX_WEIGHT && it.hasNext();) {
+        var eldest = it.next();
+        it.remove();
+        weight -= eldest.getValue().weight;
+        if (eldest.getValue().expiresAt > now) {
+          EVICTIONS.increment();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops all results for the named connection.
+   *
+   * @param connectionName the connection name
+   */
+  static void invalidate(String connectionName) {
+    synchronized (ENTRIES) {
+      ENTRIES.entrySet().removeIf(e -> {
+        if (e.getKey().connectionName.equals(connectionName)) {
+          weight -= e.getValue().weight;
+          return true;
+        }
+        return false;
+      });
+    }
+    LOGGER.fine(() -> String.format("Dropped cached results for %s.", connectionName));
+  }
+
+  /**
+   * Drops all results.
+   */
+  static void invalidateAll() {
+    synchronized (ENTRIES) {
+      ENTRIES.clear();
+      weight = 0;
+    }
+  }
+
+  /**
+   * @return hit, miss and eviction counts and current size of the cache
+   */
+  static Map<String, Object> getStats() {
+    synchronized (ENTRIES) {
+      return Map.of("hits", HITS.sum(), "misses", MISSES.sum(), "evictions", EVICTIONS.sum(), "entries",
+          ENTRIES.size(), "weight", weight, "maxWeight", MAX_WEIGHT);
+    }
+  }
+
+  private static void remove(Key key) {
+    var removed = ENTRIES.remove(key);
+    if (removed != null) {
+      weight -= removed.weight;
+    }
+  }
+
+  /**
+   * Estimates the memory taken up by a search result.
+   *
+   * @param result the search result
+   * @return approximate size of the result in bytes
+   * @throws NamingException if the attributes couldn't be read
+   */
+  static long weigh(SearchResult result) throws NamingException {
+    // Object headers and references are roughly accounted for by the
+    // constants; strings are counted as two bytes per char.
+    long w = 64 + 2 * result.getNameInNamespace().length();
+    var attributes = result.getAttributes().getAll();
+    while (attributes.hasMore()) {
+      var attribute = attributes.next();
+      w += 48 + 2 * attribute.getID().length();
+      for (int i = 0; i < attribute.size(); i++) {
+        var value = attribute.get(i);
+        if (value instanceof byte[]) {
+          w += 16 + ((byte[]) value).length;
+        } else if (value != null) {
+          w += 40 + 2 * value.toString().length();
+        }
+      }
+    }
+    return w;
+  }
+
+  /**
+   * Identifies a search by the connection it ran on, its base and the rest of
+   * the request, normalized so the same search asked for differently has the
+   * same key.
+   */
+  static final class Key {
+
+    private final String connectionName;
+
+    private final String searchBase;
+
+    private final SearchRequest request;
+
+    Key(String connectionName, String searchBase, SearchRequest request) {
+      this.connectionName = connectionName;
+      this.searchBase = searchBase;
+      this.request = request.normalized();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      var other = (Key) o;
+      return connectionName.equals(other.connectionName) && Objects.equals(searchBase, other.searchBase)
+          && request.equals(other.request);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(connectionName, searchBase, request);
+    }
+  }
+
+  /**
+   * A cached search result.
+   */
+  static final class Entry {
+
+    private final List<SearchResult> results;
+
+    private final Map<String, Object> trailer;
+
+    private final long weight;
+
+    private final long expiresAt;
+
+    Entry(List<SearchResult> results, Map<String, Object> trailer, long weight, long ttlMillis) {
+      this.results = List.copyOf(results);
+      this.trailer = Map.copyOf(trailer);
+      this.weight = weight;
+      this.expiresAt = System.currentTimeMillis() + ttlMillis;
+    }
+
+    List<SearchResult> getResults() {
+      return results;
+    }
+
+    Map<String, Object> getTrailer() {
+      return trailer;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package com.github.argherna.pike;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Open paged searches waiting for their next page.
+ *
+ * <p>
+ * A paged results cookie is only good on the connection that issued it, so a
+ * cursor keeps the pooled context the search ran on until the next page is
+ * requested or the cursor expires. Clients only ever see a random cursor id.
+ *
+ * <p>
+ * Fewer cursors are kept open on a connection than its pool has contexts, so
+ * abandoned cursors can't hold the whole pool. When the pool runs out anyway,
+ * expired cursors are closed straight away rather than at the next sweep, to
+ * give their contexts to the requests waiting for one.
+ *
+ * <p>
+ * Cursors are tuned with these system properties:
+ * <dl>
+ * <dt>{@code pike.cursor.timeout}</dt>
+ * <dd>seconds an unused cursor is kept (default 300)</dd>
+ * <dt>{@code pike.cursor.maxOpen}</dt>
+ * <dd>cursors kept open at once per connection, at most one less than
+ * {@code pike.pool.maxSize} (default half of {@code pike.pool.maxSize})</dd>
+ * </dl>
+ */
+final class SearchCursors {
+
+  private static final Logger LOGGER = Logger.getLogger(SearchCursors.class.getName());
+
+  private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("pike.cursor.timeout", 300));
+
+  private static final int MAX_OPEN = Math.max(1, Math.min(LdapContextPool.MAX_SIZE - 1,
+      Integer.getInteger("pike.cursor.maxOpen", LdapContextPool.MAX_SIZE / 2)));
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final Map<String, Cursor> CURSORS = new ConcurrentHashMap<>();
+
+  private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+    var t = new Thread(r, "pike-cursor-reaper");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static {
+    REAPER.scheduleWithFixedDelay(SearchCursors::closeExpired, 30, 30, TimeUnit.SECONDS);
+  }
+
+  private SearchCursors() {
+    // Empty constructor prevents instantiation.
+  }
+
+  /**
+   * Opens a cursor for the next page of a search. The cursor owns the context
+   * from now on.
+   *
+   * @param connectionName name of the connection the search runs on
+   * @param context        the context the search ran on
+   * @param request        the search request
+   * @param cookie         the paged results cookie returned by the server
+   * @return the cursor id to hand to the client
+   */
+  static String open(String connectionName, LdapContextPool.PooledContext context, SearchRequest request,
+      byte[] cookie) {
+    closeExpired();
+    while (countOpen(connectionName) >= MAX_OPEN && closeOldest(connectionName)) {
+      // Make room for this one.
+    }
+    var idBytes = new byte[16];
+    RANDOM.nextBytes(idBytes);
+    var id = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+    CURSORS.put(id, new Cursor(connectionName, context, request, cookie));
+    return id;
+  }
+
+  /**
+   * Removes and returns the cursor with the given id. The caller owns the
+   * cursor's context from now on.
+   *
+   * @param id the cursor id
+   * @return the cursor, or {@code null} if it doesn't exist or has expired
+   */
+  static Cursor take(String id) {
+    var cursor = CURSORS.remove(id);
+    if (cursor != null && cursor.isExpired(System.currentTimeMillis())) {
+      cursor.discard();
+      return null;
+    }
+    return cursor;
+  }
+
+  /**
+   * Returns the cursor with the given id without taking it.
+   *
+   * @param id the cursor id
+   * @return the cursor, or {@code null} if it doesn't exist or has expired
+   */
+  static Cursor peek(String id) {
+    var cursor = CURSORS.get(id);
+    return cursor == null || cursor.isExpired(System.currentTimeMillis()) ? null : cursor;
+  }
+
+  /**
+   * Closes the cursors that have expired, which gives their contexts back to
+   * the pool.
+   */
+  static void closeExpired() {
+    var now = System.currentTimeMillis();
+    CURSORS.entrySet().removeIf(e -> {
+      if (e.getValue().isExpired(now)) {
+        LOGGER.fine(() -> String.format("Closing expired cursor %s", e.getKey()));
+        e.getValue().discard();
+        return true;
+      }
+      return false;
+    });
+  }
+
+  /**
+   * @param connectionName the connection name
+   * @return the number of cursors open on the connection
+   */
+  static int countOpen(String connectionName) {
+    var count = 0;
+    for (var cursor : CURSORS.values()) {
+      if (cursor.connectionName.equals(connectionName)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Closes the oldest cursor open on a connection, which gives its context
+   * back to the pool.
+   *
+   * @param connectionName the connection name
+   * @return {@code true} if a cursor was closed
+   */
+  private static boolean closeOldest(String connectionName) {
+    var oldest = CURSORS.entrySet().stream().filter(e -> e.getValue().connectionName.equals(connectionName))
+        .min((a, b) -> Long.compare(a.getValue().created, b.getValue().created));
+    if (!oldest.isPresent()) {
+      return false;
+    }
+    var e = oldest.get();
+    if (CURSORS.remove(e.getKey(), e.getValue())) {
+      LOGGER.fine(() -> String.format("Too many open cursors on %s, closing %s", connectionName, e.getKey()));
+      e.getValue().discard();
+    }
+    return true;
+  }
+
+  /**
+   * An open paged search.
+   */
+  static final class Cursor {
+
+    private final String connectionName;
+
+    private final LdapContextPool.PooledContext context;
+
+    private final SearchRequest request;
+
+    private final byte[] cookie;
+
+    private final long created = System.currentTimeMillis();
+
+    private Cursor(String connectionName, LdapContextPool.PooledContext context, SearchRequest request,
+        byte[] cookie) {
+      this.connectionName = connectionName;
+      this.context = context;
+      this.request = request;
+      this.cookie = cookie;
+    }
+
+    String getConnectionName() {
+      return connectionName;
+    }
+
+    LdapContextPool.PooledContext getContext() {
+      return context;
+    }
+
+    SearchRequest getRequest() {
+      return request;
+    }
+
+    byte[] getCookie() {
+      return cookie;
+    }
+
+    private boolean isExpired(long now) {
+      return now - created > TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Closes the cursor's context instead of returning it to the pool, which
+     * also makes the server drop its paged search state.
+     */
+    void discard() {
+      context.invalidate();
+      context.close();
+    }
+  }
+}
@@ -8,11 +8,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.TimeLimitExceededException;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortResponseControl;
 
 import com.sun.net.httpserver.HttpExchange;
 
@@ -27,7 +37,28 @@ class SearchHandler extends BaseLdapHandler {
     }
   };
 
-  private static final Map<String, Function<String, List<String>>> PARAM_PROCS;
+  private static final Logger LOGGER = Logger.getLogger(SearchHandler.class.getName());
+
+  // How JNDI puts the directory's result code in an exception's explanation.
+  private static final Pattern LDAP_RESULT_CODE = Pattern.compile("\\[LDAP: error code (\\d+)");
+
+  static final Map<String, Function<String, List<String>>> PARAM_PROCS;
+
+  // Records held for a JSON response before it's streamed instead.
+  private static final int BUFFER_LIMIT = Integer.getInteger("pike.search.bufferLimit", 1000);
+
+  // Entries in each page of an export that doesn't give a page size; 0 to
+  // not page.
+  private static final int EXPORT_PAGE_SIZE = Integer.getInteger("pike.search.exportPageSize", 1000);
+
+  private static final long COALESCE_TIMEOUT_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.search.coalesceTimeout", 10));
+
+  static final SingleFlight<SearchCache.Key, SearchCache.Entry> SEARCHES = new SingleFlight<>(
+      COALESCE_TIMEOUT_MILLIS);
+
+  static final Metrics.Family SEARCH_ENTRIES = Metrics.histogram("pike_ldap_search_entries",
+      "Entries returned by LDAP searches", new double[] { 0, 1, 10, 100, 1000, 10000, 100000 }, "connection");
 
   static {
     var paramProcs = new HashMap<String, Function<String, List<String>>>();
@@ -35,6 +66,19 @@ class SearchHandler extends BaseLdapHandler {
     PARAM_PROCS = Collections.unmodifiableMap(paramProcs);
   }
 
+  /**
+   * Also serves search results to requests that ask for an export format with
+   * a {@code format} parameter or an Accept header, so a plain link can
+   * download them. The query is only scanned for the parameter here;
+   * {@link #doJson(HttpExchange)} parses it.
+   */
+  @Override
+  boolean isDataRequested(HttpExchange exchange) {
+    return super.isDataRequested(exchange)
+        || ResultWriter.Format.forAccept(exchange.getRequestHeaders().get("Accept")) != null
+        || Http.hasParameter(exchange.getRequestURI().getRawQuery(), "format");
+  }
+
   @Override
   String getHtmlTemplateName() {
     return "/templates/search.html";
@@ -42,101 +86,828 @@ class SearchHandler extends BaseLdapHandler {
 
   @Override
   void doJson(HttpExchange exchange) throws IOException {
-    var ldapContext = getLdapContext();
-
-    var rdn = "";
-    var filter = "";
-    List<String> attrs = List.of();
-    var scope = "";
+    // The time limit counts from when the request arrived, including any
+    // wait for a turn or a context.
+    var started = System.currentTimeMillis();
     var rawQuery = exchange.getRequestURI().getRawQuery();
-    Map<String, List<String>> parameters = new HashMap<>();
-    List<Map<String, Object>> records = List.of();
+    var connectionName = Settings.getActiveConnectionName();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      var data = new HashMap<String, Object>();
+      data.put("connection", Settings.getConnectionJson(connectionName));
+      Http.sendResponse(exchange, HttpStatus.OK, Json.encode(data), ContentTypes.TYPES.get("json"));
+      return;
+    }
+
+    var parameters = Http.queryToMap(rawQuery, PARAM_PROCS);
+    SearchRequest request;
+    ResultWriter.Format format;
     try {
-      if (rawQuery != null && !rawQuery.isEmpty()) {
-        parameters = Http.queryToMap(rawQuery, PARAM_PROCS);
-        rdn = parameters.containsKey("rdn") ? parameters.get("rdn").get(0) : null;
-        filter = parameters.containsKey("filter") ? parameters.get("filter").get(0) : "(objectClass=*)";
-        attrs = parameters.get("attr");
-        scope = parameters.containsKey("scope") ? parameters.get("scope").get(0) : "subtree";
-
-        var searchBase = getSearchBase(rdn);
-        var searchControls = getSearchControls(parameters);
-        var results = ldapContext.search(searchBase, filter, searchControls);
-        if (results.hasMoreElements()) {
-          records = new ArrayList<>();
-          while (results.hasMore()) {
-            var result = results.next();
-            records.add(Maps.toMap(result.getNameInNamespace(), result.getAttributes()));
-          }
+      request = SearchRequest.fromParameters(parameters);
+      format = getFormat(exchange, parameters);
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, HttpStatus.BAD_REQUEST, e.getMessage());
+      return;
+    }
+    SearchCursors.Cursor cursor = null;
+    if (parameters.containsKey("cursor")) {
+      cursor = takeCursor(exchange, connectionName, parameters.get("cursor").get(0));
+      if (cursor == null) {
+        return;
+      }
+      // Later pages repeat the first page's search, possibly with a
+      // different page size.
+      request = parameters.containsKey("pageSize") ? cursor.getRequest().withPageSize(request.getPageSize())
+          : cursor.getRequest();
+    }
+
+    var results = format == ResultWriter.Format.JSON && !isStreamingRequested(exchange, parameters)
+        ? new BufferedJsonResults(exchange)
+        : new StreamingResults(exchange, format, request.getAttrs());
+    var search = new Search(connectionName, request, format, results, cursor, started);
+    var cacheMode = parameters.containsKey("cache") ? parameters.get("cache").get(0) : "";
+    if (replayCachedOrShared(exchange, search, cacheMode)) {
+      return;
+    }
+
+    try {
+      search.ldapContext = cursor == null ? getLdapContext() : cursor.getContext();
+    } catch (IOException | RuntimeException e) {
+      search.completeFlight(null);
+      throw e;
+    }
+    Map<String, Object> badRequest = null;
+    var finished = false;
+    try {
+      if (!searchPages(search)) {
+        return;
+      }
+      results.end(finishSearch(search));
+      finished = true;
+    } catch (OperationNotSupportedException e) {
+      if (!request.isVirtualListView() || results.isStarted()) {
+        throw new RuntimeException(e);
+      }
+      // Raised when the directory doesn't support the (critical) virtual list
+      // view control.
+      badRequest = Map.of("error", "Directory doesn't support virtual list view searches!");
+      finished = true;
+    } catch (VirtualListViewControl.ResultException e) {
+      badRequest = Map.of("error", e.getMessage(), "resultCode", e.getResultCode());
+      finished = true;
+    } catch (NamingException e) {
+      // A directory that turns down the view itself, say for an offset out of
+      // range, fails the whole search. A lost connection has an I/O cause.
+      if (!request.isVirtualListView() || results.isStarted() || e.getRootCause() != null) {
+        throw new RuntimeException(e);
+      }
+      badRequest = virtualListViewError(e);
+      finished = true;
+    } finally {
+      // Let anyone still waiting run the search themselves.
+      search.completeFlight(null);
+      if (search.ldapContext != null) {
+        search.ldapContext.close();
+      }
+      if (!finished) {
+        results.fail();
+      }
+      results.close();
+    }
+    if (badRequest != null) {
+      Http.sendResponse(exchange, HttpStatus.BAD_REQUEST, Json.encode(badRequest), ContentTypes.TYPES.get("json"));
+    } else {
+      results.send();
+    }
+  }
+
+  /**
+   * Takes the cursor for a later page. It waits for a turn first so the
+   * cursor isn't lost if there isn't one.
+   *
+   * @return the cursor, with the turn attached to its context, or
+   *         {@code null} if an error was sent instead
+   */
+  private SearchCursors.Cursor takeCursor(HttpExchange exchange, String connectionName, String id)
+      throws IOException {
+    var permit = ConcurrencyLimiter.forConnection(connectionName).acquire();
+    var cursor = SearchCursors.take(id);
+    if (cursor == null) {
+      permit.close();
+      sendError(exchange, HttpStatus.GONE, "Cursor is unknown or has expired!");
+      return null;
+    }
+    if (!cursor.getConnectionName().equals(connectionName)) {
+      permit.close();
+      cursor.discard();
+      sendError(exchange, HttpStatus.BAD_REQUEST, "Cursor belongs to a different connection!");
+      return null;
+    }
+    cursor.getContext().attach(permit);
+    return cursor;
+  }
+
+  /**
+   * Answers from the cache, or with the result of an identical search that's
+   * already running, when it can. Otherwise sets the search up to be cached
+   * and shared once it's run.
+   *
+   * @return {@code true} if the response was sent
+   */
+  private boolean replayCachedOrShared(HttpExchange exchange, Search search, String cacheMode) throws IOException {
+    // Paged and virtual list view results depend on state in the directory,
+    // so only plain (possibly sorted) searches are cached or shared.
+    var request = search.request;
+    var searchKey = !search.continued && !request.isPaged() && !request.isVirtualListView()
+        ? new SearchCache.Key(search.connectionName, search.searchBase, request)
+        : null;
+    search.ttlMillis = SearchCache.getTtlMillis(search.connection);
+    search.cacheKey = search.ttlMillis > 0 && !cacheMode.equals("bypass") ? searchKey : null;
+    if (search.cacheKey != null && !cacheMode.equals("refresh")) {
+      var cached = SearchCache.get(search.cacheKey);
+      if (cached != null) {
+        exchange.getResponseHeaders().set("X-Cache", "HIT");
+        replay(search.results, search.connectionName, request, cached);
+        return true;
+      }
+    }
+
+    // Wait for an identical search that's already running rather than
+    // running it again. A search that was asked to skip the cache wants a
+    // fresh result, which one already running may not be, so it runs alone.
+    if (searchKey != null && COALESCE_TIMEOUT_MILLIS > 0 && !cacheMode.equals("bypass")
+        && !cacheMode.equals("refresh")) {
+      var flight = SEARCHES.join(searchKey);
+      if (flight.isLeader()) {
+        search.flight = flight;
+      } else {
+        var shared = flight.await();
+        if (shared != null) {
+          exchange.getResponseHeaders().set("X-Cache", "COALESCED");
+          replay(search.results, search.connectionName, request, shared);
+          return true;
         }
       }
+    }
+    exchange.getResponseHeaders().set("X-Cache", search.cacheKey == null ? "BYPASS" : "MISS");
+    return false;
+  }
 
-      var data = new HashMap<String, Object>();
-      data.put("connection", Maps.toMap(Settings.getConnectionSettings(Settings.getActiveConnectionName())));
+  /**
+   * Runs the search, through every page for an export, and adds the entries
+   * to the response as the directory returns them.
+   *
+   * @return {@code false} if the client went away and the search was
+   *         abandoned
+   */
+  private boolean searchPages(Search search) throws IOException, NamingException {
+    var request = search.request;
+    var results = search.results;
+    var ldapContext = search.ldapContext;
+    var ctx = ldapContext.get();
+    var searchControls = request.getSearchControls();
+    search.toCache = search.cacheKey == null && search.flight == null ? null : new ArrayList<>();
+    var entries = 0L;
+    // Fetching the rest of the results and rendering them take turns, so add
+    // up each separately.
+    var fetchNanos = 0L;
+    var renderNanos = 0L;
+    // A virtual list view window is small, and is held back until the
+    // response control says the directory could make it.
+    var window = request.isVirtualListView() ? new ArrayList<SearchResult>() : null;
+    // Each page of an export gets the whole time limit, so a big export
+    // isn't cut off part way.
+    var pageStarted = search.started;
+    do {
+      ctx.setRequestControls(search.pageRequest.getRequestControls(search.cookie));
+      setTimeLimit(searchControls, search.connection, pageStarted);
+      var start = System.nanoTime();
+      NamingEnumeration<SearchResult> searchResults;
+      try {
+        searchResults = ctx.search(search.searchBase, request.getFilter(), searchControls);
+      } catch (OperationNotSupportedException e) {
+        if (!search.pagedByExport || search.cookie != null) {
+          throw e;
+        }
+        // The directory doesn't support the (critical) paged results
+        // control, so search without it as the request didn't ask for it.
+        LOGGER.fine(() -> String.format("Can't page the export of %s, searching without it", search.searchBase));
+        search.pageRequest = request;
+        search.allPages = false;
+        ctx.setRequestControls(request.getRequestControls(null));
+        searchResults = ctx.search(search.searchBase, request.getFilter(), searchControls);
+      }
+      ldapContext.recordLatency("search", System.nanoTime() - start);
+      if (!results.isStarted() && window == null) {
+        results.begin(Settings.getConnectionJson(search.connectionName), request.toMap());
+      }
+      var mark = System.nanoTime();
+      try {
+        while (searchResults.hasMore()) {
+          var result = searchResults.next();
+          var fetched = System.nanoTime();
+          fetchNanos += fetched - mark;
+          try {
+            if (window == null) {
+              results.add(result);
+            } else {
+              window.add(result);
+            }
+          } catch (IOException e) {
+            // The client has gone away, so stop the directory from sending
+            // the rest.
+            LOGGER.fine(() -> String.format("Abandoning search of %s: %s", search.searchBase, e));
+            searchResults.close();
+            if (search.allPages) {
+              // The directory may still be holding the paged search.
+              ldapContext.invalidate();
+            }
+            results.abandon();
+            return false;
+          }
+          mark = System.nanoTime();
+          renderNanos += mark - fetched;
+          entries++;
+          if (search.toCache != null) {
+            search.weight += SearchCache.weigh(result);
+            if (search.weight > SearchCache.MAX_ENTRY_WEIGHT) {
+              // Too big to cache or share, stop holding on to the results
+              // and let anyone waiting for them run the search now.
+              search.toCache = null;
+              search.completeFlight(null);
+            } else {
+              search.toCache.add(result);
+            }
+          }
+        }
+      } catch (TimeLimitExceededException e) {
+        // Send what the directory found before the time ran out, marked as
+        // incomplete, and don't keep or share it.
+        search.partial = true;
+        search.toCache = null;
+        search.completeFlight(null);
+      }
+      search.responseControls = ctx.getResponseControls();
+      search.sorted = search.sorted && isSorted(search.responseControls);
+      search.cookie = search.allPages && !search.partial ? getPagedResultsCookie(search.responseControls) : null;
+      if (search.cookie != null && search.cookie.length > 0) {
+        // Each page waits its turn, so a long export doesn't keep one from
+        // other requests between pages.
+        ldapContext.releasePermit();
+        try {
+          ldapContext.attach(ConcurrencyLimiter.forConnection(search.connectionName).acquire());
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+          // Too late for a 503. The directory may still be holding the
+          // paged search.
+          ldapContext.invalidate();
+          throw new IOException("No turn for the next page of the export", e);
+        }
+        pageStarted = System.currentTimeMillis();
+      }
+    } while (search.cookie != null && search.cookie.length > 0);
+    SEARCH_ENTRIES.labels(search.connectionName).observe(entries);
+    ServerTiming.record("search", fetchNanos);
 
-      var params = new HashMap<String, Object>();
-      if (!Strings.isNullOrEmpty(scope)) {
-        params.put("searchScope", scope);
+    if (window != null) {
+      search.vlv = VirtualListViewControl.getResponse(search.responseControls);
+      if (search.vlv != null) {
+        search.vlv.checkResult();
       }
-      if (!Strings.isNullOrEmpty(filter)) {
-        params.put("filter", filter);
+      var mark = System.nanoTime();
+      results.begin(Settings.getConnectionJson(search.connectionName), request.toMap());
+      for (var result : window) {
+        results.add(result);
       }
-      if (!Strings.isNullOrEmpty(rdn)) {
-        params.put("rdn", rdn);
+      renderNanos += System.nanoTime() - mark;
+    }
+    ServerTiming.record("render", renderNanos);
+    return true;
+  }
+
+  /**
+   * Works out what goes after the entries, hands out a cursor if there's
+   * another page, and keeps the result for later searches and the ones
+   * waiting for it.
+   *
+   * @return the trailer
+   */
+  private Map<String, Object> finishSearch(Search search) throws NamingException {
+    var request = search.request;
+    var trailer = new HashMap<String, Object>();
+    if (search.partial) {
+      trailer.put("partial", true);
+    }
+    if (request.isSorted()) {
+      trailer.put("sorted", search.sorted);
+    }
+    if (search.vlv != null) {
+      trailer.put("offset", search.vlv.getTargetPosition());
+      trailer.put("contentCount", search.vlv.getContentCount());
+    }
+    if (request.isPaged() && !search.allPages) {
+      var cookie = getPagedResultsCookie(search.responseControls);
+      if (cookie != null && cookie.length > 0) {
+        // An idle cursor doesn't need a turn.
+        search.ldapContext.releasePermit();
+        trailer.put("cursor", SearchCursors.open(search.connectionName, search.ldapContext, request, cookie));
+        // The cursor owns the context now.
+        search.ldapContext = null;
       }
-      if (attrs != null && !attrs.isEmpty()) {
-        params.put("attrs", attrs);
+    }
+    if (search.toCache != null) {
+      var entry = new SearchCache.Entry(search.toCache, trailer, search.weight, search.ttlMillis);
+      if (search.cacheKey != null) {
+        SearchCache.put(search.cacheKey, entry);
       }
+      search.completeFlight(entry);
+    }
+    return trailer;
+  }
 
-      if (!params.isEmpty()) {
-        data.put("parameters", params);
+  /**
+   * Answers a HEAD request without running the whole search. A cached result
+   * only needs counting, a later page only needs its cursor to still be open,
+   * and anything else is probed for a single entry without attributes, which
+   * still shows up a bad filter or a missing search base.
+   */
+  @Override
+  void doHead(HttpExchange exchange) throws IOException {
+    var rawQuery = exchange.getRequestURI().getRawQuery();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      doJson(exchange);
+      return;
+    }
+
+    var parameters = Http.queryToMap(rawQuery, PARAM_PROCS);
+    SearchRequest request;
+    try {
+      request = SearchRequest.fromParameters(parameters);
+    } catch (IllegalArgumentException e) {
+      sendError(exchange, HttpStatus.BAD_REQUEST, e.getMessage());
+      return;
+    }
+    var connectionName = Settings.getActiveConnectionName();
+    if (parameters.containsKey("cursor")) {
+      // Taking the cursor would use up the page it's for.
+      var cursor = SearchCursors.peek(parameters.get("cursor").get(0));
+      if (cursor == null) {
+        sendError(exchange, HttpStatus.GONE, "Cursor is unknown or has expired!");
+      } else if (!cursor.getConnectionName().equals(connectionName)) {
+        sendError(exchange, HttpStatus.BAD_REQUEST, "Cursor belongs to a different connection!");
+      } else {
+        Http.sendResponse(exchange, HttpStatus.OK, new byte[0], ContentTypes.TYPES.get("json"));
       }
+      return;
+    }
 
-      if (!records.isEmpty()) {
-        data.put("records", records);
+    var connection = Settings.getConnectionSettings(connectionName);
+    var searchBase = request.getSearchBase(connection.getBaseDn());
+    var cacheMode = parameters.containsKey("cache") ? parameters.get("cache").get(0) : "";
+    if (SearchCache.getTtlMillis(connection) > 0 && !request.isPaged() && !request.isVirtualListView()
+        && cacheMode.isEmpty()) {
+      var cached = SearchCache.get(new SearchCache.Key(connectionName, searchBase, request));
+      if (cached != null) {
+        exchange.getResponseHeaders().set("X-Cache", "HIT");
+        exchange.getResponseHeaders().set("X-Result-Count", String.valueOf(cached.getResults().size()));
+        Http.sendResponse(exchange, HttpStatus.OK, new byte[0], ContentTypes.TYPES.get("json"));
+        return;
       }
+    }
 
-      Http.sendResponse(exchange, HttpStatus.OK, Json.renderObject(data).getBytes(), ContentTypes.TYPES.get("json"));
-      ldapContext.close();
+    exchange.getResponseHeaders().set("X-Cache", "BYPASS");
+    var searchControls = request.getSearchControls();
+    searchControls.setReturningAttributes(new String[] { "1.1" });
+    searchControls.setCountLimit(1);
+    setTimeLimit(searchControls, connection, System.currentTimeMillis());
+    try (var ldapContext = getLdapContext()) {
+      var start = System.nanoTime();
+      var probe = ldapContext.get().search(searchBase, request.getFilter(), searchControls);
+      ldapContext.recordLatency("search", System.nanoTime() - start);
+      try {
+        probe.hasMore();
+      } catch (SizeLimitExceededException e) {
+        // More than the one entry asked for.
+      } finally {
+        probe.close();
+      }
     } catch (NamingException e) {
       throw new RuntimeException(e);
     }
+    Http.sendResponse(exchange, HttpStatus.OK, new byte[0], ContentTypes.TYPES.get("json"));
   }
 
-  private String getSearchBase(String rdn) {
-    if (Strings.isNullOrEmpty(rdn)) {
-      return Settings.getConnectionSettings(Settings.getActiveConnectionName()).getBaseDn();
-    } else {
-      var sj = new StringJoiner(",");
-      sj.add(rdn).add(Settings.getConnectionSettings(Settings.getActiveConnectionName()).getBaseDn());
-      return sj.toString();
+  private static Map<String, Object> virtualListViewError(NamingException e) {
+    var error = new HashMap<String, Object>();
+    error.put("error", String.format("Directory couldn't return the virtual list view: %s", e.getExplanation()));
+    var resultCode = LDAP_RESULT_CODE.matcher(String.valueOf(e.getExplanation()));
+    if (resultCode.find()) {
+      error.put("resultCode", Integer.parseInt(resultCode.group(1)));
+    }
+    return error;
+  }
+
+  private static void setTimeLimit(SearchControls searchControls, Settings.ConnectionSettings connection,
+      long started) {
+    var timeLimitMillis = LdapContextPool.getTimeLimitMillis(connection);
+    if (timeLimitMillis > 0) {
+      // Whatever is left of it; 0 would mean no limit at all.
+      var remaining = started + timeLimitMillis - System.currentTimeMillis();
+      searchControls.setTimeLimit((int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining)));
+    }
+  }
+
+  private void replay(Results results, String connectionName, SearchRequest request, SearchCache.Entry entry)
+      throws IOException {
+    try {
+      results.begin(Settings.getConnectionJson(connectionName), request.toMap());
+      for (var result : entry.getResults()) {
+        results.add(result);
+      }
+      results.end(entry.getTrailer());
+    } catch (NamingException e) {
+      results.fail();
+      throw new RuntimeException(e);
+    } finally {
+      results.close();
+    }
+    results.send();
+  }
+
+  /**
+   * Picks the format asked for with a {@code format} parameter or, failing
+   * that, an Accept header.
+   */
+  private ResultWriter.Format getFormat(HttpExchange exchange, Map<String, List<String>> parameters) {
+    if (parameters.containsKey("format")) {
+      return ResultWriter.Format.forName(parameters.get("format").get(0));
+    }
+    var format = ResultWriter.Format.forAccept(exchange.getRequestHeaders().get("Accept"));
+    return format == null ? ResultWriter.Format.JSON : format;
+  }
+
+  private boolean isStreamingRequested(HttpExchange exchange, Map<String, List<String>> parameters) {
+    // A HEAD response can't have a body, so there's nothing to stream.
+    return exchange.getRequestMethod().equals("GET") && parameters.containsKey("stream")
+        && Boolean.parseBoolean(parameters.get("stream").get(0));
+  }
+
+  static boolean isSorted(Control[] controls) {
+    if (controls != null) {
+      for (var control : controls) {
+        if (control instanceof SortResponseControl) {
+          return ((SortResponseControl) control).isSorted();
+        }
+      }
+    }
+    return false;
+  }
+
+  static byte[] getPagedResultsCookie(Control[] controls) {
+    if (controls != null) {
+      for (var control : controls) {
+        if (control instanceof PagedResultsResponseControl) {
+          return ((PagedResultsResponseControl) control).getCookie();
+        }
+      }
+    }
+    return null;
+  }
+
+  private void sendError(HttpExchange exchange, HttpStatus status, String message) throws IOException {
+    Http.sendResponse(exchange, status, Json.renderObject(Map.of("error", message)).getBytes(),
+        ContentTypes.TYPES.get("json"));
+  }
+
+  /**
+   * One search request, from the cache on through the directory to the
+   * response, and what the directory returned for it.
+   */
+  private static final class Search {
+
+    private final String connectionName;
+
+    private final Settings.ConnectionSettings connection;
+
+    private final SearchRequest request;
+
+    private final String searchBase;
+
+    private final Results results;
+
+    private final long started;
+
+    // Whether it's a later page of a paged search.
+    private final boolean continued;
+
+    // Whether an export is paged although it didn't ask to be.
+    private final boolean pagedByExport;
+
+    // The request as it's sent to the directory.
+    private SearchRequest pageRequest;
+
+    // An export goes through every page rather than handing out a cursor.
+    private boolean allPages;
+
+    private byte[] cookie;
+
+    private SearchCache.Key cacheKey;
+
+    private long ttlMillis;
+
+    private SingleFlight.Call<SearchCache.Key, SearchCache.Entry> flight;
+
+    private LdapContextPool.PooledContext ldapContext;
+
+    private List<SearchResult> toCache;
+
+    private long weight = 0;
+
+    private boolean partial = false;
+
+    private boolean sorted = true;
+
+    private Control[] responseControls;
+
+    private VirtualListViewControl.Response vlv;
+
+    private Search(String connectionName, SearchRequest request, ResultWriter.Format format, Results results,
+        SearchCursors.Cursor cursor, long started) {
+      this.connectionName = connectionName;
+      this.connection = Settings.getConnectionSettings(connectionName);
+      this.request = request;
+      this.searchBase = request.getSearchBase(connection.getBaseDn());
+      this.results = results;
+      this.started = started;
+      this.continued = cursor != null;
+      this.cookie = cursor == null ? null : cursor.getCookie();
+      // An export pages even when it wasn't asked to, so directories with a
+      // size limit export everything, unless the directory can't.
+      var export = format != ResultWriter.Format.JSON;
+      this.pagedByExport = export && !request.isPaged() && !request.isVirtualListView() && EXPORT_PAGE_SIZE > 0;
+      this.pageRequest = pagedByExport ? request.withPageSize(EXPORT_PAGE_SIZE) : request;
+      this.allPages = export && pageRequest.isPaged();
+    }
+
+    /**
+     * Hands the result to anyone waiting for this search, or lets them run it
+     * themselves if it's {@code null}. Does nothing after the first time.
+     */
+    private void completeFlight(SearchCache.Entry entry) {
+      if (flight != null) {
+        flight.complete(entry);
+      }
     }
   }
 
-  private SearchControls getSearchControls(Map<String, List<String>> parameters) {
-    // Do a subtree search by default. If another (valid) scope is specified
-    // then search with that.
-    var scope = SearchControls.SUBTREE_SCOPE;
-    if (parameters.containsKey("scope")) {
-      var value = parameters.get("scope").get(0);
-      if (value.equalsIgnoreCase("object")) {
-        scope = SearchControls.OBJECT_SCOPE;
-      } else if (value.equalsIgnoreCase("onelevel")) {
-        scope = SearchControls.ONELEVEL_SCOPE;
+  /**
+   * Writes search results to the response, as a JSON document with the
+   * connection, the search parameters, the records and any trailing values like
+   * the paging cursor, or in one of the export formats.
+   */
+  private abstract static class Results {
+
+    final HttpExchange exchange;
+
+    Results(HttpExchange exchange) {
+      this.exchange = exchange;
+    }
+
+    boolean started = false;
+
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      started = true;
+    }
+
+    boolean isStarted() {
+      return started;
+    }
+
+    abstract void add(SearchResult result) throws IOException, NamingException;
+
+    abstract void end(Map<String, Object> trailer) throws IOException, NamingException;
+
+    /**
+     * Releases resources held for writing. Called after the LDAP context has
+     * been given back, whether or not the search succeeded.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Sends anything that hasn't been sent yet.
+     */
+    abstract void send() throws IOException;
+
+    /**
+     * Gives up on a response that can't be finished. Anything already sent is
+     * left cut off rather than ended, so the client can't mistake it for the
+     * whole response.
+     */
+    void fail() {
+      // Nothing has been sent.
+    }
+
+    /**
+     * Gives up on a response the client is no longer reading.
+     */
+    void abandon() {
+      try {
+        exchange.close();
+      } catch (RuntimeException e) {
+        // Flushing what's left can fail the same way; the client is gone
+        // either way.
       }
     }
+  }
+
+  /**
+   * Collects the records and sends the whole document once the search is done.
+   * Nothing is written until then, so a client that has gone away can't be
+   * noticed. Past {@link #BUFFER_LIMIT} records the response is streamed
+   * instead, which finds out when the client goes and lets the search be
+   * abandoned.
+   */
+  private static final class BufferedJsonResults extends Results {
+
+    private final List<SearchResult> records = new ArrayList<>();
+
+    private Json.Fragment connection;
+
+    private Map<String, Object> params;
+
+    private Map<String, Object> data;
+
+    private StreamingResults streaming;
+
+    private BufferedJsonResults(HttpExchange exchange) {
+      super(exchange);
+    }
 
-    String[] returningAttributes = null;
-    if (parameters.containsKey("attr")) {
-      var value = parameters.get("attr");
-      if (value != null && !value.isEmpty()) {
-        returningAttributes = value.toArray(new String[value.size()]);
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      super.begin(connection, params);
+      this.connection = connection;
+      this.params = params;
+    }
+
+    @Override
+    void add(SearchResult result) throws IOException, NamingException {
+      if (streaming != null) {
+        streaming.add(result);
+        return;
+      }
+      records.add(result);
+      if (records.size() > BUFFER_LIMIT && exchange.getRequestMethod().equals("GET")) {
+        streaming = new StreamingResults(exchange, ResultWriter.Format.JSON, List.of());
+        streaming.begin(connection, params);
+        for (var record : records) {
+          streaming.add(record);
+        }
+        records.clear();
+      }
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) throws IOException, NamingException {
+      if (streaming != null) {
+        streaming.end(trailer);
+        return;
+      }
+      var start = System.nanoTime();
+      data = new HashMap<>();
+      data.put("connection", connection);
+      if (!params.isEmpty()) {
+        data.put("parameters", params);
+      }
+      if (!records.isEmpty()) {
+        var maps = new ArrayList<Map<String, Object>>(records.size());
+        for (var record : records) {
+          maps.add(Maps.toMap(record.getNameInNamespace(), record.getAttributes()));
+        }
+        data.put("records", maps);
       }
+      data.putAll(trailer);
+      ServerTiming.record("render", System.nanoTime() - start);
     }
 
-    var searchControls = new SearchControls();
-    searchControls.setSearchScope(scope);
-    searchControls.setReturningAttributes(returningAttributes);
-    return searchControls;
+    @Override
+    void fail() {
+      if (streaming != null) {
+        streaming.fail();
+      }
+    }
+
+    @Override
+    void abandon() {
+      if (streaming != null) {
+        streaming.abandon();
+      } else {
+        super.abandon();
+      }
+    }
+
+    @Override
+    void close() throws IOException {
+      if (streaming != null) {
+        streaming.close();
+      }
+    }
+
+    @Override
+    void send() throws IOException {
+      if (streaming != null) {
+        return;
+      }
+      var start = System.nanoTime();
+      var content = Json.encode(data);
+      ServerTiming.record("render", System.nanoTime() - start);
+      Http.sendResponse(exchange, HttpStatus.OK, content, ContentTypes.TYPES.get("json"));
+    }
+  }
+
+  /**
+   * Writes each record to the response as the directory returns it using
+   * chunked transfer encoding. A JSON document has the same shape as the
+   * buffered response.
+   */
+  private static final class StreamingResults extends Results {
+
+    private final ResultWriter.Format format;
+
+    private final List<String> attrs;
+
+    private ResultWriter out;
+
+    private int count = 0;
+
+    private StreamingResults(HttpExchange exchange, ResultWriter.Format format, List<String> attrs) {
+      super(exchange);
+      this.format = format;
+      this.attrs = attrs;
+    }
+
+    @Override
+    void begin(Json.Fragment connection, Map<String, Object> params) throws IOException {
+      super.begin(connection, params);
+      // Called after the search has started so errors in the request (bad
+      // filter, missing base) are still reported with an error status.
+      if (format != ResultWriter.Format.JSON) {
+        exchange.getResponseHeaders().set("Content-Disposition",
+            String.format("attachment; filename=pike-search.%s", format.getName()));
+      }
+      Http.sendChunkedResponseHeaders(exchange, HttpStatus.OK, format.getContentType());
+      out = ResultWriter.create(format, exchange.getResponseBody(), attrs);
+      out.begin(connection, params);
+    }
+
+    @Override
+    void add(SearchResult result) throws IOException, NamingException {
+      out.write(result);
+      if (++count == 1) {
+        // Get the first entry to the client as soon as possible.
+        out.flush();
+      }
+    }
+
+    @Override
+    void end(Map<String, Object> trailer) throws IOException {
+      if (trailer.containsKey("partial") && !format.hasTrailer()) {
+        // Without the trailer the file would pass for complete. Failing here
+        // ends the response without its last chunk, so the client sees the
+        // download was cut off.
+        throw new IOException(String.format("Search results are partial and %s can't say so", format.getName()));
+      }
+      out.end(trailer);
+    }
+
+    @Override
+    void fail() {
+      // Neither the writer nor the exchange is closed, which would end the
+      // chunked body normally. The failure goes on to the server, which drops
+      // the connection instead.
+      out = null;
+    }
+
+    @Override
+    void abandon() {
+      out = null;
+      super.abandon();
+    }
+
+    @Override
+    void close() throws IOException {
+      // Nothing has been sent if the search failed to start; leave the
+      // exchange open so the error can be reported.
+      if (out != null) {
+        try {
+          out.close();
+        } finally {
+          exchange.close();
+        }
+      }
+    }
+
+    @Override
+    void send() {
+      // Everything was sent as it was written.
+    }
   }
 }
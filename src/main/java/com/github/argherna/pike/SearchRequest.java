@@ -0,0 +1,304 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.SortControl;
+import javax.naming.ldap.SortKey;
+
+/**
+ * Search parameters from a request encapsulated in a struct-type Object.
+ */
+final class SearchRequest {
+
+  static final String DEFAULT_FILTER = "(objectClass=*)";
+
+  static final String DEFAULT_SCOPE = "subtree";
+
+  private final String rdn;
+
+  private final String filter;
+
+  private final String scope;
+
+  private final List<String> attrs;
+
+  private final int pageSize;
+
+  private final List<String> sort;
+
+  private final int offset;
+
+  private final int before;
+
+  private final int after;
+
+  private SearchRequest(String rdn, String filter, String scope, List<String> attrs, int pageSize, List<String> sort,
+      int offset, int before, int after) {
+    this.rdn = rdn;
+    this.filter = filter;
+    this.scope = scope;
+    this.attrs = attrs == null ? List.of() : List.copyOf(attrs);
+    this.pageSize = pageSize;
+    this.sort = sort;
+    this.offset = offset;
+    this.before = before;
+    this.after = after;
+  }
+
+  /**
+   * Creates a search request from decoded query parameters.
+   *
+   * @param parameters the decoded query parameters
+   * @return the search request
+   * @throws IllegalArgumentException if a parameter has an invalid value
+   */
+  static SearchRequest fromParameters(Map<String, List<String>> parameters) {
+    var rdn = parameters.containsKey("rdn") ? parameters.get("rdn").get(0) : null;
+    var filter = parameters.containsKey("filter") ? parameters.get("filter").get(0) : DEFAULT_FILTER;
+    var scope = parameters.containsKey("scope") ? parameters.get("scope").get(0) : DEFAULT_SCOPE;
+    var pageSize = getNumber(parameters, "pageSize", 0, 1);
+
+    // Sort keys are given comma-separated or as repeated parameters. A
+    // leading '-' sorts that key in reverse order.
+    var sort = new ArrayList<String>();
+    if (parameters.containsKey("sort")) {
+      for (var value : parameters.get("sort")) {
+        for (var key : value.split(",")) {
+          if (!key.trim().isEmpty()) {
+            sort.add(key.trim());
+          }
+        }
+      }
+    }
+
+    var offset = getNumber(parameters, "offset", 0, 1);
+    var before = getNumber(parameters, "before", 0, 0);
+    var after = getNumber(parameters, "after", 0, 0);
+    if (offset > 0 || parameters.containsKey("before") || parameters.containsKey("after")) {
+      if (offset == 0) {
+        throw new IllegalArgumentException("offset must be given for a virtual list view");
+      }
+      if (sort.isEmpty()) {
+        throw new IllegalArgumentException("sort must be given for a virtual list view");
+      }
+      if (pageSize > 0) {
+        throw new IllegalArgumentException("pageSize can't be combined with a virtual list view");
+      }
+    }
+    return new SearchRequest(rdn, filter, scope, parameters.get("attr"), pageSize, List.copyOf(sort), offset, before,
+        after);
+  }
+
+  private static int getNumber(Map<String, List<String>> parameters, String name, int defaultValue, int min) {
+    if (!parameters.containsKey(name)) {
+      return defaultValue;
+    }
+    try {
+      var value = Integer.parseInt(parameters.get(name).get(0));
+      if (value >= min) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the error below.
+    }
+    throw new IllegalArgumentException(String.format("%s must be a number no less than %d", name, min));
+  }
+
+  /**
+   * Returns a copy of this request with a different page size.
+   *
+   * @param pageSize the page size
+   * @return a copy of this request
+   */
+  SearchRequest withPageSize(int pageSize) {
+    return new SearchRequest(rdn, filter, scope, attrs, pageSize, sort, offset, before, after);
+  }
+
+  /**
+   * Returns a copy of this request with the parameters that don't change the
+   * results written one way: the scope in lower case (with unknown scopes as
+   * subtree), and the attributes in lower case, sorted and without
+   * duplicates. Used to recognize the same search asked for differently.
+   *
+   * @return a normalized copy of this request
+   */
+  SearchRequest normalized() {
+    var normalizedScope = scope == null ? DEFAULT_SCOPE : scope.toLowerCase();
+    if (!normalizedScope.equals("object") && !normalizedScope.equals("onelevel")) {
+      normalizedScope = DEFAULT_SCOPE;
+    }
+    var normalizedAttrs = new TreeSet<String>();
+    for (var attr : attrs) {
+      normalizedAttrs.add(attr.toLowerCase());
+    }
+    return new SearchRequest(rdn, filter == null ? null : filter.trim(), normalizedScope,
+        new ArrayList<>(normalizedAttrs), pageSize, sort, offset, before, after);
+  }
+
+  String getRdn() {
+    return rdn;
+  }
+
+  String getFilter() {
+    return filter;
+  }
+
+  String getScope() {
+    return scope;
+  }
+
+  List<String> getAttrs() {
+    return attrs;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  boolean isPaged() {
+    return pageSize > 0;
+  }
+
+  List<String> getSort() {
+    return sort;
+  }
+
+  boolean isSorted() {
+    return !sort.isEmpty();
+  }
+
+  boolean isVirtualListView() {
+    return offset > 0;
+  }
+
+  String getSearchBase(String baseDn) {
+    if (Strings.isNullOrEmpty(rdn)) {
+      return baseDn;
+    } else {
+      var sj = new StringJoiner(",");
+      sj.add(rdn).add(baseDn);
+      return sj.toString();
+    }
+  }
+
+  SearchControls getSearchControls() {
+    // Do a subtree search by default. If another (valid) scope is specified
+    // then search with that.
+    var searchScope = SearchControls.SUBTREE_SCOPE;
+    if (scope.equalsIgnoreCase("object")) {
+      searchScope = SearchControls.OBJECT_SCOPE;
+    } else if (scope.equalsIgnoreCase("onelevel")) {
+      searchScope = SearchControls.ONELEVEL_SCOPE;
+    }
+
+    String[] returningAttributes = null;
+    if (!attrs.isEmpty()) {
+      returningAttributes = attrs.toArray(new String[attrs.size()]);
+    }
+
+    var searchControls = new SearchControls();
+    searchControls.setSearchScope(searchScope);
+    searchControls.setReturningAttributes(returningAttributes);
+    return searchControls;
+  }
+
+  /**
+   * Returns the request controls to send with the search.
+   *
+   * @param cookie the paged results cookie from the previous page, or
+   *               {@code null} for the first page
+   * @return the request controls, or {@code null} if there are none
+   * @throws IOException if a control couldn't be encoded
+   */
+  Control[] getRequestControls(byte[] cookie) throws IOException {
+    var controls = new ArrayList<Control>();
+    if (isSorted()) {
+      // Not critical: a directory that can't sort still returns the entries,
+      // and the response says whether they were sorted.
+      controls.add(new SortControl(getSortKeys(), Control.NONCRITICAL));
+    }
+    if (isVirtualListView()) {
+      controls.add(new VirtualListViewControl(offset, before, after, 0));
+    } else if (isPaged()) {
+      controls.add(new PagedResultsControl(pageSize, cookie, Control.CRITICAL));
+    }
+    return controls.isEmpty() ? null : controls.toArray(new Control[controls.size()]);
+  }
+
+  private SortKey[] getSortKeys() {
+    var keys = new SortKey[sort.size()];
+    for (int i = 0; i < keys.length; i++) {
+      // Keys look like [-]attribute[:matchingRuleId].
+      var key = sort.get(i);
+      var ascending = !key.startsWith("-");
+      if (!ascending) {
+        key = key.substring(1);
+      }
+      var colon = key.indexOf(':');
+      var matchingRuleId = colon == -1 ? null : key.substring(colon + 1);
+      var attributeId = colon == -1 ? key : key.substring(0, colon);
+      keys[i] = new SortKey(attributeId, ascending, matchingRuleId);
+    }
+    return keys;
+  }
+
+  /**
+   * @return the parameters to report back to the client
+   */
+  Map<String, Object> toMap() {
+    var params = new HashMap<String, Object>();
+    if (!Strings.isNullOrEmpty(scope)) {
+      params.put("searchScope", scope);
+    }
+    if (!Strings.isNullOrEmpty(filter)) {
+      params.put("filter", filter);
+    }
+    if (!Strings.isNullOrEmpty(rdn)) {
+      params.put("rdn", rdn);
+    }
+    if (!attrs.isEmpty()) {
+      params.put("attrs", attrs);
+    }
+    if (isPaged()) {
+      params.put("pageSize", pageSize);
+    }
+    if (isSorted()) {
+      params.put("sort", sort);
+    }
+    if (isVirtualListView()) {
+      params.put("offset", offset);
+      params.put("before", before);
+      params.put("after", after);
+    }
+    return params;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof SearchRequest)) {
+      return false;
+    }
+    var other = (SearchRequest) o;
+    return Objects.equals(rdn, other.rdn) && Objects.equals(filter, other.filter)
+        && Objects.equals(scope, other.scope) && attrs.equals(other.attrs) && pageSize == other.pageSize
+        && sort.equals(other.sort) && offset == other.offset && before == other.before && after == other.after;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(rdn, filter, scope, attrs, pageSize, sort, offset, before, after);
+  }
+}
@@ -89,18 +89,31 @@ class SearchesHandler implements HttpHandler {
       content = Json.renderObject(Map.of("error", "\"name\" for settings to update not given!")).getBytes();
       status = HttpStatus.BAD_REQUEST;
     } else {
-      Map<String, Object> params = Json.marshal(new String(exchange.getRequestBody().readAllBytes()));
-      updateSavedSearch(name, params);
+      try {
+        updateSavedSearch(name, Json.marshal(exchange.getRequestBody()));
+      } catch (IllegalArgumentException e) {
+        Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+        content = Json.renderObject(Map.of("error", e.getMessage())).getBytes();
+        status = HttpStatus.BAD_REQUEST;
+      }
     }
 
     Http.sendResponse(exchange, status, content, responseHeaders);
   }
 
   void doPost(HttpExchange exchange) throws IOException {
-    var params = Json.marshal(new String(exchange.getRequestBody().readAllBytes()));
     var content = new byte[0];
     var status = HttpStatus.CREATED;
     var responseHeaders = new HashMap<String, List<String>>();
+    Map<String, Object> params;
+    try {
+      params = Json.marshal(exchange.getRequestBody());
+    } catch (IllegalArgumentException e) {
+      Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
+      content = Json.renderObject(Map.of("error", e.getMessage())).getBytes();
+      Http.sendResponse(exchange, HttpStatus.BAD_REQUEST, content, responseHeaders);
+      return;
+    }
     if (!params.containsKey("name")) {
       Http.addContentTypeResponseHeaders(responseHeaders, ContentTypes.TYPES.get("json"));
       content = Json.renderObject(Map.of("error", "\"name\" for settings not given!")).getBytes();
@@ -0,0 +1,116 @@
+package com.github.argherna.pike;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Times the phases of a request (waiting for a turn, connecting, binding,
+ * searching, rendering and writing) and reports them in a
+ * {@code Server-Timing} response header.
+ *
+ * <p>
+ * A request's timings are kept for the thread handling it, so code deep in
+ * the pool can record a phase without being handed anything. Phases recorded
+ * when no request is being timed (background work) are ignored. A phase
+ * recorded more than once adds up.
+ *
+ * <p>
+ * The header is sent with the response headers, so it can't include writing
+ * the body. The access log has every phase, including the write, once the
+ * request is done.
+ *
+ * <p>
+ * Set these system properties to change what is reported:
+ * <dl>
+ * <dt>{@code pike.serverTiming}</dt>
+ * <dd>send the {@code Server-Timing} header (default true)</dd>
+ * <dt>{@code pike.accessLog}</dt>
+ * <dd>log a line for each request with its status and phase timings at the
+ * {@code INFO} level (default false)</dd>
+ * </dl>
+ */
+final class ServerTiming {
+
+  private static final Logger LOGGER = Logger.getLogger(ServerTiming.class.getName());
+
+  private static final boolean SEND_HEADER = Boolean.parseBoolean(System.getProperty("pike.serverTiming", "true"));
+
+  private static final boolean ACCESS_LOG = Boolean.getBoolean("pike.accessLog");
+
+  private static final ThreadLocal<ServerTiming> CURRENT = new ThreadLocal<>();
+
+  private final long started = System.nanoTime();
+
+  private final Map<String, Long> phases = new LinkedHashMap<>();
+
+  /**
+   * Starts timing the request handled by this thread.
+   *
+   * @return the timings, to {@link #end(HttpExchange) end} when the request is
+   *         done
+   */
+  static ServerTiming begin() {
+    var timing = new ServerTiming();
+    CURRENT.set(timing);
+    return timing;
+  }
+
+  /**
+   * Adds to a phase of the request handled by this thread, if it's timed.
+   *
+   * @param phase the phase
+   * @param nanos time spent in it in nanoseconds
+   */
+  static void record(String phase, long nanos) {
+    var timing = CURRENT.get();
+    if (timing != null) {
+      timing.phases.merge(phase, nanos, Long::sum);
+    }
+  }
+
+  /**
+   * Sets the {@code Server-Timing} header to the phases so far and the time
+   * since the request started. Does nothing if the request isn't timed.
+   *
+   * @param exchange the exchange whose response headers are about to be sent
+   */
+  static void addHeader(HttpExchange exchange) {
+    var timing = CURRENT.get();
+    if (SEND_HEADER && timing != null) {
+      exchange.getResponseHeaders().set("Server-Timing", timing.format(";dur=", ", "));
+    }
+  }
+
+  /**
+   * Stops timing the request and logs it if the access log is on.
+   *
+   * @param exchange the exchange
+   */
+  void end(HttpExchange exchange) {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+    if (ACCESS_LOG) {
+      // No status yet means the handler failed and the error is sent later.
+      var status = exchange.getResponseCode();
+      LOGGER.info(() -> String.format("%s %s %s %s", exchange.getRequestMethod(), exchange.getRequestURI(),
+          status < 0 ? "-" : String.valueOf(status), format("=", " ")));
+    }
+  }
+
+  private String format(String equals, String separator) {
+    var formatted = new StringBuilder();
+    for (var phase : phases.entrySet()) {
+      formatted.append(phase.getKey()).append(equals).append(millis(phase.getValue())).append(separator);
+    }
+    return formatted.append("total").append(equals).append(millis(System.nanoTime() - started)).toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+  }
+}
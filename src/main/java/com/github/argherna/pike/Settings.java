@@ -10,13 +10,30 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
 import javax.crypto.SecretKey;
@@ -38,6 +55,26 @@ final class Settings {
 
   private static final String KEY_ALGORITHM = "AES";
 
+  private static final long CREDENTIALS_TTL_MILLIS = TimeUnit.SECONDS
+      .toMillis(Long.getLong("pike.credentials.ttl", 300));
+
+  private static final Map<String, CachedSecret> CREDENTIALS = new ConcurrentHashMap<>();
+
+  private static final ScheduledExecutorService CREDENTIALS_SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+    var t = new Thread(r, "pike-credentials-sweeper");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static final AtomicReference<Snapshot> SNAPSHOT = new AtomicReference<>();
+
+  private static final AtomicLong GENERATION = new AtomicLong();
+
+  private static final Set<Preferences> LISTENED_NODES = Collections.synchronizedSet(
+      Collections.newSetFromMap(new WeakHashMap<>()));
+
+  private static final SnapshotInvalidator INVALIDATOR = new SnapshotInvalidator();
+
   static final String PREFERENCES_ROOT_NODE_NAME = "/pike";
 
   static final String CONNECTION_PREFS_ROOT_NODE_NAME = String.format("%s/connections", PREFERENCES_ROOT_NODE_NAME);
@@ -58,6 +95,10 @@ final class Settings {
 
   static final String REFERRAL_POLICY_SETTING = "referral-policy";
 
+  static final String SEARCH_CACHE_TTL_SETTING = "search-cache-ttl";
+
+  static final String SEARCH_TIME_LIMIT_SETTING = "search-time-limit";
+
   static final String RDN_SETTING = "rdn";
 
   static final String FILTER_SETTING = "filter";
@@ -127,12 +168,60 @@ final class Settings {
     return secretText;
   }
 
-  static String[] getAllConnectionNames() {
-    try {
-      return Preferences.userRoot().node(CONNECTION_PREFS_ROOT_NODE_NAME).childrenNames();
-    } catch (BackingStoreException e) {
-      throw new RuntimeException(e);
+  /**
+   * Returns the bind password for a connection. Opening the KeyStore the
+   * password is stored in is expensive, so decrypted passwords are cached for
+   * a short time. A cached password is wiped when it expires, whether or not
+   * it's asked for again, and when its connection's settings are saved or
+   * deleted.
+   * 
+   * @param connection the connection settings
+   * @return a copy of the password that the caller may clear when done
+   * @throws CertificateException
+   * @throws IOException
+   * @throws KeyStoreException
+   * @throws NoSuchAlgorithmException
+   * @throws UnrecoverableKeyException
+   */
+  static char[] getBindPassword(Settings.ConnectionSettings connection)
+      throws IOException, NoSuchAlgorithmException, CertificateException, KeyStoreException, UnrecoverableKeyException {
+    var secretBytes = connection.getPassword();
+    var cached = CREDENTIALS.get(connection.getName());
+    if (cached != null) {
+      var secret = cached.copyIfMatches(connection.getBindDn(), secretBytes);
+      if (secret != null) {
+        return secret;
+      }
     }
+    var secret = byteArrayToSecretText(connection.getBindDn(), secretBytes);
+    var name = connection.getName();
+    var entry = new CachedSecret(connection.getBindDn(), secretBytes, Arrays.copyOf(secret, secret.length),
+        System.currentTimeMillis() + CREDENTIALS_TTL_MILLIS);
+    var previous = CREDENTIALS.put(name, entry);
+    if (previous != null) {
+      previous.clear();
+    }
+    CREDENTIALS_SWEEPER.schedule(() -> {
+      entry.clear();
+      CREDENTIALS.remove(name, entry);
+    }, CREDENTIALS_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    return secret;
+  }
+
+  private static void forgetBindPassword(String name) {
+    var cached = CREDENTIALS.remove(name);
+    if (cached != null) {
+      cached.clear();
+    }
+  }
+
+  private static void forgetAllBindPasswords() {
+    CREDENTIALS.keySet().forEach(Settings::forgetBindPassword);
+  }
+
+  static String[] getAllConnectionNames() {
+    var names = snapshot().connections.keySet();
+    return names.toArray(new String[names.size()]);
   }
 
   static String[] getSearchNames(String connectionName) {
@@ -145,12 +234,103 @@ final class Settings {
   }
 
   static Settings.ConnectionSettings getConnectionSettings(String name) {
-    var prefs = Preferences.userRoot().node(String.format("%s/%s", CONNECTION_PREFS_ROOT_NODE_NAME, name));
+    var connection = snapshot().connections.get(name);
+    if (connection == null) {
+      connection = readConnectionSettings(name,
+          Preferences.userRoot().node(String.format("%s/%s", CONNECTION_PREFS_ROOT_NODE_NAME, name)));
+    }
+    return connection;
+  }
+
+  /**
+   * Returns the connection settings rendered as the JSON object the UI expects.
+   * 
+   * @param name the connection name
+   * @return the rendered settings
+   */
+  static Json.Fragment getConnectionJson(String name) {
+    var json = snapshot().connectionJson.get(name);
+    if (json == null) {
+      json = renderConnection(getConnectionSettings(name));
+    }
+    return json;
+  }
+
+  private static Settings.ConnectionSettings readConnectionSettings(String name, Preferences prefs) {
     return new Settings.ConnectionSettings.Builder(name).authType(prefs.get(AUTHTYPE_SETTING, ""))
         .baseDn(prefs.get(BASE_DN_SETTING, "")).bindDn(prefs.get(BIND_DN_SETTING, ""))
         .ldapUrl(prefs.get(LDAP_URL_SETTING, "")).password(prefs.getByteArray(PASSWORD_SETTING, new byte[0]))
         .referralPolicy(prefs.get(REFERRAL_POLICY_SETTING, ""))
-        .useStartTls(prefs.getBoolean(USE_STARTTLS_SETTING, false)).build();
+        .useStartTls(prefs.getBoolean(USE_STARTTLS_SETTING, false))
+        .searchCacheTtl(prefs.getLong(SEARCH_CACHE_TTL_SETTING, -1))
+        .searchTimeLimit(prefs.getLong(SEARCH_TIME_LIMIT_SETTING, -1)).build();
+  }
+
+  private static Json.Fragment renderConnection(Settings.ConnectionSettings connection) {
+    try {
+      return Json.fragment(Json.renderObject(Maps.toMap(connection)));
+    } catch (IOException e) {
+      // Shouldn't happen rendering to a String, throw a RuntimeException so it's
+      // logged.
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the current snapshot of the connection settings, reading them from
+   * the preferences if they changed since the last read.
+   */
+  private static Snapshot snapshot() {
+    var snapshot = SNAPSHOT.get();
+    if (snapshot != null) {
+      return snapshot;
+    }
+    var generation = GENERATION.get();
+    snapshot = loadSnapshot();
+    SNAPSHOT.compareAndSet(null, snapshot);
+    if (GENERATION.get() != generation) {
+      // Settings changed while they were being read, don't keep what was read.
+      SNAPSHOT.compareAndSet(snapshot, null);
+    }
+    return snapshot;
+  }
+
+  private static Snapshot loadSnapshot() {
+    try {
+      var root = Preferences.userRoot().node(PREFERENCES_ROOT_NODE_NAME);
+      var connectionsNode = Preferences.userRoot().node(CONNECTION_PREFS_ROOT_NODE_NAME);
+      listenTo(root);
+      listenTo(connectionsNode);
+      var connections = new LinkedHashMap<String, Settings.ConnectionSettings>();
+      for (var name : connectionsNode.childrenNames()) {
+        var node = connectionsNode.node(name);
+        listenTo(node);
+        connections.put(name, readConnectionSettings(name, node));
+      }
+      LOGGER.fine(() -> String.format("Loaded settings for %d connections.", connections.size()));
+      return new Snapshot(root.get(ACTIVE_CONN_NAME_SETTING, ""), connections);
+    } catch (BackingStoreException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void listenTo(Preferences node) {
+    // Listeners go away with removed nodes, so a node recreated with the same
+    // path is a different object and gets listeners of its own.
+    if (LISTENED_NODES.add(node)) {
+      node.addPreferenceChangeListener(INVALIDATOR);
+      node.addNodeChangeListener(INVALIDATOR);
+    }
+  }
+
+  /**
+   * Drops the current snapshot so the next read sees the latest settings.
+   * Preference change events are delivered asynchronously, so methods here that
+   * change settings call this directly too.
+   */
+  private static void invalidateSnapshot() {
+    GENERATION.incrementAndGet();
+    SNAPSHOT.set(null);
   }
 
   static Settings.SearchSettings getSearchSettings(String connectionName, String searchName) {
@@ -162,7 +342,7 @@ final class Settings {
   }
 
   static String getActiveConnectionName() {
-    return Preferences.userRoot().node(PREFERENCES_ROOT_NODE_NAME).get(ACTIVE_CONN_NAME_SETTING, "");
+    return snapshot().activeConnectionName;
   }
 
   static void setActiveConnectionName(String name) {
@@ -171,6 +351,7 @@ final class Settings {
       activeConnectionName.put(ACTIVE_CONN_NAME_SETTING, name);
       activeConnectionName.flush();
       activeConnectionName.sync();
+      invalidateSnapshot();
     } catch (BackingStoreException e) {
       throw new RuntimeException(e);
     }
@@ -181,6 +362,7 @@ final class Settings {
     try {
       activeConnectionName.remove(ACTIVE_CONN_NAME_SETTING);
       activeConnectionName.flush();
+      invalidateSnapshot();
     } catch (BackingStoreException e) {
       throw new RuntimeException(e);
     }
@@ -192,6 +374,8 @@ final class Settings {
           .node(String.format("%s/%s", CONNECTION_PREFS_ROOT_NODE_NAME, name));
       connectionToDelete.removeNode();
       connectionToDelete.flush();
+      invalidateSnapshot();
+      forgetBindPassword(name);
     } catch (BackingStoreException e) {
       throw new RuntimeException(e);
     }
@@ -202,6 +386,8 @@ final class Settings {
       var connections = Preferences.userRoot().node(CONNECTION_PREFS_ROOT_NODE_NAME);
       connections.removeNode();
       connections.flush();
+      invalidateSnapshot();
+      forgetAllBindPasswords();
     } catch (BackingStoreException e) {
       throw new RuntimeException(e);
     }
@@ -260,6 +446,8 @@ final class Settings {
   static void importSettings(InputStream is) {
     try {
       Preferences.importPreferences(is);
+      invalidateSnapshot();
+      forgetAllBindPasswords();
       LOGGER.fine("Import settings complete.");
     } catch (IOException | InvalidPreferencesFormatException e) {
       throw new RuntimeException(e);
@@ -289,8 +477,16 @@ final class Settings {
     if (Strings.nullToEmpty(connSettings.getReferralPolicy()).length() > 0) {
       connection.put(REFERRAL_POLICY_SETTING, connSettings.getReferralPolicy());
     }
+    if (connSettings.getSearchCacheTtl() >= 0) {
+      connection.putLong(SEARCH_CACHE_TTL_SETTING, connSettings.getSearchCacheTtl());
+    }
+    if (connSettings.getSearchTimeLimit() >= 0) {
+      connection.putLong(SEARCH_TIME_LIMIT_SETTING, connSettings.getSearchTimeLimit());
+    }
     connection.flush();
     connection.sync();
+    invalidateSnapshot();
+    forgetBindPassword(connSettings.getName());
     LOGGER.fine(() -> String.format("Saved %s connection settings.", connSettings.getName()));
   }
 
@@ -338,6 +534,10 @@ final class Settings {
 
     private final byte[] password;
 
+    private final long searchCacheTtl;
+
+    private final long searchTimeLimit;
+
     static final class Builder {
 
       private String name;
@@ -356,6 +556,10 @@ final class Settings {
 
       private byte[] password = new byte[0];
 
+      private long searchCacheTtl = -1;
+
+      private long searchTimeLimit = -1;
+
       Builder(String name) {
         this.name = Objects.requireNonNull(name, "Connection name cannot be null");
       }
@@ -395,6 +599,24 @@ final class Settings {
         return this;
       }
 
+      /**
+       * @param searchCacheTtl seconds search results are cached, 0 to not cache
+       *                       them or -1 to use the default
+       */
+      Builder searchCacheTtl(long searchCacheTtl) {
+        this.searchCacheTtl = searchCacheTtl;
+        return this;
+      }
+
+      /**
+       * @param searchTimeLimit seconds a search may run, 0 for no limit or -1
+       *                        to use the default
+       */
+      Builder searchTimeLimit(long searchTimeLimit) {
+        this.searchTimeLimit = searchTimeLimit;
+        return this;
+      }
+
       ConnectionSettings build() {
         return new ConnectionSettings(this);
       }
@@ -409,6 +631,8 @@ final class Settings {
       this.useStartTls = builder.useStartTls;
       this.referralPolicy = builder.referralPolicy;
       this.password = builder.password;
+      this.searchCacheTtl = builder.searchCacheTtl;
+      this.searchTimeLimit = builder.searchTimeLimit;
     }
 
     String getName() {
@@ -444,6 +668,36 @@ final class Settings {
       System.arraycopy(password, 0, copy, 0, password.length);
       return copy;
     }
+
+    long getSearchCacheTtl() {
+      return searchCacheTtl;
+    }
+
+    long getSearchTimeLimit() {
+      return searchTimeLimit;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ConnectionSettings)) {
+        return false;
+      }
+      var other = (ConnectionSettings) o;
+      return Objects.equals(name, other.name) && Objects.equals(ldapUrl, other.ldapUrl)
+          && Objects.equals(baseDn, other.baseDn) && Objects.equals(authType, other.authType)
+          && Objects.equals(bindDn, other.bindDn) && useStartTls == other.useStartTls
+          && Objects.equals(referralPolicy, other.referralPolicy) && Arrays.equals(password, other.password)
+          && searchCacheTtl == other.searchCacheTtl && searchTimeLimit == other.searchTimeLimit;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, ldapUrl, baseDn, authType, bindDn, useStartTls, referralPolicy, searchCacheTtl,
+          searchTimeLimit) + 31 * Arrays.hashCode(password);
+    }
   }
 
   /**
@@ -541,4 +795,91 @@ final class Settings {
       return copy;
     }
   }
+
+  /**
+   * Immutable view of the connection settings taken at one point in time.
+   */
+  private static final class Snapshot {
+
+    private final String activeConnectionName;
+
+    private final Map<String, Settings.ConnectionSettings> connections;
+
+    private final Map<String, Json.Fragment> connectionJson;
+
+    private Snapshot(String activeConnectionName, Map<String, Settings.ConnectionSettings> connections) {
+      this.activeConnectionName = activeConnectionName;
+      this.connections = Collections.unmodifiableMap(connections);
+      var connectionJson = new LinkedHashMap<String, Json.Fragment>();
+      for (var connection : connections.values()) {
+        try {
+          connectionJson.put(connection.getName(), renderConnection(connection));
+        } catch (IllegalArgumentException e) {
+          // A malformed URL fails when its host is looked up; leave it to be
+          // rendered (and fail) when it's asked for.
+          LOGGER.log(Level.FINE, String.format("Couldn't render %s connection settings", connection.getName()), e);
+        }
+      }
+      this.connectionJson = Collections.unmodifiableMap(connectionJson);
+    }
+  }
+
+  /**
+   * Drops the snapshot whenever a setting or connection node changes.
+   */
+  private static final class SnapshotInvalidator implements PreferenceChangeListener, NodeChangeListener {
+
+    @Override
+    public void preferenceChange(PreferenceChangeEvent evt) {
+      invalidateSnapshot();
+    }
+
+    @Override
+    public void childAdded(NodeChangeEvent evt) {
+      invalidateSnapshot();
+    }
+
+    @Override
+    public void childRemoved(NodeChangeEvent evt) {
+      invalidateSnapshot();
+    }
+  }
+
+  /**
+   * A decrypted password along with the stored bytes it came from.
+   */
+  private static final class CachedSecret {
+
+    private final String bindDn;
+
+    private final byte[] secretBytes;
+
+    private final char[] secret;
+
+    private final long expiresAt;
+
+    private boolean cleared = false;
+
+    private CachedSecret(String bindDn, byte[] secretBytes, char[] secret, long expiresAt) {
+      this.bindDn = bindDn;
+      this.secretBytes = secretBytes;
+      this.secret = secret;
+      this.expiresAt = expiresAt;
+    }
+
+    private synchronized char[] copyIfMatches(String bindDn, byte[] secretBytes) {
+      // Checking the stored bytes catches changes made outside of Pike.
+      if (expiresAt > System.currentTimeMillis() && Objects.equals(this.bindDn, bindDn)
+          && !cleared && Arrays.equals(this.secretBytes, secretBytes)) {
+        return Arrays.copyOf(secret, secret.length);
+      }
+      return null;
+    }
+
+    private synchronized void clear() {
+      cleared = true;
+      Arrays.fill(secret, '\u0000');
+      Arrays.fill(secretBytes, (byte) 0);
+    }
+  }
 }
@@ -57,6 +57,8 @@ class SettingsHandler implements HttpHandler {
     var status = HttpStatus.NO_CONTENT;
     if (contentType.startsWith(ContentTypes.TYPES.get("upload"))) {
       Settings.importSettings(getUploadedData(exchange, contentType));
+      SearchCache.invalidateAll();
+      RecordCache.invalidateAll();
     } else {
       status = HttpStatus.BAD_REQUEST;
     }
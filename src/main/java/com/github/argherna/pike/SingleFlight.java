@@ -0,0 +1,137 @@
+package com.github.argherna.pike;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets concurrent callers doing the same work share one result.
+ *
+ * <p>
+ * The first caller for a key becomes the leader and does the work. Callers
+ * that arrive for the same key while the leader is busy wait for its result
+ * instead of doing the work again. A follower waits no longer than the
+ * timeout, and gets no result if the leader fails or has nothing to share; it
+ * is expected to do the work itself then.
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ */
+final class SingleFlight<K, V> {
+
+  private final Map<K, Call<K, V>> calls = new ConcurrentHashMap<>();
+
+  private final long timeoutMillis;
+
+  private final LongAdder leaders = new LongAdder();
+
+  private final LongAdder followers = new LongAdder();
+
+  private final LongAdder shared = new LongAdder();
+
+  private final LongAdder timeouts = new LongAdder();
+
+  /**
+   * @param timeoutMillis longest a follower waits for the leader
+   */
+  SingleFlight(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Joins the call for a key, starting it if there isn't one.
+   *
+   * @param key the key
+   * @return the call; if this caller is its {@link Call#isLeader() leader} it
+   *         must {@link Call#complete(Object) complete} it
+   */
+  Call<K, V> join(K key) {
+    var call = new Call<K, V>(this, key, true);
+    var existing = calls.putIfAbsent(key, call);
+    if (existing == null) {
+      leaders.increment();
+      return call;
+    }
+    followers.increment();
+    return new Call<>(this, key, false, existing.result);
+  }
+
+  /**
+   * @return leader, follower, shared result and timeout counts, and the number
+   *         of calls in flight
+   */
+  Map<String, Object> getStats() {
+    return Map.of("leaders", leaders.sum(), "followers", followers.sum(), "shared", shared.sum(), "timeouts",
+        timeouts.sum(), "inFlight", calls.size());
+  }
+
+  /**
+   * One caller's part in a call.
+   */
+  static final class Call<K, V> {
+
+    private final SingleFlight<K, V> flight;
+
+    private final K key;
+
+    private final boolean leader;
+
+    private final CompletableFuture<V> result;
+
+    private Call(SingleFlight<K, V> flight, K key, boolean leader) {
+      this(flight, key, leader, new CompletableFuture<>());
+    }
+
+    private Call(SingleFlight<K, V> flight, K key, boolean leader, CompletableFuture<V> result) {
+      this.flight = flight;
+      this.key = key;
+      this.leader = leader;
+      this.result = result;
+    }
+
+    boolean isLeader() {
+      return leader;
+    }
+
+    /**
+     * Waits for the leader's result.
+     *
+     * @return the result, or {@code null} if the leader had none to share or
+     *         didn't finish in time
+     */
+    V await() {
+      try {
+        var value = result.get(flight.timeoutMillis, TimeUnit.MILLISECONDS);
+        if (value != null) {
+          flight.shared.increment();
+        }
+        return value;
+      } catch (TimeoutException e) {
+        flight.timeouts.increment();
+        return null;
+      } catch (ExecutionException e) {
+        return null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+    }
+
+    /**
+     * Hands the leader's result to the followers and ends the call. Does
+     * nothing after the first time or for followers.
+     *
+     * @param value the result, or {@code null} if there is none to share
+     */
+    void complete(V value) {
+      if (leader && !result.isDone()) {
+        flight.calls.remove(key, this);
+        result.complete(value);
+      }
+    }
+  }
+}
@@ -12,14 +12,15 @@ class StaticResourceHandler implements HttpHandler {
     var status = HttpStatus.OK;
     var path = exchange.getRequestURI().getPath();
     var contentType = ContentTypes.TYPES.get(getFileExtension(path));
-    var content = IO.loadResourceFromClasspath(path);
-    if (content.length == 0) {
+    var resource = IO.getResource(path);
+    if (resource == null) {
       status = HttpStatus.NOT_FOUND;
-      content = Html.renderError(status, String.format(
+      var content = Html.renderError(status, String.format(
         "%s not found on this server", path)).getBytes();
-      contentType = ContentTypes.TYPES.get("html");
+      Http.sendResponse(exchange, status, content, ContentTypes.TYPES.get("html"));
+      return;
     }
-    Http.sendResponse(exchange, status, content, contentType);
+    Http.sendResource(exchange, status, resource, contentType);
   }
 
   private String getFileExtension(String filename) {
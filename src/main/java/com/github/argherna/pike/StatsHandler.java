@@ -0,0 +1,18 @@
+package com.github.argherna.pike;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+class StatsHandler implements HttpHandler {
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    var content = Json.encode(Map.of("searchCache", SearchCache.getStats(), "recordCache", RecordCache.getStats(),
+        "searchCoalescing", SearchHandler.SEARCHES.getStats(), "limiters", ConcurrencyLimiter.getStats(),
+        "compression", CompressionFilter.getStats(), "jobs", Jobs.getStats()));
+    Http.sendResponse(exchange, HttpStatus.OK, content, ContentTypes.TYPES.get("json"));
+  }
+}
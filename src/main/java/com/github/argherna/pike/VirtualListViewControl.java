@@ -0,0 +1,177 @@
+package com.github.argherna.pike;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Virtual list view request control as described in
+ * <a href="https://tools.ietf.org/html/draft-ietf-ldapext-ldapv3-vlv-09">
+ * draft-ietf-ldapext-ldapv3-vlv</a>. The JDK has no implementation of this
+ * control, so this class uses {@link Ber} to encode the offset form of the
+ * request and decode the response.
+ *
+ * <pre>
+ * VirtualListViewRequest ::= SEQUENCE {
+ *   beforeCount    INTEGER (0..maxInt),
+ *   afterCount     INTEGER (0..maxInt),
+ *   target       CHOICE {
+ *     byOffset        [0] SEQUENCE {
+ *       offset          INTEGER (1 .. maxInt),
+ *       contentCount    INTEGER (0 .. maxInt) },
+ *     greaterThanOrEqual [1] AssertionValue },
+ *   contextID     OCTET STRING OPTIONAL }
+ *
+ * VirtualListViewResponse ::= SEQUENCE {
+ *   targetPosition    INTEGER (0 .. maxInt),
+ *   contentCount     INTEGER (0 .. maxInt),
+ *   virtualListViewResult ENUMERATED { ... },
+ *   contextID     OCTET STRING OPTIONAL }
+ * </pre>
+ *
+ * The directory must also be sent a sort control with this control.
+ */
+final class VirtualListViewControl extends BasicControl {
+
+  static final String OID = "2.16.840.1.113730.3.4.9";
+
+  static final String RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int BER_BY_OFFSET = 0xa0;
+
+  /**
+   * Creates a critical request for a window of entries around an offset.
+   *
+   * @param offset       1-based position of the target entry in the sorted
+   *                     list
+   * @param beforeCount  entries to return before the target
+   * @param afterCount   entries to return after the target
+   * @param contentCount the client's estimate of the list size, 0 if unknown
+   */
+  VirtualListViewControl(int offset, int beforeCount, int afterCount, int contentCount) {
+    super(OID, CRITICAL, encode(offset, beforeCount, afterCount, contentCount));
+  }
+
+  private static byte[] encode(int offset, int beforeCount, int afterCount, int contentCount) {
+    return Ber.sequence(Ber.integer(Ber.INTEGER, beforeCount), Ber.integer(Ber.INTEGER, afterCount),
+        Ber.constructed(BER_BY_OFFSET, Ber.integer(Ber.INTEGER, offset), Ber.integer(Ber.INTEGER, contentCount)));
+  }
+
+  /**
+   * Finds and decodes the virtual list view response control.
+   *
+   * @param controls the response controls from the search
+   * @return the decoded response, or {@code null} if there isn't one
+   * @throws NamingException if the response is malformed
+   */
+  static Response getResponse(Control[] controls) throws NamingException {
+    if (controls != null) {
+      for (var control : controls) {
+        if (RESPONSE_OID.equals(control.getID())) {
+          return Response.decode(control.getEncodedValue());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decoded virtual list view response.
+   */
+  static final class Response {
+
+    private final int targetPosition;
+
+    private final int contentCount;
+
+    private final int result;
+
+    private Response(int targetPosition, int contentCount, int result) {
+      this.targetPosition = targetPosition;
+      this.contentCount = contentCount;
+      this.result = result;
+    }
+
+    private static Response decode(byte[] encoded) throws NamingException {
+      var response = new Ber(encoded).readSequence(Ber.SEQUENCE);
+      var targetPosition = response.readInteger(Ber.INTEGER);
+      var contentCount = response.readInteger(Ber.INTEGER);
+      var result = response.readInteger(Ber.ENUMERATED);
+      return new Response(targetPosition, contentCount, result);
+    }
+
+    int getTargetPosition() {
+      return targetPosition;
+    }
+
+    int getContentCount() {
+      return contentCount;
+    }
+
+    /**
+     * @return the LDAP result code for the virtual list view, 0 on success
+     */
+    int getResult() {
+      return result;
+    }
+
+    /**
+     * @throws ResultException if the directory couldn't make the view
+     */
+    void checkResult() throws ResultException {
+      if (result != 0) {
+        throw new ResultException(result);
+      }
+    }
+  }
+
+  /**
+   * Thrown when the directory reports in its response control that it
+   * couldn't make the view, which it may do while still returning success for
+   * the search itself.
+   */
+  static final class ResultException extends NamingException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int resultCode;
+
+    private ResultException(int resultCode) {
+      super(String.format("Directory couldn't return the virtual list view: %s (LDAP result %d)!",
+          describe(resultCode), resultCode));
+      this.resultCode = resultCode;
+    }
+
+    /**
+     * @return the LDAP result code from the response control
+     */
+    int getResultCode() {
+      return resultCode;
+    }
+
+    private static String describe(int resultCode) {
+      switch (resultCode) {
+      case 3:
+        return "time limit exceeded";
+      case 11:
+        return "admin limit exceeded";
+      case 50:
+        return "insufficient access rights";
+      case 51:
+        return "busy";
+      case 53:
+        return "unwilling to perform";
+      case 60:
+        return "sort control missing";
+      case 61:
+        return "offset out of range";
+      case 76:
+        return "virtual list view error";
+      default:
+        return "other error";
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.InvalidSearchFilterException;
+import javax.naming.directory.SearchControls;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class LdapFilterTest {
+
+  private static LdifDirectory directory;
+
+  @BeforeAll
+  static void load() throws Exception {
+    var dir = Files.createDirectories(Paths.get(System.getProperty("pike.ldif.dir")));
+    Files.write(dir.resolve("filter.ldif"), String.join("\n",
+        "dn: dc=example,dc=com",
+        "objectClass: domain",
+        "",
+        "dn: ou=people,dc=example,dc=com",
+        "objectClass: organizationalUnit",
+        "ou: people",
+        "",
+        "dn: uid=alice,ou=people,dc=example,dc=com",
+        "objectClass: person",
+        "uid: alice",
+        "cn: Alice  Smith",
+        "sn: Smith",
+        "mail: alice@example.com",
+        "employeeNumber: 9",
+        "title: Engineer (Senior)",
+        "",
+        "dn: uid=bob,ou=people,dc=example,dc=com",
+        "objectClass: person",
+        "uid: bob",
+        "cn: Bob Jönes",
+        "sn: Jones",
+        "employeeNumber: 10",
+        "title: Manager",
+        "").getBytes(UTF_8));
+    directory = LdifDirectory.open("ldif:filter.ldif");
+  }
+
+  @Test
+  void matchesEqualityIgnoringCaseAndSpaces() throws Exception {
+    assertEquals(List.of("alice"), search("(uid=ALICE)"));
+    assertEquals(List.of("alice"), search("(cn=alice smith)"));
+    assertEquals(List.of("alice"), search("uid=alice"));
+    assertEquals(List.of(), search("(uid=carol)"));
+  }
+
+  @Test
+  void matchesPresence() throws Exception {
+    assertEquals(List.of("alice"), search("(mail=*)"));
+    assertEquals(List.of("alice", "bob"), search("(uid=*)"));
+  }
+
+  @Test
+  void matchesSubstrings() throws Exception {
+    assertEquals(List.of("alice"), search("(cn=*li*smi*)"));
+    assertEquals(List.of("bob"), search("(cn=bob*)"));
+    assertEquals(List.of("alice"), search("(sn=*th)"));
+    assertEquals(List.of("alice", "bob"), search("(cn=*e*)"));
+    // title isn't indexed, so every entry is looked at.
+    assertEquals(List.of("bob"), search("(title=man*r)"));
+    assertEquals(List.of(), search("(cn=*smith*alice*)"));
+  }
+
+  @Test
+  void comparesNumbersAsNumbers() throws Exception {
+    assertEquals(List.of("bob"), search("(employeeNumber>=10)"));
+    assertEquals(List.of("alice"), search("(employeeNumber<=9)"));
+  }
+
+  @Test
+  void takesApproximateMatchesAsEquality() throws Exception {
+    assertEquals(List.of("bob"), search("(sn~=JONES)"));
+  }
+
+  @Test
+  void combinesFilters() throws Exception {
+    assertEquals(List.of("bob"), search("(&(objectClass=person)(!(uid=alice)))"));
+    assertEquals(List.of("alice", "bob"), search("(|(uid=alice)(sn=jones))"));
+    assertEquals(List.of("alice"), search("(&(|(uid=alice)(uid=bob))(employeeNumber<=9))"));
+    assertEquals(List.of(), search("(&(uid=alice)(uid=bob))"));
+  }
+
+  @Test
+  void decodesEscapedValues() throws Exception {
+    assertEquals(List.of("alice"), search("(title=Engineer \\28Senior\\29)"));
+    assertEquals(List.of("bob"), search("(cn=Bob J\\c3\\b6nes)"));
+    assertEquals(List.of("bob"), search("(cn=Bob Jönes)"));
+  }
+
+  @Test
+  void keepsToTheScope() throws Exception {
+    var filter = LdapFilter.parse("(objectClass=*)");
+    assertEquals(1, directory.search("ou=people,dc=example,dc=com", SearchControls.OBJECT_SCOPE, filter, 0)
+        .getEntries().length);
+    assertEquals(2, directory.search("ou=people,dc=example,dc=com", SearchControls.ONELEVEL_SCOPE, filter, 0)
+        .getEntries().length);
+    assertEquals(4, directory.search("dc=com", SearchControls.SUBTREE_SCOPE, filter, 0).getEntries().length);
+    assertThrows(NameNotFoundException.class,
+        () -> directory.search("ou=groups,dc=example,dc=com", SearchControls.SUBTREE_SCOPE, filter, 0));
+  }
+
+  @Test
+  void rejectsInvalidFilters() {
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(uid=alice"));
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(=alice)"));
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(uid=a(b)"));
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(uid>=a*)"));
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(uid=alice))"));
+    assertThrows(InvalidSearchFilterException.class, () -> LdapFilter.parse("(cn:caseExactMatch:=Alice)"));
+  }
+
+  private static List<String> search(String filter) throws NamingException {
+    var uids = new ArrayList<String>();
+    var matches = directory.search("dc=example,dc=com", SearchControls.SUBTREE_SCOPE, LdapFilter.parse(filter), 0);
+    for (var entry : matches.getEntries()) {
+      var uid = directory.getAttributes(entry, new String[] { "uid" }).get("uid");
+      if (uid != null) {
+        uids.add((String) uid.get());
+      }
+    }
+    return uids;
+  }
+}
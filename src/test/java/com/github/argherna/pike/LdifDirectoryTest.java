@@ -0,0 +1,183 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NoPermissionException;
+import javax.naming.directory.InvalidAttributesException;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class LdifDirectoryTest {
+
+  private static final byte[] PHOTO = { (byte) 0xff, (byte) 0xd8, 0x00, 0x01, (byte) 0x80 };
+
+  private static Path dir;
+
+  private static LdifDirectory directory;
+
+  @BeforeAll
+  static void load() throws Exception {
+    dir = Files.createDirectories(Paths.get(System.getProperty("pike.ldif.dir")));
+    var photo = Files.write(dir.resolve("photo.bin"), PHOTO);
+    write("parse.ldif", "version: 1",
+        "",
+        "dn: dc=example,dc=com",
+        "objectClass: top",
+        "objectClass: domain",
+        "dc: example",
+        "",
+        "# A comment",
+        "#  that is folded",
+        "dn: uid=alice,dc=example,dc=com",
+        "objectClass: person",
+        "uid: alice",
+        "description: a description that",
+        "  is folded onto",
+        "  three lines",
+        "# a comment between attributes",
+        "#  continued",
+        "sn: Smith",
+        "",
+        "dn:: " + base64("uid=bob,dc=example,dc=com"),
+        "changetype: add",
+        "objectClass: person",
+        "uid: bob",
+        "cn:: " + base64("Bob Jönes"),
+        "description::" + base64(" starts with a space"),
+        "jpegPhoto:< " + photo.toUri(),
+        "");
+    directory = LdifDirectory.open("ldif:parse.ldif");
+  }
+
+  @Test
+  void readsEveryRecord() {
+    assertEquals(3, directory.size());
+    assertEquals("dc=example,dc=com", directory.getDn(0));
+  }
+
+  @Test
+  void joinsFoldedLines() throws Exception {
+    var alice = directory.find("uid=alice,dc=example,dc=com");
+    assertEquals("a description that is folded onto three lines",
+        directory.getAttributes(alice, new String[] { "description" }).get("description").get());
+  }
+
+  @Test
+  void skipsCommentsAndTheirContinuations() {
+    var alice = directory.find("uid=alice,dc=example,dc=com");
+    var attributes = directory.getAttributes(alice, null);
+    assertEquals(4, attributes.size());
+    assertNull(attributes.get("#"));
+  }
+
+  @Test
+  void decodesBase64DnsAndValues() throws Exception {
+    var bob = directory.find("UID=Bob, DC=Example, DC=Com");
+    assertTrue(bob >= 0);
+    var attributes = directory.getAttributes(bob, null);
+    assertEquals("Bob Jönes", attributes.get("cn").get());
+    assertEquals(" starts with a space", attributes.get("description").get());
+  }
+
+  @Test
+  void readsValuesFromFileUrls() throws Exception {
+    var bob = directory.find("uid=bob,dc=example,dc=com");
+    assertArrayEquals(PHOTO, (byte[]) directory.getAttributes(bob, new String[] { "jpegPhoto" })
+        .get("jpegPhoto").get());
+  }
+
+  @Test
+  void refusesFilesOutsideTheLdifDirectory() throws Exception {
+    var outside = Files.createTempFile("pike", ".ldif");
+    try {
+      Files.write(outside, "dn: dc=example,dc=com\ndc: example\n".getBytes(UTF_8));
+      assertThrows(NoPermissionException.class, () -> LdifDirectory.open("ldif:" + outside));
+      assertThrows(NoPermissionException.class, () -> LdifDirectory.open("ldif:../" + outside.getFileName()));
+    } finally {
+      Files.delete(outside);
+    }
+  }
+
+  @Test
+  void refusesFileUrlsOutsideTheLdifDirectory() throws Exception {
+    var outside = Files.createTempFile("pike", ".txt");
+    try {
+      Files.write(outside, "secret".getBytes(UTF_8));
+      write("outside.ldif", "dn: dc=example,dc=com", "description:< " + outside.toUri(), "");
+      var e = assertThrows(InvalidAttributesException.class, () -> LdifDirectory.open("ldif:outside.ldif"));
+      assertFalse(e.getMessage().contains(outside.toString()));
+    } finally {
+      Files.delete(outside);
+    }
+  }
+
+  @Test
+  void keepsTheFileOutOfErrors() throws Exception {
+    write("invalid.ldif", "dn: dc=example,dc=com", "dc: example", "", "dn: ou=people,dc=example,dc=com",
+        "root:x:0:0:secret", "no colon here secret", "");
+    var e = assertThrows(InvalidAttributesException.class, () -> LdifDirectory.open("ldif:invalid.ldif"));
+    assertTrue(e.getMessage().startsWith("Line 4:"), e.getMessage());
+    assertFalse(e.getMessage().contains("secret"), e.getMessage());
+  }
+
+  @Test
+  void refusesRecordsThatChangeEntries() throws Exception {
+    write("modify.ldif", "dn: dc=example,dc=com", "changetype: modify", "replace: dc", "dc: other", "");
+    assertThrows(InvalidAttributesException.class, () -> LdifDirectory.open("ldif:modify.ldif"));
+  }
+
+  @Test
+  void reloadsChangedFilesInTheBackground() throws Exception {
+    write("reload.ldif", "dn: dc=example,dc=com", "dc: example", "");
+    var loaded = LdifDirectory.open("ldif:reload.ldif");
+    write("reload.ldif", "dn: dc=example,dc=com", "dc: example", "", "dn: ou=people,dc=example,dc=com", "ou: people",
+        "");
+    assertSame(loaded, LdifDirectory.open("ldif:reload.ldif"));
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (LdifDirectory.open("ldif:reload.ldif") == loaded && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, LdifDirectory.open("ldif:reload.ldif").size());
+  }
+
+  @Test
+  void keepsServingWhatWasLoadedWhenAReloadFails() throws Exception {
+    write("broken.ldif", "dn: dc=example,dc=com", "dc: example", "");
+    var loaded = LdifDirectory.open("ldif:broken.ldif");
+    write("broken.ldif", "dn: dc=example,dc=com", "no colon here", "");
+    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+    while (System.nanoTime() < deadline) {
+      assertSame(loaded, LdifDirectory.open("ldif:broken.ldif"));
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void normalizesDistinguishedNames() {
+    assertEquals("uid=a b,ou=people,dc=example", LdifDirectory.normalizeDn("UID=A B , ou = People,DC=Example"));
+    assertEquals("cn=a\\,b,dc=example", LdifDirectory.normalizeDn("CN=A\\,B,DC=example"));
+  }
+
+  private static void write(String name, String... lines) throws IOException {
+    Files.write(dir.resolve(name), String.join("\n", lines).getBytes(UTF_8));
+  }
+
+  private static String base64(String value) {
+    return Base64.getEncoder().encodeToString(value.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,142 @@
+package com.github.argherna.pike;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import org.junit.jupiter.api.Test;
+
+class ResultWriterTest {
+
+  @Test
+  void writesTheAttributesAskedForAsCsvColumns() throws Exception {
+    var csv = write(ResultWriter.Format.CSV, List.of("cn", "mail", "CN"),
+        entry("uid=alice,dc=example,dc=com", "mail", "alice@example.com", "cn", "Alice Smith"));
+    assertEquals("dn,cn,mail\r\n\"uid=alice,dc=example,dc=com\",Alice Smith,alice@example.com\r\n", csv);
+  }
+
+  @Test
+  void quotesCsvCellsThatNeedIt() throws Exception {
+    var csv = write(ResultWriter.Format.CSV, List.of("a", "b", "c", "d"),
+        entry("uid=alice,dc=example,dc=com", "a", "one, two", "b", "say \"hi\"", "c", "line\nbreak", "d", " padded"));
+    assertEquals("dn,a,b,c,d\r\n\"uid=alice,dc=example,dc=com\",\"one, two\",\"say \"\"hi\"\"\",\"line\nbreak\","
+        + "\" padded\"\r\n", csv);
+  }
+
+  @Test
+  void escapesSemicolonsAndBackslashesInCsvValues() throws Exception {
+    var attributes = new BasicAttributes(true);
+    var description = new BasicAttribute("description");
+    description.add("a;b");
+    description.add("c\\d");
+    description.add("e");
+    attributes.put(description);
+    var csv = write(ResultWriter.Format.CSV, List.of("description"), result("cn=x", attributes));
+    assertEquals("dn,description\r\ncn=x,a\\;b;c\\\\d;e\r\n", csv);
+  }
+
+  @Test
+  void keepsSpreadsheetsFromRunningCsvCellsAsFormulas() throws Exception {
+    var csv = write(ResultWriter.Format.CSV, List.of("a", "b", "c", "d", "e", "f", "g"),
+        entry("cn=x", "a", "=1+1", "b", "+1", "c", "-1", "d", "@SUM(A1)", "e", "\tx", "f", "\rx", "g", "1=1"));
+    assertEquals("dn,a,b,c,d,e,f,g\r\ncn=x,'=1+1,'+1,'-1,'@SUM(A1),'\tx,\"'\rx\",1=1\r\n", csv);
+  }
+
+  @Test
+  void writesSafeLdifValuesAsThemselves() throws Exception {
+    var ldif = write(ResultWriter.Format.LDIF, List.of(),
+        entry("uid=alice,dc=example,dc=com", "cn", "Alice Smith", "description", "a: colon inside", "title", ""));
+    assertTrue(ldif.startsWith("version: 1\n\ndn: uid=alice,dc=example,dc=com\n"), ldif);
+    assertTrue(ldif.contains("\ncn: Alice Smith\n"), ldif);
+    assertTrue(ldif.contains("\ndescription: a: colon inside\n"), ldif);
+    assertTrue(ldif.contains("\ntitle: \n"), ldif);
+  }
+
+  @Test
+  void base64EncodesUnsafeLdifValues() throws Exception {
+    var unsafe = List.of(" leading space", "trailing space ", ":colon", "<angle", "line\nbreak", "carriage\rreturn",
+        "nul\0", "Jönes");
+    for (var value : unsafe) {
+      var ldif = write(ResultWriter.Format.LDIF, List.of(), entry("cn=x", "description", value));
+      assertTrue(ldif.contains("\ndescription:: " + base64(value.getBytes(UTF_8)) + "\n"), ldif);
+    }
+  }
+
+  @Test
+  void base64EncodesBinaryLdifValues() throws Exception {
+    var photo = new byte[] { (byte) 0xff, (byte) 0xd8, 0x00, 0x01 };
+    var attributes = new BasicAttributes(true);
+    attributes.put("jpegPhoto", photo);
+    var ldif = write(ResultWriter.Format.LDIF, List.of(), result("cn=x", attributes));
+    assertTrue(ldif.contains("\njpegPhoto:: " + base64(photo) + "\n"), ldif);
+  }
+
+  @Test
+  void foldsLongLdifLinesAt76Characters() throws Exception {
+    var value = String.join("", Collections.nCopies(200, "x"));
+    var ldif = write(ResultWriter.Format.LDIF, List.of(), entry("cn=x", "description", value));
+    var lines = ldif.split("\n");
+    var unfolded = new StringBuilder();
+    for (var line : lines) {
+      assertTrue(line.length() <= 76, line);
+      if (line.startsWith(" ")) {
+        unfolded.append(line, 1, line.length());
+      } else if (line.startsWith("description:")) {
+        assertEquals(76, line.length());
+        unfolded.append(line);
+      }
+    }
+    assertEquals("description: " + value, unfolded.toString());
+  }
+
+  @Test
+  void writesTheTrailerAsLdifComments() throws Exception {
+    var out = new ByteArrayOutputStream();
+    try (var writer = ResultWriter.create(ResultWriter.Format.LDIF, out, List.of())) {
+      writer.begin(null, Map.of());
+      writer.end(Map.of("partial", true));
+    }
+    assertEquals("version: 1\n\n# partial: true\n", out.toString(UTF_8.name()));
+  }
+
+  private static String write(ResultWriter.Format format, List<String> attrs, SearchResult... results)
+      throws Exception {
+    var out = new ByteArrayOutputStream();
+    try (var writer = ResultWriter.create(format, out, attrs)) {
+      writer.begin(null, Map.of());
+      for (var result : results) {
+        writer.write(result);
+      }
+      writer.end(Map.of());
+    }
+    return out.toString(UTF_8.name());
+  }
+
+  private static SearchResult entry(String dn, String... namesAndValues) {
+    var attributes = new BasicAttributes(true);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      attributes.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return result(dn, attributes);
+  }
+
+  private static SearchResult result(String dn, BasicAttributes attributes) {
+    var result = new SearchResult(dn, null, attributes);
+    result.setNameInNamespace(dn);
+    return result;
+  }
+
+  private static String base64(byte[] value) {
+    return Base64.getEncoder().encodeToString(value);
+  }
+}